@@ -0,0 +1,99 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The smtp server the class data sharing training sends to, it accepts every message and drops it.
+ * Run as a source file: {@code java StubSmtp.java <port>} serves until no client connected for a minute,
+ * {@code java StubSmtp.java <port> --wait} returns once the server is up.
+ */
+public class StubSmtp
+{
+    public static void main(String[] args) throws Exception
+    {
+        int port = Integer.parseInt(args[0]);
+        if(args.length > 1 && args[1].equals("--wait")) waitFor(port);
+        else serve(port);
+    }
+
+    private static void waitFor(int port) throws Exception
+    {
+        for(long end = System.currentTimeMillis() + 30_000; ; Thread.sleep(200))
+        try(Socket s = new Socket(InetAddress.getLoopbackAddress(), port))
+        {
+            s.getOutputStream().write("QUIT\r\n".getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        catch(IOException e)
+        {
+            if(System.currentTimeMillis() > end) throw e;
+        }
+    }
+
+    private static void serve(int port) throws IOException
+    {
+        try(ServerSocket ss = new ServerSocket(port, 50, InetAddress.getLoopbackAddress()))
+        {
+            ss.setSoTimeout(60_000);
+            while(true)
+            {
+                Socket s;
+                try
+                {
+                    s = ss.accept();
+                }
+                catch(SocketTimeoutException e)
+                {
+                    return;
+                }
+                Thread t = new Thread(() -> session(s));
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+    }
+
+    private static void session(Socket s)
+    {
+        try(Socket sock = s)
+        {
+            BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(),
+                                                                            StandardCharsets.ISO_8859_1));
+            OutputStream out = sock.getOutputStream();
+            reply(out, "220 stub");
+            for(String line; (line = in.readLine()) != null;)
+            {
+                String cmd = line.toUpperCase();
+                if(cmd.startsWith("EHLO")) reply(out, "250-stub\r\n250 8BITMIME");
+                else if(cmd.startsWith("DATA"))
+                {
+                    reply(out, "354 go ahead");
+                    for(String l; (l = in.readLine()) != null && !l.equals(".");) ;
+                    reply(out, "250 accepted");
+                }
+                else if(cmd.startsWith("QUIT"))
+                {
+                    reply(out, "221 bye");
+                    return;
+                }
+                else reply(out, "250 ok");
+            }
+        }
+        catch(IOException e)
+        {
+            // the client went away
+        }
+    }
+
+    private static void reply(OutputStream out, String r) throws IOException
+    {
+        out.write((r + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+}
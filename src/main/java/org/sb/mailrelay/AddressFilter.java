@@ -0,0 +1,83 @@
+package org.sb.mailrelay;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * The client addresses allowed to connect to a listener, a comma separated list of addresses and networks in
+ * CIDR notation, e.g. {@code 127.0.0.1,10.1.0.0/16,::1}.
+ */
+final class AddressFilter implements Predicate<InetAddress>
+{
+    private final List<byte[]> networks = new ArrayList<>();
+    private final List<Integer> prefixes = new ArrayList<>();
+    private final String spec;
+
+    private AddressFilter(String spec)
+    {
+        this.spec = spec;
+    }
+
+    static AddressFilter parse(String spec)
+    {
+        AddressFilter f = new AddressFilter(spec);
+        for(String s : spec.split(","))
+        {
+            s = s.trim();
+            if(s.isEmpty()) continue;
+            int slash = s.indexOf('/');
+            byte[] addr = address(slash < 0 ? s : s.substring(0, slash));
+            int prefix = slash < 0 ? addr.length * 8 : Integer.parseInt(s.substring(slash + 1).trim());
+            if(prefix < 0 || prefix > addr.length * 8) throw new IllegalStateException("Invalid network: " + s);
+            f.networks.add(addr);
+            f.prefixes.add(prefix);
+        }
+        if(f.networks.isEmpty()) throw new IllegalStateException("No addresses in: " + spec);
+        return f;
+    }
+
+    /* literal addresses only, a host name would be looked up once and go stale */
+    private static byte[] address(String literal)
+    {
+        if(!literal.matches("[0-9.]+|[0-9a-fA-F:.]*:[0-9a-fA-F:.]*"))
+            throw new IllegalStateException("Not an ip address: " + literal);
+        try
+        {
+            return InetAddress.getByName(literal).getAddress();
+        }
+        catch(UnknownHostException e)
+        {
+            throw new IllegalStateException("Not an ip address: " + literal, e);
+        }
+    }
+
+    @Override
+    public boolean test(InetAddress client)
+    {
+        byte[] a = client.getAddress();
+        for(int i = 0; i < networks.size(); i++)
+        {
+            byte[] n = networks.get(i);
+            if(n.length == a.length && matches(n, a, prefixes.get(i))) return true;
+        }
+        return false;
+    }
+
+    private static boolean matches(byte[] network, byte[] addr, int prefix)
+    {
+        int bytes = prefix / 8, bits = prefix % 8;
+        for(int i = 0; i < bytes; i++) if(network[i] != addr[i]) return false;
+        if(bits == 0) return true;
+        int mask = 0xff << (8 - bits) & 0xff;
+        return (network[bytes] & mask) == (addr[bytes] & mask);
+    }
+
+    @Override
+    public String toString()
+    {
+        return spec;
+    }
+}
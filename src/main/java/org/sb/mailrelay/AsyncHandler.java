@@ -0,0 +1,182 @@
+package org.sb.mailrelay;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+/**
+ * A logging handler that hands records to a background writer, so that logging threads never format or do I/O.
+ * <p>
+ * Records go into a fixed ring, claimed with a compare and set and published with a per slot sequence number,
+ * so logging takes no lock and allocates nothing beyond the record. The writer passes them to the target handlers
+ * in order. If the ring is full a record below warning is dropped rather than the caller blocked, and the count of
+ * drops is logged once there is room again; warnings and errors wait for room.
+ * <p>
+ * Configured in logging.properties with {@code org.sb.mailrelay.AsyncHandler.target}, a comma separated list of
+ * handler classes ({@code java.util.logging.ConsoleHandler} by default), {@code .capacity}, the number of records
+ * the ring holds (8192 by default), and {@code .level}. The callers of records are not inferred, formats that
+ * print the source show the logger name.
+ */
+public class AsyncHandler extends Handler
+{
+    static final int DEFAULT_CAPACITY = 8192;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final LogRecord[] ring;
+    private final AtomicLongArray seq;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private final LongAdder dropped = new LongAdder();
+    private final List<Handler> targets = new ArrayList<>();
+    private final Thread writer;
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+
+    public AsyncHandler()
+    {
+        LogManager lm = LogManager.getLogManager();
+        String prefix = getClass().getName();
+        int capacity = Integer.highestOneBit(Math.max(2,
+                Integer.parseInt(prop(lm, prefix + ".capacity", String.valueOf(DEFAULT_CAPACITY)).trim()) * 2 - 1));
+        ring = new LogRecord[capacity];
+        seq = new AtomicLongArray(capacity);
+        for(int i = 0; i < capacity; i++) seq.set(i, i);
+        mask = capacity - 1;
+        setLevel(Level.parse(prop(lm, prefix + ".level", Level.ALL.getName()).trim()));
+        for(String cls : prop(lm, prefix + ".target", ConsoleHandler.class.getName()).split(","))
+        {
+            if(cls.trim().isEmpty()) continue;
+            try
+            {
+                targets.add((Handler)ClassLoader.getSystemClassLoader().loadClass(cls.trim()).getDeclaredConstructor()
+                                .newInstance());
+            }
+            catch(ReflectiveOperationException | RuntimeException e)
+            {
+                reportError("Could not make the log handler " + cls, e, ErrorManager.OPEN_FAILURE);
+            }
+        }
+        writer = new Thread(this::drain, "mailrelay-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private static String prop(LogManager lm, String name, String def)
+    {
+        String v = lm.getProperty(name);
+        return v != null ? v : def;
+    }
+
+    @Override
+    public void publish(LogRecord record)
+    {
+        if(closed || !isLoggable(record)) return;
+        while(true)
+        {
+            long pos = tail.get();
+            int i = (int)pos & mask;
+            long dif = seq.get(i) - pos;
+            if(dif == 0)
+            {
+                if(!tail.compareAndSet(pos, pos + 1)) continue;
+                ring[i] = record;
+                seq.lazySet(i, pos + 1);
+                break;
+            }
+            if(dif < 0)
+            {
+                if(record.getLevel().intValue() < Level.WARNING.intValue())
+                {
+                    dropped.increment();
+                    return;
+                }
+                LockSupport.unpark(writer);
+                Thread.yield();
+            }
+        }
+        if(sleeping) LockSupport.unpark(writer);
+    }
+
+    private LogRecord poll()
+    {
+        int i = (int)head & mask;
+        if(seq.get(i) != head + 1) return null;
+        LogRecord r = ring[i];
+        ring[i] = null;
+        seq.lazySet(i, head + ring.length);
+        head++;
+        return r;
+    }
+
+    private void drain()
+    {
+        while(true)
+        {
+            boolean wrote = false;
+            for(LogRecord r; (r = poll()) != null; wrote = true)
+                for(Handler h : targets) h.publish(r);
+            long lost = dropped.sumThenReset();
+            if(lost > 0)
+            {
+                LogRecord r = new LogRecord(Level.WARNING, lost + " log records were dropped, the log ring was full");
+                r.setLoggerName(getClass().getPackage().getName());
+                for(Handler h : targets) h.publish(r);
+                wrote = true;
+            }
+            if(wrote)
+            {
+                for(Handler h : targets) h.flush();
+                continue;
+            }
+            if(closed) return;
+            sleeping = true;
+            if(tail.get() == head) LockSupport.parkNanos(this, IDLE_NANOS);
+            sleeping = false;
+        }
+    }
+
+    /**
+     * Waits until the records published so far are written.
+     */
+    @Override
+    public void flush()
+    {
+        long until = tail.get();
+        while(head < until && writer.isAlive())
+        {
+            LockSupport.unpark(writer);
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Writes out what is still in the ring and closes the targets.
+     */
+    @Override
+    public void close()
+    {
+        if(closed) return;
+        closed = true;
+        LockSupport.unpark(writer);
+        try
+        {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        for(Handler h : targets) h.close();
+    }
+}
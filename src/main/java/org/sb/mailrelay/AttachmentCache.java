@@ -0,0 +1,319 @@
+package org.sb.mailrelay;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.activation.DataHandler;
+import javax.activation.FileTypeMap;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
+
+import com.sun.mail.util.CRLFOutputStream;
+
+/**
+ * Keeps the encoded MIME parts of attached files, so a file attached to many messages is read and encoded once.
+ * <p>
+ * A file is looked up by its path, modification time and size. The encoded content is stored off-heap under the
+ * hash of the file's content, so the same content under different names is stored once. Contents are evicted
+ * least recently used first, to stay within the byte budget. A file larger than the budget is not cached.
+ */
+final class AttachmentCache
+{
+    private static final Logger log = Logger.getLogger(AttachmentCache.class.getPackage().getName());
+
+    static final long DEFAULT_BUDGET = 64L << 20;
+    private static final int MAX_FILES = 4096;
+
+    private static final class FileKey
+    {
+        final Path path;
+        final long mtime;
+        final long size;
+
+        FileKey(Path path, BasicFileAttributes attrs)
+        {
+            this.path = path;
+            this.mtime = attrs.lastModifiedTime().toMillis();
+            this.size = attrs.size();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if(!(o instanceof FileKey)) return false;
+            FileKey k = (FileKey)o;
+            return path.equals(k.path) && mtime == k.mtime && size == k.size;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(path, mtime, size);
+        }
+    }
+
+    /* the part headers of a file, and the key of its encoded content */
+    private static final class FileEntry
+    {
+        final byte[] headers;
+        final String content;
+
+        FileEntry(byte[] headers, String content)
+        {
+            this.headers = headers;
+            this.content = content;
+        }
+    }
+
+    private final long budget;
+    private long used;
+    private final LinkedHashMap<FileKey, FileEntry> files = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, ByteBuffer> contents = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param budget the bytes of encoded content kept
+     */
+    AttachmentCache(long budget)
+    {
+        this.budget = budget;
+    }
+
+    /**
+     * A body part attaching the file, its encoded bytes are copied from the cache when it is written.
+     */
+    MimeBodyPart part(Path file) throws IOException, MessagingException
+    {
+        Path path = file.toAbsolutePath().normalize();
+        FileKey key = new FileKey(path, Files.readAttributes(path, BasicFileAttributes.class));
+        if(key.size > budget) return plain(path);
+        synchronized(this)
+        {
+            FileEntry e = files.get(key);
+            ByteBuffer body = e == null ? null : contents.get(e.content);
+            if(body != null)
+            {
+                hits.incrementAndGet();
+                return new CachedPart(e.headers, body);
+            }
+        }
+        misses.incrementAndGet();
+
+        byte[] data = Files.readAllBytes(path);
+        String hash = sha256(data);
+        Encoder enc = new Encoder(data, path);
+        String content = hash + "/" + enc.getEncoding();
+        ByteBuffer body;
+        synchronized(this)
+        {
+            body = contents.get(content);
+            if(body == null)
+            {
+                body = enc.body;
+                contents.put(content, body);
+                used += body.capacity();
+                evict();
+            }
+            files.put(key, new FileEntry(enc.headers, content));
+            if(files.size() > MAX_FILES)
+            {
+                Iterator<FileKey> it = files.keySet().iterator();
+                it.next();
+                it.remove();
+            }
+        }
+        log.fine(() -> "Cached " + path + " as " + content + ", " + this);
+        return new CachedPart(enc.headers, body);
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<String, ByteBuffer>> it = contents.entrySet().iterator();
+        while(used > budget && it.hasNext())
+        {
+            used -= it.next().getValue().capacity();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static MimeBodyPart plain(Path path) throws IOException, MessagingException
+    {
+        MimeBodyPart part = new MimeBodyPart();
+        part.attachFile(path.toFile());
+        return part;
+    }
+
+    private static String sha256(byte[] data) throws IOException
+    {
+        try
+        {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(MessageDigest.getInstance("SHA-256").digest(data));
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    synchronized long used()
+    {
+        return used;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "attachment cache [files=" + files.size() + ", contents=" + contents.size() + ", bytes=" + used
+                + "/" + budget + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+
+    /**
+     * Encodes a file the way a {@link MimeBodyPart} attaching it would, split into headers and body.
+     */
+    private static final class Encoder extends MimeBodyPart
+    {
+        final byte[] headers;
+        final ByteBuffer body;
+
+        Encoder(byte[] data, Path path) throws IOException, MessagingException
+        {
+            String name = path.getFileName().toString();
+            ByteArrayDataSource ds = new ByteArrayDataSource(data, FileTypeMap.getDefaultFileTypeMap().getContentType(name));
+            ds.setName(name);
+            setDataHandler(new DataHandler(ds));
+            setFileName(name);
+            updateHeaders();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length * 4 / 3 + 1024);
+            try(CRLFOutputStream out = new CRLFOutputStream(bos))
+            {
+                writeTo(out);
+            }
+            byte[] b = bos.toByteArray();
+            int split = headerEnd(b);
+            headers = Arrays.copyOf(b, split);
+            body = ByteBuffer.allocateDirect(b.length - split);
+            body.put(b, split, b.length - split).flip();
+        }
+
+        private static int headerEnd(byte[] b)
+        {
+            for(int i = 3; i < b.length; i++)
+                if(b[i] == '\n' && b[i - 1] == '\r' && b[i - 2] == '\n' && b[i - 3] == '\r') return i + 1;
+            return b.length;
+        }
+    }
+
+    /**
+     * Reads a buffer from its position to its limit.
+     */
+    private static final class BodyStream extends InputStream
+    {
+        private final ByteBuffer buf;
+
+        BodyStream(ByteBuffer buf)
+        {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read()
+        {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if(len == 0) return 0;
+            if(!buf.hasRemaining()) return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n)
+        {
+            int skipped = (int)Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available()
+        {
+            return buf.remaining();
+        }
+    }
+
+    /**
+     * A part written from the cached bytes, its headers can be read but it must not be modified.
+     */
+    private static final class CachedPart extends MimeBodyPart
+    {
+        private final byte[] raw;
+        private final ByteBuffer body;
+
+        CachedPart(byte[] headers, ByteBuffer body) throws MessagingException
+        {
+            super(new InternetHeaders(new ByteArrayInputStream(headers)), new byte[0]);
+            this.raw = headers;
+            this.body = body.duplicate();
+        }
+
+        @Override
+        public int getSize()
+        {
+            return body.capacity();
+        }
+
+        @Override
+        protected void updateHeaders()
+        {
+        }
+
+        /* the encoded body, which the data handler, getInputStream and getRawInputStream read through */
+        @Override
+        protected InputStream getContentStream()
+        {
+            return new BodyStream(body.duplicate());
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException
+        {
+            os.write(raw);
+            ByteBuffer src = body.duplicate();
+            byte[] buf = new byte[Math.min(src.remaining(), 16 << 10)];
+            while(src.hasRemaining())
+            {
+                int n = Math.min(buf.length, src.remaining());
+                src.get(buf, 0, n);
+                os.write(buf, 0, n);
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.sb.mailrelay;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over 64 bit hashes, safe for concurrent use. It answers "maybe" or "definitely not",
+ * with a false positive rate close to the one it was sized for, as long as no more than the expected number
+ * of hashes are added.
+ */
+final class BloomFilter
+{
+    private final AtomicLongArray bits;
+    private final long size;
+    private final int hashes;
+    private final long expected;
+
+    /**
+     * @param expected the number of hashes that will be added
+     * @param fpp the desired false positive probability, e.g. 0.01
+     */
+    BloomFilter(long expected, double fpp)
+    {
+        this.expected = Math.max(1, expected);
+        long m = (long)Math.ceil(-this.expected * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int words = (int)Math.min(Integer.MAX_VALUE - 8, (m + 63) / 64);
+        bits = new AtomicLongArray(words);
+        size = words * 64L;
+        hashes = Math.max(1, (int)Math.round((double)size / this.expected * Math.log(2)));
+    }
+
+    private BloomFilter(AtomicLongArray bits, int hashes, long expected)
+    {
+        this.bits = bits;
+        this.size = bits.length() * 64L;
+        this.hashes = hashes;
+        this.expected = expected;
+    }
+
+    /**
+     * Writes the filter, to be read back with {@link #read}.
+     */
+    void write(DataOutputStream out) throws IOException
+    {
+        out.writeLong(expected);
+        out.writeInt(hashes);
+        out.writeInt(bits.length());
+        for(int i = 0; i < bits.length(); i++) out.writeLong(bits.get(i));
+    }
+
+    static BloomFilter read(DataInputStream in) throws IOException
+    {
+        long expected = in.readLong();
+        int hashes = in.readInt();
+        int words = in.readInt();
+        if(expected < 1 || hashes < 1 || words < 1) throw new IOException("Not a Bloom filter");
+        AtomicLongArray bits = new AtomicLongArray(words);
+        for(int i = 0; i < words; i++) bits.set(i, in.readLong());
+        return new BloomFilter(bits, hashes, expected);
+    }
+
+    long expected()
+    {
+        return expected;
+    }
+
+    void add(long hash)
+    {
+        int h1 = (int)hash, h2 = (int)(hash >>> 32);
+        for(int i = 1; i <= hashes; i++)
+        {
+            long bit = Math.floorMod(h1 + (long)i * h2, size);
+            int word = (int)(bit >>> 6);
+            long mask = 1L << bit;
+            for(long w = bits.get(word); (w & mask) == 0 && !bits.compareAndSet(word, w, w | mask); w = bits.get(word));
+        }
+    }
+
+    boolean mightContain(long hash)
+    {
+        int h1 = (int)hash, h2 = (int)(hash >>> 32);
+        for(int i = 1; i <= hashes; i++)
+        {
+            long bit = Math.floorMod(h1 + (long)i * h2, size);
+            if((bits.get((int)(bit >>> 6)) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * A 64 bit FNV-1a hash of the string's UTF-8 bytes, with a final mix so that both halves are well spread.
+     */
+    static long hash(String s)
+    {
+        long h = 0xcbf29ce484222325L;
+        for(byte b : s.getBytes(StandardCharsets.UTF_8))
+        {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,259 @@
+package org.sb.mailrelay;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A size and idle-time bounded cache, least recently used entries are evicted first.
+ * Values are created lazily outside of the cache lock, so a slow maker only holds up callers of the same key.
+ *
+ * @param <K>
+ * @param <V>
+ */
+class BoundedCache<K, V>
+{
+    private static final Logger log = Logger.getLogger(BoundedCache.class.getPackage().getName());
+
+    private static final Supplier<ScheduledExecutorService> sweeper = Lazy.wrap(() ->
+        Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread t = new Thread(r, "mailrelay-cache-sweeper");
+            t.setDaemon(true);
+            return t;
+        }));
+
+    private final String name;
+    private final int maxSize;
+    private final long maxIdleMillis;
+    private final Consumer<? super V> onEvict;
+    private final LinkedHashMap<K, Node<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+    private final ScheduledFuture<?> sweep;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final class Node<V>
+    {
+        final Lazy<V> val;
+        volatile long accessed = System.currentTimeMillis();
+
+        Node(Supplier<? extends V> maker)
+        {
+            val = Lazy.wrap(maker);
+        }
+    }
+
+    /**
+     * @param name used in logs and statistics
+     * @param maxSize maximum number of entries, must be positive
+     * @param maxIdleMillis entries not accessed for this long are evicted, zero or less to disable
+     * @param onEvict invoked for every evicted value that was created, never under the cache lock
+     */
+    BoundedCache(String name, int maxSize, long maxIdleMillis, Consumer<? super V> onEvict)
+    {
+        if(maxSize <= 0) throw new IllegalArgumentException("Cache size must be positive: " + maxSize);
+        this.name = name;
+        this.maxSize = maxSize;
+        this.maxIdleMillis = maxIdleMillis;
+        this.onEvict = onEvict;
+        if(maxIdleMillis > 0)
+        {
+            long period = Math.max(1000, maxIdleMillis / 2);
+            sweep = sweeper.get().scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+        }
+        else
+            sweep = null;
+    }
+
+    /**
+     * Returns the cached value for the key, making it with {@code maker} if absent.
+     * If the maker fails the entry is dropped and the failure propagates to the caller.
+     */
+    V get(K key, Supplier<? extends V> maker)
+    {
+        Node<V> node;
+        List<V> evicted;
+        synchronized(map)
+        {
+            node = map.get(key);
+            if(node == null)
+            {
+                misses.incrementAndGet();
+                node = new Node<>(maker);
+                map.put(key, node);
+            }
+            else
+                hits.incrementAndGet();
+            node.accessed = System.currentTimeMillis();
+            evicted = evict(node.accessed);
+        }
+        release(evicted);
+        try
+        {
+            return node.val.get();
+        }
+        catch(RuntimeException e)
+        {
+            synchronized(map)
+            {
+                map.remove(key, node);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Removes the entry for the key, and runs the eviction callback on its value, if any.
+     */
+    void invalidate(K key)
+    {
+        Node<V> node;
+        synchronized(map)
+        {
+            node = map.remove(key);
+        }
+        if(node != null && node.val.isInitialized()) release(node.val.get());
+    }
+
+    /**
+     * Removes the entries whose keys match, and runs the eviction callback on their values.
+     */
+    void invalidateIf(Predicate<? super K> keys)
+    {
+        List<V> evicted = new ArrayList<>();
+        synchronized(map)
+        {
+            for(Iterator<Map.Entry<K, Node<V>>> it = map.entrySet().iterator(); it.hasNext(); )
+            {
+                Map.Entry<K, Node<V>> e = it.next();
+                if(!keys.test(e.getKey())) continue;
+                it.remove();
+                if(e.getValue().val.isInitialized()) evicted.add(e.getValue().val.get());
+            }
+        }
+        release(evicted);
+    }
+
+    /**
+     * Runs the action on each value that was made, outside the cache lock.
+     */
+    void forEach(BiConsumer<? super K, ? super V> action)
+    {
+        Map<K, V> made = new LinkedHashMap<>();
+        synchronized(map)
+        {
+            map.forEach((k, n) -> { if(n.val.isInitialized()) made.put(k, n.val.get()); });
+        }
+        made.forEach(action);
+    }
+
+    /**
+     * Evicts idle entries, invoked periodically when an idle time bound is set.
+     */
+    void sweep()
+    {
+        List<V> evicted;
+        synchronized(map)
+        {
+            evicted = evict(System.currentTimeMillis());
+        }
+        release(evicted);
+    }
+
+    /**
+     * Evicts every entry and stops the idle sweep.
+     */
+    void close()
+    {
+        if(sweep != null) sweep.cancel(false);
+        List<V> evicted = new ArrayList<>();
+        synchronized(map)
+        {
+            map.values().stream().filter(n -> n.val.isInitialized()).forEach(n -> evicted.add(n.val.get()));
+            evictions.addAndGet(map.size());
+            map.clear();
+        }
+        release(evicted);
+    }
+
+    int size()
+    {
+        synchronized(map)
+        {
+            return map.size();
+        }
+    }
+
+    long hits()
+    {
+        return hits.get();
+    }
+
+    long misses()
+    {
+        return misses.get();
+    }
+
+    long evictions()
+    {
+        return evictions.get();
+    }
+
+    private List<V> evict(long now)
+    {
+        List<V> evicted = new ArrayList<>();
+        Iterator<Node<V>> it = map.values().iterator();
+        int size = map.size();
+        while(it.hasNext())
+        {
+            Node<V> node = it.next();
+            boolean idle = maxIdleMillis > 0 && now - node.accessed > maxIdleMillis;
+            if(!idle && size <= maxSize) break;
+            it.remove();
+            size--;
+            evictions.incrementAndGet();
+            if(node.val.isInitialized()) evicted.add(node.val.get());
+        }
+        return evicted;
+    }
+
+    private void release(List<V> evicted)
+    {
+        if(!evicted.isEmpty())
+            log.fine(() -> "Evicting " + evicted.size() + " entries from the " + name + " cache");
+        evicted.forEach(this::release);
+    }
+
+    private void release(V val)
+    {
+        try
+        {
+            onEvict.accept(val);
+        }
+        catch(RuntimeException e)
+        {
+            log.log(Level.WARNING, "Eviction from the " + name + " cache failed", e);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return name + " cache: size=" + size() + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions;
+    }
+}
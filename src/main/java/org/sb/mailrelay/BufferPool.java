@@ -0,0 +1,386 @@
+package org.sb.mailrelay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.mail.internet.SharedInputStream;
+
+/**
+ * A pool of direct byte buffers that messages are encoded into and written to sockets from, so that sending a
+ * message does not allocate and copy arrays the size of the message, and what a socket writes is not copied into
+ * a temporary direct buffer first.
+ * <p>
+ * Buffers come in three sizes: {@value #SMALL} bytes for smtp commands, and {@value #PAGE} bytes followed by
+ * {@value #CHUNK} byte chunks for the bytes of a message, held by an {@link Output}. Released buffers are kept for
+ * reuse up to the retained limit. A buffer must not be used once released.
+ */
+final class BufferPool
+{
+    private static final Logger log = Logger.getLogger(BufferPool.class.getPackage().getName());
+
+    static final int SMALL = 1 << 10;
+    static final int PAGE = 8 << 10;
+    static final int CHUNK = 64 << 10;
+    static final long DEFAULT_RETAINED = 32L << 20;
+    private static final int[] SIZES = {SMALL, PAGE, CHUNK};
+
+    private static final BufferPool shared = new BufferPool(DEFAULT_RETAINED);
+    /* for the copies between buffers and streams, which take arrays */
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[PAGE]);
+
+    private final List<ArrayDeque<ByteBuffer>> free = new ArrayList<>(SIZES.length);
+    private final long maxRetained;
+    private long retained;
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder heap = new LongAdder();
+
+    BufferPool(long maxRetained)
+    {
+        this.maxRetained = maxRetained;
+        for(int i = 0; i < SIZES.length; i++) free.add(new ArrayDeque<>());
+    }
+
+    static BufferPool shared()
+    {
+        return shared;
+    }
+
+    private static int sizeClass(int capacity)
+    {
+        for(int i = 0; i < SIZES.length; i++) if(capacity <= SIZES[i]) return i;
+        return -1;
+    }
+
+    /**
+     * A cleared buffer of at least the size, from the pool if it has one. Buffers over {@link #CHUNK} are not pooled.
+     */
+    ByteBuffer acquire(int size)
+    {
+        int c = sizeClass(size);
+        if(c >= 0)
+        {
+            ByteBuffer b;
+            synchronized(this)
+            {
+                b = free.get(c).poll();
+                if(b != null) retained -= b.capacity();
+            }
+            if(b != null)
+            {
+                reused.increment();
+                return b;
+            }
+        }
+        int capacity = c >= 0 ? SIZES[c] : size;
+        allocated.increment();
+        try
+        {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        catch(OutOfMemoryError e)
+        {
+            // past -XX:MaxDirectMemorySize, e.g. with a memory budget over it, the heap still works
+            heap.increment();
+            log.fine(() -> "Out of direct memory, using a heap buffer of " + capacity + " bytes");
+            return ByteBuffer.allocate(capacity);
+        }
+    }
+
+    /**
+     * Gives a buffer back for reuse, buffers that were not acquired from a pool are ignored.
+     */
+    void release(ByteBuffer b)
+    {
+        if(b == null || !b.isDirect()) return;
+        int c = sizeClass(b.capacity());
+        if(c < 0 || SIZES[c] != b.capacity()) return;
+        b.clear();
+        synchronized(this)
+        {
+            if(retained + b.capacity() > maxRetained) return;
+            retained += b.capacity();
+            free.get(c).push(b);
+        }
+    }
+
+    /**
+     * Copies the stream to the output, through a buffer of the calling thread.
+     */
+    static void copy(InputStream in, OutputStream out) throws IOException
+    {
+        byte[] b = scratch.get();
+        for(int n; (n = in.read(b)) >= 0; ) out.write(b, 0, n);
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "buffer pool " + retained + "/" + maxRetained + " bytes retained, " + allocated.sum() + " allocated, "
+                + reused.sum() + " reused" + (heap.sum() > 0 ? ", " + heap.sum() + " on the heap" : "");
+    }
+
+    /**
+     * A stream of bytes written into chunks of the pool, and read back as buffers or streams until released.
+     */
+    static final class Output extends OutputStream
+    {
+        private final BufferPool pool;
+        private final List<ByteBuffer> chunks = new ArrayList<>(4);
+        private long size;
+        private boolean released;
+
+        Output(BufferPool pool)
+        {
+            this.pool = pool;
+        }
+
+        /**
+         * The bytes that can be written without taking another chunk.
+         */
+        int room()
+        {
+            return chunks.isEmpty() ? 0 : last().remaining();
+        }
+
+        /**
+         * The capacity of the chunks taken so far.
+         */
+        long capacity()
+        {
+            return chunks.isEmpty() ? 0 : PAGE + (chunks.size() - 1L) * CHUNK;
+        }
+
+        /**
+         * The capacity that writing the bytes would add, to reserve it before.
+         */
+        long growth(long len)
+        {
+            long need = len - room();
+            if(need <= 0) return 0;
+            long g = 0;
+            if(chunks.isEmpty())
+            {
+                g = PAGE;
+                need -= PAGE;
+            }
+            return need <= 0 ? g : g + (need + CHUNK - 1) / CHUNK * CHUNK;
+        }
+
+        private ByteBuffer last()
+        {
+            return chunks.get(chunks.size() - 1);
+        }
+
+        private ByteBuffer next()
+        {
+            ByteBuffer b = chunks.isEmpty() || !last().hasRemaining() ? null : last();
+            if(b == null)
+            {
+                if(released) throw new IllegalStateException("The buffer is released");
+                chunks.add(b = pool.acquire(chunks.isEmpty() ? PAGE : CHUNK));
+            }
+            return b;
+        }
+
+        @Override
+        public void write(int b)
+        {
+            next().put((byte)b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            while(len > 0)
+            {
+                ByteBuffer c = next();
+                int n = Math.min(len, c.remaining());
+                c.put(b, off, n);
+                off += n;
+                len -= n;
+                size += n;
+            }
+        }
+
+        /**
+         * Writes everything the stream has left.
+         */
+        void readFrom(InputStream in) throws IOException
+        {
+            byte[] b = scratch.get();
+            for(int n; (n = in.read(b)) >= 0; ) write(b, 0, n);
+        }
+
+        long size()
+        {
+            return size;
+        }
+
+        /**
+         * Writes the bytes written to the stream.
+         */
+        void writeTo(OutputStream os) throws IOException
+        {
+            byte[] b = scratch.get();
+            for(ByteBuffer c : chunks)
+            {
+                ByteBuffer r = c.duplicate();
+                r.flip();
+                while(r.hasRemaining())
+                {
+                    int n = Math.min(b.length, r.remaining());
+                    r.get(b, 0, n);
+                    os.write(b, 0, n);
+                }
+            }
+        }
+
+        /**
+         * Hands the chunks over to the caller ready to be read, who releases them to the pool once done.
+         */
+        List<ByteBuffer> detach()
+        {
+            List<ByteBuffer> detached = new ArrayList<>(chunks);
+            detached.forEach(ByteBuffer::flip);
+            chunks.clear();
+            released = true;
+            return detached;
+        }
+
+        /**
+         * A stream of the bytes written, it can be read until the output is released.
+         */
+        Input inputStream()
+        {
+            return new Input(this, 0, size);
+        }
+
+        /**
+         * Gives the chunks back to the pool, the streams of the output fail from then on.
+         */
+        void release()
+        {
+            released = true;
+            chunks.forEach(pool::release);
+            chunks.clear();
+        }
+    }
+
+    /**
+     * Reads a range of an {@link Output}, as a {@link SharedInputStream} so that a message parsed from it refers to
+     * its bytes rather than copying them.
+     */
+    static final class Input extends InputStream implements SharedInputStream
+    {
+        private final Output out;
+        private final long start;
+        private final long end;
+        private long pos;
+        private long mark;
+        private ByteBuffer view;
+        private int viewIndex = -1;
+
+        private Input(Output out, long start, long end)
+        {
+            this.out = out;
+            this.start = start;
+            this.end = end;
+            pos = mark = start;
+        }
+
+        /* the chunk holding the position, positioned at it, the first chunk is a page */
+        private ByteBuffer at(long p) throws IOException
+        {
+            if(out.released) throw new IOException("The buffer is released");
+            int i = p < PAGE ? 0 : 1 + (int)((p - PAGE) / CHUNK);
+            if(i != viewIndex)
+            {
+                view = out.chunks.get(i).duplicate();
+                viewIndex = i;
+            }
+            view.clear();
+            view.position((int)(p < PAGE ? p : (p - PAGE) % CHUNK));
+            return view;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if(pos >= end) return -1;
+            return at(pos++).get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if(len == 0) return 0;
+            if(pos >= end) return -1;
+            int total = 0;
+            while(len > 0 && pos < end)
+            {
+                ByteBuffer v = at(pos);
+                int n = (int)Math.min(Math.min(len, v.remaining()), end - pos);
+                v.get(b, off, n);
+                off += n;
+                len -= n;
+                pos += n;
+                total += n;
+            }
+            return total;
+        }
+
+        @Override
+        public long skip(long n)
+        {
+            long skipped = Math.max(0, Math.min(n, end - pos));
+            pos += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available()
+        {
+            return (int)Math.min(Integer.MAX_VALUE, end - pos);
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit)
+        {
+            mark = pos;
+        }
+
+        @Override
+        public synchronized void reset()
+        {
+            pos = mark;
+        }
+
+        @Override
+        public long getPosition()
+        {
+            return pos - start;
+        }
+
+        @Override
+        public InputStream newStream(long from, long to)
+        {
+            if(from < 0) throw new IllegalArgumentException("start < 0");
+            return new Input(out, start + from, to == -1 ? end : start + to);
+        }
+    }
+}
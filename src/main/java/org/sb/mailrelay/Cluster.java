@@ -0,0 +1,319 @@
+package org.sb.mailrelay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Shares a spool between relay nodes, processes on one host or hosts mounting the same folder.
+ * <p>
+ * The entries of the spool are split in a fixed number of shards by their sender, or their sender pool, so that the
+ * connections of an account are kept by a single node. A node delivers only the entries of the shards it holds the
+ * lease of, a lock on {@code cluster/shard-<n>.lease} in the spool. The lock is released by the operating system when
+ * the node dies, and the shard is then taken over with its entries by another node.
+ * <p>
+ * Each node writes a heartbeat to {@code cluster/nodes/<node>}, and the nodes whose heartbeat is recent share the
+ * shards evenly. A node holding more than its share stops taking up the entries of the extra shards and releases
+ * them once the deliveries in flight are done, so that no entry is ever delivered by two nodes at once.
+ */
+final class Cluster implements Closeable
+{
+    private static final Logger log = Logger.getLogger(Cluster.class.getPackage().getName());
+
+    static final String DIR = "cluster";
+    static final int DEFAULT_SHARDS = 16;
+    static final long DEFAULT_HEARTBEAT = TimeUnit.SECONDS.toMillis(2);
+    /* the heartbeats a node may miss before it is no longer counted, and before its heartbeat file is removed */
+    private static final int MISSED = 3;
+    private static final int FORGOTTEN = 100;
+
+    private static final class Lease
+    {
+        final FileChannel ch;
+        final FileLock lock;
+        boolean releasing;
+
+        Lease(FileChannel ch, FileLock lock)
+        {
+            this.ch = ch;
+            this.lock = lock;
+        }
+    }
+
+    final String node;
+    private final int shards;
+    private final long heartbeat;
+    private final Path dir;
+    private final Path nodeFile;
+    private final Runnable onAcquired;
+    private final Map<Integer, Lease> leases = new TreeMap<>();
+    private final int[] inFlight;
+
+    private Cluster(Path dir, String node, int shards, long heartbeat, Runnable onAcquired) throws IOException
+    {
+        this.dir = dir;
+        this.node = node;
+        this.shards = shards;
+        this.heartbeat = heartbeat;
+        this.onAcquired = onAcquired;
+        inFlight = new int[shards];
+        nodeFile = Files.createDirectories(dir.resolve("nodes")).resolve(node);
+    }
+
+    /**
+     * Joins the cluster of the spool with the {@code --cluster}, {@code --node}, {@code --shards} and
+     * {@code --heartbeat} options, if {@code --cluster} is set.
+     *
+     * @param onAcquired called when shards are taken over, to pick up their entries
+     */
+    static Optional<Cluster> fromOptions(Set<String> flags, Map<String, String> nvp, Path spoolDir,
+            Runnable onAcquired) throws IOException
+    {
+        if(!flags.contains("cluster")) return Optional.empty();
+        Path dir = Files.createDirectories(spoolDir.resolve(DIR));
+        String node = nvp.getOrDefault("node", ManagementFactory.getRuntimeMXBean().getName())
+                        .replaceAll("[^\\w.@-]", "_");
+        long heartbeat = Optional.ofNullable(nvp.get("heartbeat")).map(Cmd::durationMillis).orElse(DEFAULT_HEARTBEAT);
+        return Optional.of(new Cluster(dir, node, shards(dir, nvp.get("shards")), heartbeat, onAcquired));
+    }
+
+    /* the shard count is fixed by the first node, the same sender must map to the same shard on every node */
+    private static int shards(Path dir, String requested) throws IOException
+    {
+        Path file = dir.resolve("shards");
+        if(Files.notExists(file))
+        try
+        {
+            Files.write(file, String.valueOf(requested != null ? Integer.parseInt(requested) : DEFAULT_SHARDS)
+                                    .getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+        }
+        catch(FileAlreadyExistsException e)
+        {
+            // another node was first
+        }
+        int shards = Integer.parseInt(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim());
+        if(requested != null && Integer.parseInt(requested) != shards)
+            throw new IllegalStateException("The cluster of " + dir.getParent() + " has " + shards + " shards, not "
+                                            + requested);
+        if(shards <= 0) throw new IllegalStateException("The shard count in " + file + " must be positive");
+        return shards;
+    }
+
+    long heartbeat()
+    {
+        return heartbeat;
+    }
+
+    int shard(Spool.Entry e)
+    {
+        String key = e.nvp.getOrDefault("pool", String.valueOf(e.from));
+        return Math.floorMod(key.toLowerCase(Locale.ROOT).hashCode(), shards);
+    }
+
+    /**
+     * @return true if this node delivers the entry
+     */
+    synchronized boolean owns(Spool.Entry e)
+    {
+        Lease l = leases.get(shard(e));
+        return l != null && !l.releasing;
+    }
+
+    /**
+     * Starts the delivery of an entry, its shard is not released until it is {@link #end}ed.
+     *
+     * @return false if this node does not deliver the entry
+     */
+    synchronized boolean begin(Spool.Entry e)
+    {
+        if(!owns(e)) return false;
+        inFlight[shard(e)]++;
+        return true;
+    }
+
+    synchronized void end(Spool.Entry e)
+    {
+        int s = shard(e);
+        if(inFlight[s] > 0) inFlight[s]--;
+    }
+
+    /**
+     * Writes the heartbeat of the node and takes or releases shards to hold its share, run every
+     * {@link #heartbeat()} milliseconds.
+     */
+    synchronized void beat()
+    {
+        try
+        {
+            long now = System.currentTimeMillis();
+            int live = liveNodes(now);
+            int share = (shards + live - 1) / live;
+            int kept = 0;
+            for(Map.Entry<Integer, Lease> l : leases.entrySet())
+            {
+                boolean extra = ++kept > share;
+                if(extra && !l.getValue().releasing) log.info("Node " + node + " is handing over shard " + l.getKey());
+                l.getValue().releasing = extra;
+            }
+            for(Integer s : new ArrayList<>(leases.keySet()))
+                if(leases.get(s).releasing && inFlight[s] == 0) release(s);
+            List<Integer> acquired = new ArrayList<>();
+            for(int i = 0, start = Math.floorMod(node.hashCode(), shards); i < shards && leases.size() < share; i++)
+            {
+                int s = (start + i) % shards;
+                if(!leases.containsKey(s) && acquire(s)) acquired.add(s);
+            }
+            writeHeartbeat(now);
+            if(!acquired.isEmpty())
+            {
+                log.info("Node " + node + " took over shards " + acquired + ", " + live + " nodes live");
+                onAcquired.run();
+            }
+        }
+        catch(IOException | RuntimeException e)
+        {
+            log.log(Level.WARNING, "The heartbeat of node " + node + " failed", e);
+        }
+    }
+
+    private int liveNodes(long now) throws IOException
+    {
+        int live = 1;
+        for(Map.Entry<String, long[]> n : nodes(dir).entrySet())
+        {
+            long age = now - n.getValue()[0];
+            if(n.getKey().equals(node)) continue;
+            if(age < heartbeat * MISSED) live++;
+            else if(age > heartbeat * FORGOTTEN) Files.deleteIfExists(dir.resolve("nodes").resolve(n.getKey()));
+        }
+        return live;
+    }
+
+    private boolean acquire(int shard) throws IOException
+    {
+        FileChannel ch = FileChannel.open(dir.resolve("shard-" + shard + ".lease"), StandardOpenOption.CREATE,
+                                            StandardOpenOption.WRITE);
+        FileLock lock = null;
+        try
+        {
+            lock = ch.tryLock();
+        }
+        finally
+        {
+            if(lock == null) ch.close();
+        }
+        if(lock == null) return false;
+        leases.put(shard, new Lease(ch, lock));
+        return true;
+    }
+
+    private void release(int shard) throws IOException
+    {
+        Lease l = leases.remove(shard);
+        try
+        {
+            l.lock.release();
+        }
+        finally
+        {
+            l.ch.close();
+        }
+        log.info("Node " + node + " released shard " + shard);
+    }
+
+    /* the heartbeat file holds the time of the beat and the shards held */
+    private void writeHeartbeat(long now) throws IOException
+    {
+        Path tmp = nodeFile.resolveSibling("." + node + ".tmp");
+        String held = leases.keySet().stream().map(String::valueOf).collect(Collectors.joining(","));
+        Files.write(tmp, (now + "\t" + held + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, nodeFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /* the last heartbeat of each node and the shards it held then */
+    private static Map<String, long[]> nodes(Path dir) throws IOException
+    {
+        Map<String, long[]> nodes = new TreeMap<>();
+        Path nodesDir = dir.resolve("nodes");
+        if(Files.notExists(nodesDir)) return nodes;
+        try(DirectoryStream<Path> ds = Files.newDirectoryStream(nodesDir))
+        {
+            for(Path f : ds)
+            {
+                if(f.getFileName().toString().startsWith(".")) continue;
+                String[] line;
+                try
+                {
+                    line = new String(Files.readAllBytes(f), StandardCharsets.UTF_8).trim().split("\t", -1);
+                }
+                catch(NoSuchFileException e)
+                {
+                    continue;
+                }
+                long[] v = new long[1 + (line.length > 1 && !line[1].isEmpty() ? line[1].split(",").length : 0)];
+                v[0] = Long.parseLong(line[0]);
+                for(int i = 1; i < v.length; i++) v[i] = Long.parseLong(line[1].split(",")[i - 1]);
+                nodes.put(f.getFileName().toString(), v);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * The nodes of the cluster of a spool, with their last heartbeat and shards, for display.
+     */
+    static List<String> describe(Path spoolDir) throws IOException
+    {
+        Path dir = spoolDir.resolve(DIR);
+        if(Files.notExists(dir)) throw new IllegalStateException("No cluster uses the spool " + spoolDir);
+        long now = System.currentTimeMillis();
+        int shards = Integer.parseInt(new String(Files.readAllBytes(dir.resolve("shards")), StandardCharsets.UTF_8).trim());
+        Set<Integer> unheld = new TreeSet<>();
+        for(int s = 0; s < shards; s++) unheld.add(s);
+        List<String> lines = new ArrayList<>();
+        nodes(dir).forEach((n, v) ->
+        {
+            StringBuilder held = new StringBuilder();
+            for(int i = 1; i < v.length; i++)
+            {
+                held.append(i > 1 ? "," : "").append(v[i]);
+                unheld.remove((int)v[i]);
+            }
+            lines.add(n + "\theartbeat " + (now - v[0]) / 1000.0 + "s ago\tshards " + held);
+        });
+        lines.add(shards + " shards" + (unheld.isEmpty() ? "" : ", not held: " + unheld));
+        return lines;
+    }
+
+    /**
+     * Releases the shards of the node and leaves the cluster.
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        for(Integer s : new ArrayList<>(leases.keySet())) release(s);
+        Files.deleteIfExists(nodeFile);
+    }
+}
@@ -2,6 +2,7 @@ package org.sb.mailrelay;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.Collections;
 import java.util.List;
@@ -46,6 +47,49 @@ public interface Cmd
                 || (str.startsWith("\'") && str.endsWith("\'")) ? str.substring(1, str.length() -1) : str;
     }
     
+    /**
+     * Parses a duration such as {@code 90s}, {@code 15m}, {@code 2h}, {@code 1d}, {@code 250ms}, 
+     * an ISO-8601 duration like {@code PT15M}, or a plain number of milliseconds.
+     */
+    static long durationMillis(String str)
+    {
+        String s = str.trim().toLowerCase();
+        if(s.startsWith("p")) return Duration.parse(s.toUpperCase()).toMillis();
+        int unit = 0;
+        while(unit < s.length() && (Character.isDigit(s.charAt(unit)) || s.charAt(unit) == '.')) unit++;
+        if(unit == 0) throw new IllegalStateException("Invalid duration: " + str);
+        double n = Double.parseDouble(s.substring(0, unit));
+        switch(s.substring(unit).trim())
+        {
+            case "": case "ms": return (long)n;
+            case "s": return (long)(n * 1000);
+            case "m": return (long)(n * 60_000);
+            case "h": return (long)(n * 3_600_000);
+            case "d": return (long)(n * 86_400_000);
+            default: throw new IllegalStateException("Invalid duration: " + str);
+        }
+    }
+    
+    /**
+     * Parses a size such as {@code 512k}, {@code 64m}, {@code 1g}, or a plain number of bytes.
+     */
+    static long byteSize(String str)
+    {
+        String s = str.trim().toLowerCase();
+        int unit = 0;
+        while(unit < s.length() && (Character.isDigit(s.charAt(unit)) || s.charAt(unit) == '.')) unit++;
+        if(unit == 0) throw new IllegalStateException("Invalid size: " + str);
+        double n = Double.parseDouble(s.substring(0, unit));
+        switch(s.substring(unit).trim())
+        {
+            case "": case "b": return (long)n;
+            case "k": case "kb": return (long)(n * 1024);
+            case "m": case "mb": return (long)(n * 1024 * 1024);
+            case "g": case "gb": return (long)(n * 1024 * 1024 * 1024);
+            default: throw new IllegalStateException("Invalid size: " + str);
+        }
+    }
+
     default List<String> help(String name)
     {
         return Collections.singletonList(name + "\t not implemented");
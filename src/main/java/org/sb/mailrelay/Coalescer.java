@@ -0,0 +1,165 @@
+package org.sb.mailrelay;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+/**
+ * Holds back messages with the same sender, recipients and subject pattern for a window, so that a burst of
+ * them is sent as a single digest. A group is sent when the window since its first message ends, or when it
+ * reaches the count or size cap. The subject pattern replaces what varies between similar subjects, numbers
+ * by default, so "disk 91% full" and "disk 95% full" are merged.
+ */
+final class Coalescer
+{
+    static final int DEFAULT_MAX_COUNT = 50;
+    static final long DEFAULT_MAX_BYTES = 10L << 20;
+    static final String DEFAULT_PATTERN = "\\d+";
+
+    static final class Group
+    {
+        final long deadline;
+        final List<Spool.Entry> entries = new ArrayList<>();
+        final List<String> subjects = new ArrayList<>();
+        long bytes;
+
+        Group(long deadline)
+        {
+            this.deadline = deadline;
+        }
+    }
+
+    private final long windowMillis;
+    private final int maxCount;
+    private final long maxBytes;
+    private final Pattern pattern;
+    /* in the order the groups were started, which is also the order of their deadlines */
+    private final LinkedHashMap<String, Group> groups = new LinkedHashMap<>();
+
+    Coalescer(long windowMillis, int maxCount, long maxBytes, Pattern pattern)
+    {
+        this.windowMillis = windowMillis;
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+        this.pattern = pattern;
+    }
+
+    /**
+     * The coalescer of the {@code --coalesce} window, sized by {@code --coalesce-max},
+     * {@code --coalesce-max-size} and {@code --coalesce-pattern}.
+     */
+    static Optional<Coalescer> fromOptions(Map<String, String> nvp)
+    {
+        return Optional.ofNullable(nvp.get("coalesce")).map(w -> new Coalescer(Cmd.durationMillis(w),
+                Integer.parseInt(nvp.getOrDefault("coalesce-max", String.valueOf(DEFAULT_MAX_COUNT))),
+                Optional.ofNullable(nvp.get("coalesce-max-size")).map(Cmd::byteSize).orElse(DEFAULT_MAX_BYTES),
+                Pattern.compile(nvp.getOrDefault("coalesce-pattern", DEFAULT_PATTERN))));
+    }
+
+    /**
+     * @return false for messages sent with the urgent priority, they are never held back
+     */
+    boolean accepts(Spool.Entry e)
+    {
+        return !"urgent".equalsIgnoreCase(e.nvp.get("priority"));
+    }
+
+    /**
+     * Adds a message to its group.
+     *
+     * @return the group if it reached a cap and has to be sent now
+     */
+    synchronized Optional<Group> add(Spool.Entry e, String subject, long size, long now)
+    {
+        String key = key(e, subject);
+        Group g = groups.computeIfAbsent(key, k -> new Group(now + windowMillis));
+        g.entries.add(e);
+        g.subjects.add(subject);
+        g.bytes += size;
+        if(g.entries.size() < maxCount && g.bytes < maxBytes) return Optional.empty();
+        groups.remove(key);
+        return Optional.of(g);
+    }
+
+    /**
+     * Removes the groups whose window has ended.
+     */
+    synchronized List<Group> expired(long now)
+    {
+        List<Group> due = new ArrayList<>();
+        for(Iterator<Group> it = groups.values().iterator(); it.hasNext();)
+        {
+            Group g = it.next();
+            if(g.deadline > now) break;
+            it.remove();
+            due.add(g);
+        }
+        return due;
+    }
+
+    synchronized int held()
+    {
+        return groups.values().stream().mapToInt(g -> g.entries.size()).sum();
+    }
+
+    private String key(Spool.Entry e, String subject)
+    {
+        return e.from.toLowerCase(Locale.ROOT) + "\n"
+                + Stream.of(e.pending()).map(a -> ((InternetAddress)a).getAddress().toLowerCase(Locale.ROOT)).sorted()
+                        .collect(Collectors.joining(",")) + "\n"
+                + pattern.matcher(Optional.ofNullable(subject).orElse("")).replaceAll("*");
+    }
+
+    /**
+     * Makes a digest of the messages of a group, a summary followed by each message as an attachment.
+     */
+    static MimeMessage digest(Group g, List<? extends MimeMessage> msgs) throws MessagingException
+    {
+        MimeMessage first = msgs.get(0);
+        MimeMessage digest = new MimeMessage((Session)null);
+        for(String h : new String[]{"From", "To", "Cc", "Reply-To"})
+        {
+            String v = first.getHeader(h, ",");
+            if(v != null) digest.setHeader(h, v);
+        }
+        digest.setSubject(Optional.ofNullable(g.subjects.get(0)).orElse("No subject")
+                            + " [+" + (msgs.size() - 1) + " more]", "UTF-8");
+        digest.setSentDate(new Date());
+
+        StringBuilder summary = new StringBuilder(msgs.size() + " messages:\n\n");
+        for(int i = 0; i < msgs.size(); i++)
+            summary.append(Optional.ofNullable(msgs.get(i).getSentDate()).map(Date::toString).orElse(""))
+                   .append("  ").append(g.subjects.get(i)).append('\n');
+
+        MimeMultipart mp = new MimeMultipart();
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText(summary.toString(), "UTF-8");
+        mp.addBodyPart(text);
+        for(int i = 0; i < msgs.size(); i++)
+        {
+            MimeBodyPart part = new MimeBodyPart();
+            part.setContent(msgs.get(i), "message/rfc822");
+            part.setDisposition(Part.INLINE);
+            part.setFileName("message-" + (i + 1) + ".eml");
+            mp.addBodyPart(part);
+        }
+        digest.setContent(mp);
+        return digest;
+    }
+}
@@ -65,4 +65,27 @@ public class ConnMgr<T> implements Supplier<T>
         }
         return tmp;
 	}
+	
+	/**
+	 * Releases the current connection, if any, through the killer. A later {@link #get()} reconnects.
+	 */
+	public void close()
+	{
+		T tmp;
+		synchronized (this)
+		{
+			tmp = inst;
+			inst = null;
+		}
+		if(tmp != null)
+		try 
+		{
+			log.fine("Closing idle connection");
+			killer.accept(tmp);
+		} 
+		catch (RuntimeException e) 
+		{
+			log.log(Level.SEVERE, "Connection cleanup failed", e);
+		}
+	}
 }
@@ -0,0 +1,142 @@
+package org.sb.mailrelay;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * A pool of {@link ConnMgr} managed connections. Connections are made on first use,
+ * and a caller waits when all of them are busy. The pool can be resized while in use,
+ * connections in use are never closed under their caller.
+ *
+ * @param <T>
+ */
+class ConnPool<T>
+{
+    private final Supplier<T> maker;
+    private final Predicate<T> checker;
+    private final Consumer<T> killer;
+    private final List<ConnMgr<T>> all = new ArrayList<>();
+    private final BlockingQueue<ConnMgr<T>> idle = new LinkedBlockingQueue<>();
+    /* connections in use that are closed when returned, and the count of those that leave the pool then */
+    private final Set<ConnMgr<T>> closeOnReturn = new HashSet<>();
+    private int surplus;
+
+    private ConnPool(int size, Supplier<T> maker, Predicate<T> checker, Consumer<T> killer)
+    {
+        this.maker = maker;
+        this.checker = checker;
+        this.killer = killer;
+        resize(size);
+    }
+
+    static <T> ConnPool<T> wrap(int size, Supplier<T> maker, Predicate<T> checker, Consumer<T> killer)
+    {
+        return new ConnPool<T>(size, maker, checker, killer);
+    }
+
+    /**
+     * Runs the function with a connection borrowed from the pool, waiting for one to become idle if necessary.
+     */
+    <R, E extends Exception> R apply(Try.FunctionEx<? super T, ? extends R, E> func) throws E, IOException
+    {
+        ConnMgr<T> cm;
+        try
+        {
+            cm = idle.take();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection");
+        }
+        try
+        {
+            return func.apply(cm.get());
+        }
+        finally
+        {
+            giveBack(cm);
+        }
+    }
+
+    private void giveBack(ConnMgr<T> cm)
+    {
+        boolean close, leave;
+        synchronized(this)
+        {
+            close = closeOnReturn.remove(cm);
+            leave = surplus > 0;
+            if(leave)
+            {
+                surplus--;
+                all.remove(cm);
+            }
+        }
+        if(close || leave) cm.close();
+        if(!leave) idle.add(cm);
+    }
+
+    synchronized int size()
+    {
+        return all.size() - surplus;
+    }
+
+    /**
+     * Changes the number of connections, idle ones are closed at once and busy ones once they are returned.
+     */
+    void resize(int size)
+    {
+        List<ConnMgr<T>> closed = new ArrayList<>();
+        synchronized(this)
+        {
+            for(int n = all.size() - surplus; n < size; n++)
+            {
+                if(surplus > 0)
+                    surplus--;
+                else
+                {
+                    ConnMgr<T> cm = ConnMgr.wrap(maker, checker, killer);
+                    all.add(cm);
+                    idle.add(cm);
+                }
+            }
+            for(int n = all.size() - surplus; n > size; n--)
+            {
+                ConnMgr<T> cm = idle.poll();
+                if(cm == null)
+                    surplus++;
+                else
+                {
+                    all.remove(cm);
+                    closed.add(cm);
+                }
+            }
+        }
+        closed.forEach(ConnMgr::close);
+    }
+
+    /**
+     * Closes every connection through the killer, idle ones at once and busy ones once they are returned.
+     * The pool remains usable and reconnects on demand.
+     */
+    void close()
+    {
+        List<ConnMgr<T>> closed = new ArrayList<>();
+        synchronized(this)
+        {
+            idle.drainTo(closed);
+            all.stream().filter(cm -> !closed.contains(cm)).forEach(closeOnReturn::add);
+        }
+        closed.forEach(ConnMgr::close);
+        idle.addAll(closed);
+    }
+}
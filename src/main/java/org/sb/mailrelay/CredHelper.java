@@ -23,7 +23,6 @@ import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.client.util.store.FileDataStoreFactory;
 
 class CredHelper
 {
@@ -77,7 +76,7 @@ class CredHelper
                                                                 clientSecrets, Collections.singleton(SCOPE_GMAIL))
                         .setAccessType("offline")
                         .setApprovalPrompt(force ? "force" : "auto")
-                        .setDataStoreFactory(new FileDataStoreFactory(userToken.toFile()))
+                        .setDataStoreFactory(IndexedDataStoreFactory.forDirectory(userToken))
                         .build();
     }
     
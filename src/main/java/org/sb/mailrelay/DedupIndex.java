@@ -0,0 +1,492 @@
+package org.sb.mailrelay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.mail.Address;
+import javax.mail.BodyPart;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * The idempotency keys of the messages sent recently, so that a message submitted again within the window is
+ * acknowledged without being sent twice.
+ * <p>
+ * Keys are 128 bit hashes kept in segment files in the {@code dedup} folder of .mailrelay, each a memory mapped
+ * open addressed table. New keys go to the newest segment, which is sealed and replaced once it is an eighth of the
+ * window old or 60% full; the next one is sized for the rate keys were added to it. A sealed segment does not change
+ * again, it gets a Bloom filter written next to it as it is sealed, so that most lookups of new keys do not touch its
+ * pages, and it is deleted once its last key is older than the window.
+ * The keys found or added most recently are also held in a small in-memory set.
+ * Segments are shared by processes using the same home, inserts are serialized with a lock file.
+ */
+final class DedupIndex
+{
+    private static final Logger log = Logger.getLogger(DedupIndex.class.getPackage().getName());
+
+    static final long DEFAULT_WINDOW = TimeUnit.HOURS.toMillis(24);
+    static final String DIR = "dedup";
+    static final String SEG = ".seg";
+    static final String BLOOM = ".bloom";
+    private static final int MIN_SLOTS = 1 << 12, MAX_SLOTS = 1 << 22;
+    private static final int HEADER = 64;
+    private static final int SLOT = 16;
+    /* header fields */
+    private static final int COUNT = 0, LAST_WRITE = 8, SEALED = 16;
+    private static final int HOT = 1 << 16;
+    private static final long RESCAN_MILLIS = 1000;
+
+    private static final Map<Path, DedupIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * An idempotency key, the first 128 bits of a SHA-256 hash.
+     */
+    static final class Key
+    {
+        final long hi, lo;
+
+        Key(long hi, long lo)
+        {
+            this.hi = hi == 0 ? 1 : hi;
+            this.lo = lo;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof Key && ((Key)o).hi == hi && ((Key)o).lo == lo;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int)(lo ^ (lo >>> 32));
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%016x%016x", hi, lo);
+        }
+    }
+
+    private static final class Segment
+    {
+        final Path file;
+        final long start;
+        final MappedByteBuffer map;
+        final int slots;
+        final int mask;
+        volatile BloomFilter bloom;
+        /* a sealed segment without a filter file is looked up in its table */
+        volatile boolean noBloom;
+
+        /**
+         * @param slots the size of the table of a new segment, the size of an existing one follows from its file
+         */
+        Segment(Path file, long start, int slots) throws IOException
+        {
+            this.file = file;
+            this.start = start;
+            try(FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                        StandardOpenOption.WRITE))
+            {
+                this.slots = ch.size() > HEADER ? (int)((ch.size() - HEADER) / SLOT) : slots;
+                map = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long)this.slots * SLOT);
+            }
+            mask = this.slots - 1;
+        }
+
+        Path bloomFile()
+        {
+            return file.resolveSibling(start + BLOOM);
+        }
+
+        long count()
+        {
+            return map.getLong(COUNT);
+        }
+
+        long lastWrite()
+        {
+            return map.getLong(LAST_WRITE);
+        }
+
+        boolean isSealed()
+        {
+            return map.getLong(SEALED) != 0;
+        }
+
+        /**
+         * @return the slot holding the key, or the empty slot where it would go
+         */
+        private int probe(Key k)
+        {
+            int i = (int)k.lo & mask;
+            while(true)
+            {
+                int at = HEADER + i * SLOT;
+                long hi = map.getLong(at), lo = map.getLong(at + 8);
+                if(hi == 0 || hi == k.hi && lo == k.lo) return i;
+                i = (i + 1) & mask;
+            }
+        }
+
+        boolean contains(Key k)
+        {
+            BloomFilter b = bloom;
+            if(b == null && !noBloom && isSealed()) b = readBloom();
+            if(b != null && !b.mightContain(k.hi)) return false;
+            return map.getLong(HEADER + probe(k) * SLOT) != 0;
+        }
+
+        private BloomFilter readBloom()
+        {
+            try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(bloomFile()))))
+            {
+                return bloom = BloomFilter.read(in);
+            }
+            catch(IOException e)
+            {
+                log.fine(() -> "No Bloom filter for " + file + ": " + e);
+                noBloom = true;
+                return null;
+            }
+        }
+
+        void insert(Key k, long now)
+        {
+            int at = HEADER + probe(k) * SLOT;
+            if(map.getLong(at) != 0) return;
+            map.putLong(at + 8, k.lo);
+            map.putLong(at, k.hi);
+            map.putLong(COUNT, count() + 1);
+            map.putLong(LAST_WRITE, now);
+        }
+
+        /**
+         * Marks the segment sealed, after writing the Bloom filter of its keys.
+         */
+        void seal() throws IOException
+        {
+            BloomFilter b = new BloomFilter(Math.max(1024, count()), 0.01);
+            for(int i = 0; i < slots; i++)
+            {
+                long hi = map.getLong(HEADER + i * SLOT);
+                if(hi != 0) b.add(hi);
+            }
+            Path f = bloomFile(), tmp = f.resolveSibling(f.getFileName() + ".tmp");
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp))))
+            {
+                b.write(out);
+            }
+            Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            bloom = b;
+            map.putLong(SEALED, 1);
+            map.force();
+        }
+    }
+
+    private final Path dir;
+    private final FileChannel lockChannel;
+    /* by start time, the last one is where keys are added */
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    /* key and time added or found, by the key's hash */
+    private final long[] hot = new long[HOT * 3];
+    private final Set<Key> inFlight = ConcurrentHashMap.newKeySet();
+    private long scanned;
+
+    private DedupIndex(Path dir) throws IOException
+    {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        lockChannel = FileChannel.open(dir.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        rescan();
+    }
+
+    /**
+     * The index of the .mailrelay folder, shared within the process.
+     */
+    static DedupIndex forDirectory(Path mailrelay) throws IOException
+    {
+        Path d = mailrelay.resolve(DIR).toAbsolutePath().normalize();
+        DedupIndex idx = indexes.get(d);
+        if(idx == null)
+        synchronized(indexes)
+        {
+            idx = indexes.get(d);
+            if(idx == null)
+            {
+                idx = new DedupIndex(d);
+                indexes.put(d, idx);
+            }
+        }
+        return idx;
+    }
+
+    /**
+     * The key of a message, from {@code --idempotency-key} or, with {@code --dedup}, from a hash of its headers and
+     * content, leaving out those that change every time it is made such as Message-ID and Date. Either is scoped to
+     * the sender and recipients, so the rows of a merge sent with one key are still told apart.
+     */
+    static Optional<Key> key(Map<String, String> nvp, Set<String> flags, String senderAddress, Message msg,
+                                Address[] rcpts) throws IOException, MessagingException
+    {
+        String explicit = nvp.get("idempotency-key");
+        if(explicit == null && !flags.contains("dedup")) return Optional.empty();
+        MessageDigest md;
+        try
+        {
+            md = MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        md.update((senderAddress.toLowerCase(Locale.ROOT) + "\n").getBytes(StandardCharsets.UTF_8));
+        md.update(Stream.of(rcpts).map(a -> a instanceof InternetAddress ? ((InternetAddress)a).getAddress() : a.toString())
+                        .map(a -> a.toLowerCase(Locale.ROOT)).sorted().collect(Collectors.joining(",", "", "\n"))
+                        .getBytes(StandardCharsets.UTF_8));
+        if(explicit != null) md.update(explicit.getBytes(StandardCharsets.UTF_8));
+        else
+        {
+            for(String h : new String[]{"From", "To", "Cc", "Reply-To", "Subject", "In-Reply-To", "References"})
+                md.update((h + ":" + Optional.ofNullable(msg.getHeader(h)).map(v -> String.join(",", v)).orElse("") + "\n")
+                                .getBytes(StandardCharsets.UTF_8));
+            digest(msg, md);
+        }
+        byte[] d = md.digest();
+        long hi = 0, lo = 0;
+        for(int i = 0; i < 8; i++)
+        {
+            hi = hi << 8 | (d[i] & 0xff);
+            lo = lo << 8 | (d[i + 8] & 0xff);
+        }
+        return Optional.of(new Key(hi, lo));
+    }
+
+    /* the content without multipart boundaries, which are made afresh each time */
+    private static void digest(Part p, MessageDigest md) throws IOException, MessagingException
+    {
+        Object content = p.isMimeType("multipart/*") ? p.getContent() : null;
+        if(content instanceof Multipart)
+        {
+            Multipart mp = (Multipart)content;
+            for(int i = 0; i < mp.getCount(); i++) digest(mp.getBodyPart(i), md);
+            return;
+        }
+        OutputStream sink = new DigestOutputStream(new OutputStream()
+        {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        }, md);
+        if(p instanceof BodyPart) p.writeTo(sink);
+        else
+        {
+            md.update(new ContentType(p.getContentType()).getBaseType().toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8));
+            try(InputStream in = p.getInputStream())
+            {
+                byte[] buf = new byte[8192];
+                for(int n; (n = in.read(buf)) > 0;) md.update(buf, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Claims the key for a delivery, unless a message with it was sent within the window or is being sent.
+     *
+     * @return false for a duplicate
+     */
+    boolean begin(Key k, long window) throws IOException
+    {
+        if(!inFlight.add(k)) return false;
+        if(!contains(k, window)) return true;
+        inFlight.remove(k);
+        return false;
+    }
+
+    /**
+     * Releases the key claimed by {@link #begin}, and records it if the message was sent.
+     */
+    void end(Key k, boolean sent, long window) throws IOException
+    {
+        try
+        {
+            if(sent) add(k, window);
+        }
+        finally
+        {
+            inFlight.remove(k);
+        }
+    }
+
+    boolean contains(Key k, long window) throws IOException
+    {
+        if(isHot(k, window)) return true;
+        long oldest = System.currentTimeMillis() - window;
+        List<Segment> segs;
+        synchronized(this)
+        {
+            if(System.currentTimeMillis() - scanned > RESCAN_MILLIS) rescan();
+            segs = new ArrayList<>(segments.values());
+        }
+        Collections.reverse(segs);
+        for(Segment s : segs)
+        {
+            if(s.lastWrite() < oldest && s.count() > 0) break;
+            if(s.contains(k))
+            {
+                setHot(k);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("try")
+    synchronized void add(Key k, long window) throws IOException
+    {
+        try(FileLock lock = lockChannel.lock())
+        {
+            long now = System.currentTimeMillis();
+            Segment active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+            if(active == null || active.isSealed())
+            {
+                rescan();
+                active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+            }
+            if(active == null || active.isSealed() || active.count() * 10 > active.slots * 6L
+                    || now - active.start > window / 8)
+                active = roll(active, now, window);
+            active.insert(k, now);
+        }
+        setHot(k);
+    }
+
+    /* with the lock held */
+    private Segment roll(Segment active, long now, long window) throws IOException
+    {
+        if(active != null && !active.isSealed()) active.seal();
+        long start = Math.max(now, active != null ? active.start + 1 : now);
+        Segment s = new Segment(dir.resolve(start + SEG), start, slots(active, now, window));
+        segments.put(start, s);
+        log.fine(() -> "Started dedup segment " + s.file + " of " + s.slots + " slots");
+        for(Segment old : new ArrayList<>(segments.headMap(start).values()))
+            if(old.lastWrite() < now - window)
+            {
+                segments.remove(old.start);
+                Files.deleteIfExists(old.file);
+                Files.deleteIfExists(old.bloomFile());
+                log.fine(() -> "Deleted expired dedup segment " + old.file);
+            }
+        return s;
+    }
+
+    /**
+     * The table size for the keys the next segment is expected to get, at the rate the last one got them,
+     * so that it is at most 60% full when it is an eighth of the window old.
+     */
+    private static int slots(Segment last, long now, long window)
+    {
+        if(last == null) return MIN_SLOTS;
+        long age = Math.max(1, now - last.start);
+        long need = (long)(last.count() * ((double)(window / 8) / age) / 0.6) + 1;
+        return (int)Math.min(MAX_SLOTS, Math.max(MIN_SLOTS, Long.highestOneBit(need - 1) << 1));
+    }
+
+    private void rescan() throws IOException
+    {
+        Set<Long> found = new HashSet<>();
+        try(DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + SEG))
+        {
+            for(Path p : ds)
+            {
+                String n = p.getFileName().toString();
+                long start;
+                try
+                {
+                    start = Long.parseLong(n.substring(0, n.length() - SEG.length()));
+                }
+                catch(NumberFormatException e)
+                {
+                    continue;
+                }
+                if(!segments.containsKey(start))
+                {
+                    // a segment another process is creating is picked up once it is sized
+                    try
+                    {
+                        if(Files.size(p) <= HEADER) continue;
+                    }
+                    catch(NoSuchFileException e)
+                    {
+                        continue;
+                    }
+                    segments.put(start, new Segment(p, start, MIN_SLOTS));
+                }
+                found.add(start);
+            }
+        }
+        segments.keySet().retainAll(found);
+        scanned = System.currentTimeMillis();
+    }
+
+    private boolean isHot(Key k, long window)
+    {
+        int i = (k.hashCode() & (HOT - 1)) * 3;
+        synchronized(hot)
+        {
+            return hot[i] == k.hi && hot[i + 1] == k.lo && System.currentTimeMillis() - hot[i + 2] < window;
+        }
+    }
+
+    private void setHot(Key k)
+    {
+        int i = (k.hashCode() & (HOT - 1)) * 3;
+        synchronized(hot)
+        {
+            hot[i] = k.hi;
+            hot[i + 1] = k.lo;
+            hot[i + 2] = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.sb.mailrelay;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Enumeration;
+
+import javax.activation.DataHandler;
+import javax.mail.BodyPart;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+import javax.mail.util.ByteArrayDataSource;
+
+/**
+ * Sends 8-bit text as is to servers with the 8BITMIME extension, rather than inflating it by a third with base64 or
+ * quoted-printable and spending the time to encode it.
+ * <p>
+ * Text parts with non-ASCII characters are marked 8bit when they are made, if their lines fit in the 998 octets that
+ * 8bit content allows. When sending, the MAIL FROM command declares {@code BODY=8BITMIME} for a message with 8bit
+ * parts, and {@code SMTPUTF8} for one with UTF-8 headers, where the server supports them. For a server without
+ * 8BITMIME the 8bit parts are encoded again, so the message is still valid there.
+ */
+final class EightBitMime
+{
+    static final String CTE = "Content-Transfer-Encoding";
+    /* the longest line of 8bit content, in octets without the line end, RFC 5322 */
+    static final int MAX_LINE = 998;
+
+    private EightBitMime() {}
+
+    /**
+     * Marks a text part as 8bit if its content has non-ASCII characters and can go as 8bit, so that it is not encoded.
+     *
+     * @return true if the part was marked
+     */
+    static boolean mark(MimePart part) throws MessagingException, IOException
+    {
+        if(!part.isMimeType("text/*") || part.getHeader(CTE) != null) return false;
+        Scan scan = new Scan();
+        part.getDataHandler().writeTo(scan);
+        if(!scan.eightBit || !scan.valid || scan.longest > MAX_LINE) return false;
+        part.setHeader(CTE, "8bit");
+        return true;
+    }
+
+    /* finds if content has octets over 127, and if it can go as 8bit: no NUL, no CR outside CRLF, short lines */
+    private static final class Scan extends OutputStream
+    {
+        boolean eightBit;
+        boolean valid = true;
+        int longest;
+        private int line;
+        private boolean cr;
+
+        @Override
+        public void write(int b)
+        {
+            b &= 0xff;
+            if(cr && b != '\n') valid = false;
+            cr = b == '\r';
+            if(b == '\n' || b == '\r')
+            {
+                line = 0;
+                return;
+            }
+            if(b == 0) valid = false;
+            if(b > 127) eightBit = true;
+            longest = Math.max(longest, ++line);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            for(int i = off; i < off + len; i++) write(b[i]);
+        }
+    }
+
+    /**
+     * @return true if the message or one of its parts is sent as 8bit or binary
+     */
+    static boolean has8BitBody(Message msg) throws MessagingException, IOException
+    {
+        return msg instanceof MimePart && has8Bit((MimePart)msg);
+    }
+
+    private static boolean has8Bit(MimePart part) throws MessagingException, IOException
+    {
+        String cte = part.getEncoding();
+        if(cte != null && (cte.equalsIgnoreCase("8bit") || cte.equalsIgnoreCase("binary"))) return true;
+        if(!part.isMimeType("multipart/*")) return false;
+        Multipart mp = (Multipart)part.getContent();
+        for(int i = 0; i < mp.getCount(); i++)
+        {
+            BodyPart p = mp.getBodyPart(i);
+            if(p instanceof MimePart && has8Bit((MimePart)p)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if a header of the message has non-ASCII characters, which needs SMTPUTF8
+     */
+    static boolean hasUtf8Headers(Message msg) throws MessagingException
+    {
+        if(!(msg instanceof MimeMessage)) return false;
+        for(Enumeration<?> e = ((MimeMessage)msg).getAllHeaderLines(); e.hasMoreElements(); )
+        {
+            String line = (String)e.nextElement();
+            for(int i = 0; i < line.length(); i++)
+                if(line.charAt(i) > 127) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The parameters of the MAIL FROM command for the message, with a leading space, or an empty string.
+     *
+     * @param eightBitMime whether the server supports 8BITMIME
+     * @param smtpUtf8 whether the server supports SMTPUTF8
+     */
+    static String mailParameters(Message msg, boolean eightBitMime, boolean smtpUtf8)
+            throws MessagingException, IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        if(eightBitMime && has8BitBody(msg)) sb.append(" BODY=8BITMIME");
+        if(smtpUtf8 && hasUtf8Headers(msg)) sb.append(" SMTPUTF8");
+        return sb.toString();
+    }
+
+    /**
+     * The message as it can be sent to a server, a copy with its 8bit parts encoded again if the server does not
+     * support 8BITMIME.
+     */
+    static Message forServer(Message msg, boolean eightBitMime) throws MessagingException, IOException
+    {
+        if(eightBitMime || !has8BitBody(msg)) return msg;
+        MimeMessage copy = new MimeMessage((MimeMessage)msg);
+        reencode(copy);
+        copy.saveChanges();
+        return copy;
+    }
+
+    private static void reencode(MimePart part) throws MessagingException, IOException
+    {
+        if(part.isMimeType("multipart/*"))
+        {
+            Multipart mp = (Multipart)part.getContent();
+            for(int i = 0; i < mp.getCount(); i++)
+                if(mp.getBodyPart(i) instanceof MimePart) reencode((MimePart)mp.getBodyPart(i));
+            part.setContent(mp);
+            return;
+        }
+        String cte = part.getEncoding();
+        if(cte == null || !(cte.equalsIgnoreCase("8bit") || cte.equalsIgnoreCase("binary"))) return;
+        part.setDataHandler(new DataHandler(new ByteArrayDataSource(part.getInputStream(), part.getContentType())));
+        part.removeHeader(CTE);
+    }
+}
@@ -0,0 +1,115 @@
+package org.sb.mailrelay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import com.sun.mail.util.CRLFOutputStream;
+
+/**
+ * A message whose MIME encoding is already done. It is written out as is, so the base64 and quoted-printable work
+ * of its parts is not repeated on the thread holding a connection, or for every route and recipient batch it goes
+ * to. The Bcc header is left out, as a transport would. The message must not be modified.
+ * <p>
+ * An encoded message is held in memory reserved from the {@link MemoryBudget}, or in a spill file if the budget
+ * had no room for it. It is closed once sent, to give the memory back.
+ */
+final class EncodedMessage extends MimeMessage implements Closeable
+{
+    private static final List<String> OMITTED = Arrays.asList("Bcc", "Content-Length");
+
+    private final byte[] bytes;
+    private final SpillBuffer buffer;
+
+    private EncodedMessage(byte[] bytes) throws MessagingException
+    {
+        super((Session)null, new SharedByteArrayInputStream(bytes));
+        this.bytes = bytes;
+        this.buffer = null;
+    }
+
+    private EncodedMessage(SpillBuffer buffer) throws MessagingException, IOException
+    {
+        super((Session)null, buffer.inputStream());
+        this.bytes = null;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Encodes the message with CRLF line ends, into the shared memory budget.
+     */
+    static EncodedMessage encode(Message msg) throws IOException, MessagingException
+    {
+        if(msg instanceof EncodedMessage) return (EncodedMessage)msg;
+        SpillBuffer buf = new SpillBuffer(MemoryBudget.shared());
+        try
+        {
+            try(CRLFOutputStream out = new CRLFOutputStream(buf))
+            {
+                if(msg instanceof MimeMessage) ((MimeMessage)msg).writeTo(out, OMITTED.toArray(new String[0]));
+                else msg.writeTo(out);
+            }
+            return new EncodedMessage(buf);
+        }
+        catch(IOException | MessagingException | RuntimeException e)
+        {
+            buf.release();
+            throw e;
+        }
+    }
+
+    /**
+     * A message from bytes that are already encoded, with CRLF line ends and no Bcc header.
+     */
+    static EncodedMessage wrap(byte[] bytes) throws MessagingException
+    {
+        return new EncodedMessage(bytes);
+    }
+
+    /**
+     * @return true if writing the message costs no more than copying its bytes, e.g. one read back from the spool
+     */
+    static boolean isEncoded(Message msg)
+    {
+        return msg instanceof EncodedMessage || msg instanceof Spool.SpooledMessage;
+    }
+
+    /**
+     * The bytes of a message made with {@link #wrap}.
+     */
+    byte[] bytes()
+    {
+        return bytes;
+    }
+
+    @Override
+    public int getSize()
+    {
+        return bytes != null ? bytes.length : (int)Math.min(Integer.MAX_VALUE, buffer.size());
+    }
+
+    @Override
+    public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException
+    {
+        if(ignoreList != null && !OMITTED.containsAll(Arrays.asList(ignoreList))) super.writeTo(os, ignoreList);
+        else if(bytes != null) os.write(bytes);
+        else buffer.writeTo(os);
+    }
+
+    /**
+     * Gives back the memory of the message, or deletes its spill file.
+     */
+    @Override
+    public void close()
+    {
+        if(buffer != null) buffer.release();
+    }
+}
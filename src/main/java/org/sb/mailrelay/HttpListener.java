@@ -0,0 +1,291 @@
+package org.sb.mailrelay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.Address;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.MimePartDataSource;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Accepts messages as json over http and spools them for the relay.
+ * <p>
+ * {@code POST /messages} takes a json object, an array of objects, or an object with a {@code messages} array.
+ * Each object has the fields of the message only: {@code from}, {@code to}, {@code cc}, {@code bcc},
+ * {@code subject}, {@code text}, {@code priority}, {@code at} and {@code delay}. How and where it is sent is set by
+ * the relay's options alone, and a message with any other field is rejected, so that a client cannot point the
+ * credentials of an account at another server. With a token, a request must carry it as an
+ * {@code Authorization: Bearer} header. A {@code multipart/form-data} request carries the json in a part named
+ * {@code messages}, and every other part is attached to each message. The response lists the spool id,
+ * Message-ID and status of each message, in the order submitted.
+ * Connections are kept alive, so a client can stream requests over one connection. Request bodies are buffered
+ * within the {@link MemoryBudget}, spilling to disk past it, and are not read while the budget is exhausted.
+ */
+class HttpListener implements Closeable
+{
+    private static final Logger log = Logger.getLogger(HttpListener.class.getPackage().getName());
+
+    static final Set<String> FIELDS = Collections.unmodifiableSet(new LinkedHashSet<>(
+            Arrays.asList("from", "to", "cc", "bcc", "subject", "text", "priority", "at", "delay")));
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Send send;
+    private final Spool spool;
+    private final Map<String, String> nvp;
+    private final Consumer<String> onSpooled;
+    private final Optional<byte[]> token;
+
+    /**
+     * @param nvp the send options stored with each spooled message
+     * @param token the bearer token requests must carry, if any
+     * @param onSpooled invoked with the id of each message accepted into the spool
+     */
+    HttpListener(InetSocketAddress addr, int threads, Send send, Spool spool, Map<String, String> nvp,
+            Optional<String> token, Consumer<String> onSpooled) throws IOException
+    {
+        this.token = token.map(t -> ("Bearer " + t).getBytes(StandardCharsets.UTF_8));
+        this.send = send;
+        this.spool = spool;
+        this.nvp = nvp;
+        this.onSpooled = onSpooled;
+        server = HttpServer.create(addr, 256);
+        executor = Executors.newFixedThreadPool(threads, r ->
+        {
+            Thread t = new Thread(r, "mailrelay-http");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/messages", this::handle);
+        server.start();
+        log.info("Accepting http submissions on " + server.getAddress());
+    }
+
+    private void handle(HttpExchange ex) throws IOException
+    {
+        SpillBuffer body = null;
+        try
+        {
+            if(!"POST".equals(ex.getRequestMethod()))
+            {
+                respond(ex, 405, Collections.singletonMap("error", "Only POST is supported"));
+                return;
+            }
+            if(!authorized(ex))
+            {
+                log.warning("Refused an http submission from " + ex.getRemoteAddress() + " without the token");
+                ex.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+                respond(ex, 401, Collections.singletonMap("error", "A valid bearer token is required"));
+                return;
+            }
+            String type = Optional.ofNullable(ex.getRequestHeaders().getFirst("Content-Type")).orElse("");
+            Object json;
+            List<DataSource> attachments = new ArrayList<>();
+            MemoryBudget.shared().awaitRoom();
+            try(InputStream in = ex.getRequestBody())
+            {
+                body = SpillBuffer.read(MemoryBudget.shared(), in);
+            }
+            if(type.toLowerCase(Locale.ROOT).startsWith("multipart/"))
+                json = parseMultipart(body.dataSource(type), attachments);
+            else
+                json = CredHelper.jfac.createJsonParser(body.inputStream(), StandardCharsets.UTF_8).parse(Object.class);
+            List<Map<String, Object>> results = new ArrayList<>();
+            for(Map<?, ?> m : messages(json)) results.add(submit(m, attachments));
+            respond(ex, 200, json instanceof Map && !((Map<?, ?>)json).containsKey("messages") ? results.get(0) : results);
+        }
+        catch(IOException | MessagingException | IllegalArgumentException e)
+        {
+            log.log(Level.FINE, "Bad request", e);
+            respond(ex, 400, Collections.singletonMap("error", String.valueOf(e.getMessage())));
+        }
+        catch(RuntimeException e)
+        {
+            log.log(Level.SEVERE, "Request failed", e);
+            respond(ex, 500, Collections.singletonMap("error", String.valueOf(e.getMessage())));
+        }
+        finally
+        {
+            if(body != null) body.release();
+            ex.close();
+        }
+    }
+
+    private boolean authorized(HttpExchange ex)
+    {
+        if(!token.isPresent()) return true;
+        String auth = ex.getRequestHeaders().getFirst("Authorization");
+        return auth != null && MessageDigest.isEqual(token.get(), auth.trim().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parses the parts in place, the attachments read their content from the request body when they are written.
+     */
+    private Object parseMultipart(DataSource body, List<DataSource> attachments) throws IOException, MessagingException
+    {
+        MimeMultipart mp = new MimeMultipart(body);
+        Object json = null;
+        for(int i = 0; i < mp.getCount(); i++)
+        {
+            BodyPart part = mp.getBodyPart(i);
+            String[] disp = part.getHeader("Content-Disposition");
+            String name = disp == null ? null : param(disp[0], "name");
+            if("messages".equals(name) || "message".equals(name))
+                json = CredHelper.jfac.createJsonParser(part.getInputStream(), StandardCharsets.UTF_8).parse(Object.class);
+            else
+                attachments.add(new PartSource((MimePart)part, Optional.ofNullable(part.getFileName()).orElse(name)));
+        }
+        if(json == null) throw new IllegalArgumentException("No 'messages' part in the request");
+        return json;
+    }
+
+    /**
+     * The decoded content of a part of the request, under the file name it was uploaded with.
+     */
+    private static final class PartSource extends MimePartDataSource
+    {
+        private final String name;
+
+        PartSource(MimePart part, String name)
+        {
+            super(part);
+            this.name = name;
+        }
+
+        @Override
+        public String getName()
+        {
+            return name;
+        }
+    }
+
+    private static String param(String header, String name)
+    {
+        for(String p : header.split(";"))
+        {
+            String[] kv = p.trim().split("=", 2);
+            if(kv.length == 2 && kv[0].trim().equalsIgnoreCase(name)) return Cmd.dequote(kv[1].trim());
+        }
+        return null;
+    }
+
+    private static Collection<Map<?, ?>> messages(Object json)
+    {
+        if(json instanceof Map && ((Map<?, ?>)json).containsKey("messages")) json = ((Map<?, ?>)json).get("messages");
+        if(json instanceof Map) return Collections.singletonList((Map<?, ?>)json);
+        if(json instanceof List)
+            return ((List<?>)json).stream().map(o ->
+                    {
+                        if(o instanceof Map) return (Map<?, ?>)o;
+                        throw new IllegalArgumentException("Messages must be json objects");
+                    }).collect(Collectors.toList());
+        throw new IllegalArgumentException("Expected a json object or array");
+    }
+
+    /**
+     * Spools one message, a message that is rejected does not affect the others of the batch.
+     */
+    private Map<String, Object> submit(Map<?, ?> json, List<DataSource> attachments)
+    {
+        Map<String, Object> result = new LinkedHashMap<>();
+        try
+        {
+            Map<String, String> opts = new LinkedHashMap<>(nvp);
+            for(Map.Entry<?, ?> f : json.entrySet())
+            {
+                String field = String.valueOf(f.getKey()).toLowerCase(Locale.ROOT);
+                if(!FIELDS.contains(field))
+                    throw new IllegalArgumentException("Unknown field '" + f.getKey() + "', expected one of " + FIELDS);
+                opts.put(field, value(f.getValue()));
+            }
+            String from = opts.get("from");
+            if(from == null) throw new IllegalStateException("No 'from' specified");
+
+            List<MimeBodyPart> parts = new ArrayList<>();
+            for(DataSource ds : attachments)
+            {
+                MimeBodyPart part = new MimeBodyPart();
+                part.setDataHandler(new DataHandler(ds));
+                if(ds.getName() != null) part.setFileName(ds.getName());
+                parts.add(part);
+            }
+            Set<String> flags = Collections.emptySet();
+            MimeMessage msg = send.makeMessage(opts, flags, parts);
+            Address[] rcpts = msg.getAllRecipients();
+            if(rcpts == null || rcpts.length == 0) throw new IllegalStateException("No recipients specified");
+            Optional<Long> due = Send.dueTime(opts);
+            LaneScheduler.priority(opts);
+            String id = spool.put(from, rcpts, msg, due.orElseGet(System::currentTimeMillis),
+                                    Relay.sendOptions(opts), flags);
+            result.put("id", id);
+            result.put("messageId", msg.getMessageID());
+            result.put("status", due.isPresent() ? "scheduled" : "queued");
+            onSpooled.accept(id);
+        }
+        catch(IOException | MessagingException | RuntimeException e)
+        {
+            log.log(Level.FINE, "Rejected message", e);
+            result.put("status", "rejected");
+            result.put("error", String.valueOf(e.getMessage()));
+        }
+        return result;
+    }
+
+    private static String value(Object v)
+    {
+        if(v instanceof Collection)
+            return ((Collection<?>)v).stream().map(String::valueOf).collect(Collectors.joining(","));
+        return String.valueOf(v);
+    }
+
+    private static void respond(HttpExchange ex, int code, Object body) throws IOException
+    {
+        byte[] b = CredHelper.jfac.toString(body).getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        ex.sendResponseHeaders(code, b.length);
+        try(OutputStream out = ex.getResponseBody())
+        {
+            out.write(b);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop(1);
+        executor.shutdown();
+    }
+}
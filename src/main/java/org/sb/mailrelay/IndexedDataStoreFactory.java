@@ -0,0 +1,527 @@
+package org.sb.mailrelay;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import com.google.api.client.util.IOUtils;
+import com.google.api.client.util.store.AbstractDataStore;
+import com.google.api.client.util.store.AbstractDataStoreFactory;
+import com.google.api.client.util.store.DataStore;
+import com.google.api.client.util.store.FileDataStoreFactory;
+
+/**
+ * A {@link com.google.api.client.util.store.DataStoreFactory} that keeps each data store in a pair of files,
+ * a slotted record file {@code <id>.dat} with one record per key, and an open addressing hash index {@code <id>.idx}.
+ * Loading or storing a key reads or writes only that key's index bucket and record, so the cost does not grow with
+ * the number of keys, unlike {@link FileDataStoreFactory} which rewrites the whole store on every change.
+ * <p>
+ * A store previously written by {@link FileDataStoreFactory} in the same directory is migrated on first use, and
+ * the old file is renamed with a {@code .migrated} suffix.
+ */
+class IndexedDataStoreFactory extends AbstractDataStoreFactory
+{
+    private static final Logger log = Logger.getLogger(IndexedDataStoreFactory.class.getPackage().getName());
+
+    private static final Map<Path, IndexedDataStoreFactory> factories = new ConcurrentHashMap<>();
+
+    private final Path dir;
+
+    private IndexedDataStoreFactory(Path dir) throws IOException
+    {
+        this.dir = dir;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Returns the factory for the directory, shared within the process so that the read cache is too.
+     */
+    static IndexedDataStoreFactory forDirectory(Path dir) throws IOException
+    {
+        Path key = dir.toAbsolutePath().normalize();
+        IndexedDataStoreFactory fac = factories.get(key);
+        if(fac == null)
+        synchronized(factories)
+        {
+            fac = factories.get(key);
+            if(fac == null)
+            {
+                fac = new IndexedDataStoreFactory(key);
+                factories.put(key, fac);
+            }
+        }
+        return fac;
+    }
+
+    Path getDataDirectory()
+    {
+        return dir;
+    }
+
+    @Override
+    protected <V extends Serializable> DataStore<V> createDataStore(String id) throws IOException
+    {
+        IndexedDataStore<V> store = new IndexedDataStore<>(this, id);
+        migrate(store);
+        return store;
+    }
+
+    private <V extends Serializable> void migrate(IndexedDataStore<V> store) throws IOException
+    {
+        Path old = dir.resolve(store.getId());
+        if(Files.notExists(old) || Files.isDirectory(old)) return;
+        log.info("Migrating " + old + " to an indexed data store");
+        DataStore<V> src = new FileDataStoreFactory(dir.toFile()).getDataStore(store.getId());
+        for(String key : src.keySet())
+            store.set(key, src.get(key));
+        Files.move(old, dir.resolve(store.getId() + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static final class IndexedDataStore<V extends Serializable> extends AbstractDataStore<V>
+    {
+        private static final int MAGIC = 0x4d524958;
+        private static final int SLOT = 1024;
+        private static final int SLOT_HEADER = 16;
+        private static final int INDEX_HEADER = 32;
+        private static final int BUCKET = 12;
+        private static final int MIN_CAPACITY = 64;
+        private static final int EMPTY = 0;
+        private static final int TOMBSTONE = -1;
+        private static final int CACHE_SIZE = 1024;
+
+        private final FileChannel dat;
+        private final FileChannel idx;
+
+        /* the index header, refreshed from disk under the file lock */
+        private int capacity;
+        private int count;
+        private int tombstones;
+        private int freeHead;
+        /* the bucket table starts this many buckets after the header */
+        private int base;
+        private long generation;
+
+        private long cachedGeneration = -1;
+        private final LinkedHashMap<String, V> cache = new LinkedHashMap<String, V>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest)
+            {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+        @SuppressWarnings("try")
+        private IndexedDataStore(IndexedDataStoreFactory fac, String id) throws IOException
+        {
+            super(fac, id);
+            dat = open(fac.dir.resolve(id + ".dat"));
+            idx = open(fac.dir.resolve(id + ".idx"));
+            try(FileLock lock = idx.lock())
+            {
+                if(idx.size() < INDEX_HEADER) initIndex(MIN_CAPACITY);
+                else readHeader();
+            }
+        }
+
+        private static FileChannel open(Path file) throws IOException
+        {
+            boolean created = Files.notExists(file);
+            FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE);
+            if(created)
+            try
+            {
+                Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+            }
+            catch(UnsupportedOperationException e)
+            {
+                log.fine(() -> "Could not restrict permissions of " + file);
+            }
+            return ch;
+        }
+
+        @Override
+        public IndexedDataStoreFactory getDataStoreFactory()
+        {
+            return (IndexedDataStoreFactory) super.getDataStoreFactory();
+        }
+
+        @Override
+        @SuppressWarnings("try")
+        public synchronized Set<String> keySet() throws IOException
+        {
+            Set<String> keys = new HashSet<>();
+            try(FileLock lock = idx.lock(0, Long.MAX_VALUE, true))
+            {
+                readHeader();
+                for(int slot : liveSlots()) keys.add(readKey(slot));
+            }
+            return keys;
+        }
+
+        @Override
+        @SuppressWarnings("try")
+        public synchronized Collection<V> values() throws IOException
+        {
+            List<V> vals = new ArrayList<>();
+            try(FileLock lock = idx.lock(0, Long.MAX_VALUE, true))
+            {
+                readHeader();
+                for(int slot : liveSlots()) vals.add(readValue(slot));
+            }
+            return vals;
+        }
+
+        @Override
+        @SuppressWarnings("try")
+        public synchronized V get(String key) throws IOException
+        {
+            if(key == null) return null;
+            try(FileLock lock = idx.lock(0, Long.MAX_VALUE, true))
+            {
+                readHeader();
+                V val = cache.get(key);
+                if(val != null) return val;
+                long[] loc = find(key);
+                if(loc[1] < 0) return null;
+                val = readValue((int)loc[1]);
+                cache.put(key, val);
+                return val;
+            }
+        }
+
+        @Override
+        @SuppressWarnings("try")
+        public synchronized DataStore<V> set(String key, V value) throws IOException
+        {
+            if(key == null || value == null) throw new NullPointerException();
+            byte[] k = key.getBytes(StandardCharsets.UTF_8);
+            byte[] v = IOUtils.serialize(value);
+            int slots = slotsFor(k.length, v.length);
+            try(FileLock lock = idx.lock())
+            {
+                readHeader();
+                if((count + tombstones + 1) * 10L > capacity * 7L) rehash();
+                long[] loc = find(key);
+                int slot = (int)loc[1];
+                int run = slot < 0 ? 0 : slotCount(slot);
+                if(run < slots)
+                {
+                    if(slot >= 0) free(slot);
+                    else
+                    {
+                        if(readBucketSlot((int)loc[0]) == TOMBSTONE) tombstones--;
+                        count++;
+                    }
+                    int[] alloc = allocate(slots);
+                    slot = alloc[0];
+                    run = alloc[1];
+                    writeBucket((int)loc[0], hash(key), slot + 1);
+                }
+                writeRecord(slot, run, k, v);
+                generation++;
+                writeHeader();
+                cache.put(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        @SuppressWarnings("try")
+        public synchronized DataStore<V> delete(String key) throws IOException
+        {
+            if(key == null) return this;
+            try(FileLock lock = idx.lock())
+            {
+                readHeader();
+                long[] loc = find(key);
+                if(loc[1] >= 0)
+                {
+                    writeBucket((int)loc[0], hash(key), TOMBSTONE);
+                    free((int)loc[1]);
+                    count--;
+                    tombstones++;
+                    generation++;
+                    writeHeader();
+                }
+                cache.remove(key);
+            }
+            return this;
+        }
+
+        @Override
+        @SuppressWarnings("try")
+        public synchronized DataStore<V> clear() throws IOException
+        {
+            try(FileLock lock = idx.lock())
+            {
+                readHeader();
+                long gen = generation;
+                dat.truncate(0);
+                idx.truncate(0);
+                initIndex(MIN_CAPACITY);
+                generation = gen + 1;
+                writeHeader();
+                cache.clear();
+            }
+            return this;
+        }
+
+        @Override
+        @SuppressWarnings("try")
+        public synchronized int size() throws IOException
+        {
+            try(FileLock lock = idx.lock(0, Long.MAX_VALUE, true))
+            {
+                readHeader();
+                return count;
+            }
+        }
+
+        @Override
+        public boolean isEmpty() throws IOException
+        {
+            return size() == 0;
+        }
+
+        @Override
+        public boolean containsKey(String key) throws IOException
+        {
+            return get(key) != null;
+        }
+
+        @Override
+        public boolean containsValue(V value) throws IOException
+        {
+            return values().contains(value);
+        }
+
+        /**
+         * @return the bucket where the key is or should go, and its record slot, or -1 if absent
+         */
+        private long[] find(String key) throws IOException
+        {
+            long h = hash(key);
+            int b = (int)Math.floorMod(h, (long)capacity);
+            int firstFree = -1;
+            for(int i = 0; i < capacity; i++, b = (b + 1) % capacity)
+            {
+                ByteBuffer buf = read(idx, bucketPos(b), BUCKET);
+                long bh = buf.getLong();
+                int state = buf.getInt();
+                if(state == EMPTY) return new long[]{firstFree >= 0 ? firstFree : b, -1};
+                if(state == TOMBSTONE)
+                {
+                    if(firstFree < 0) firstFree = b;
+                }
+                else if(bh == h && key.equals(readKey(state - 1)))
+                    return new long[]{b, state - 1};
+            }
+            if(firstFree < 0) throw new IOException("Index " + getId() + " is full");
+            return new long[]{firstFree, -1};
+        }
+
+        private List<Integer> liveSlots() throws IOException
+        {
+            List<Integer> slots = new ArrayList<>(count);
+            ByteBuffer buf = read(idx, bucketPos(0), capacity * BUCKET);
+            for(int b = 0; b < capacity; b++)
+            {
+                buf.getLong();
+                int state = buf.getInt();
+                if(state > 0) slots.add(state - 1);
+            }
+            return slots;
+        }
+
+        /**
+         * Writes the new table where it does not overlap the old one and syncs it before the header is switched to
+         * it, so a crash leaves one table or the other. It goes before the old table if there is room, else after.
+         */
+        private void rehash() throws IOException
+        {
+            int newCap = Math.max(MIN_CAPACITY, (count + 1) * 10 / 7 * 2);
+            log.fine(() -> "Rehashing index " + getId() + " to " + newCap + " buckets");
+            ByteBuffer old = read(idx, bucketPos(0), capacity * BUCKET);
+            ByteBuffer buckets = ByteBuffer.allocate(newCap * BUCKET);
+            for(int b = 0; b < capacity; b++)
+            {
+                long h = old.getLong();
+                int state = old.getInt();
+                if(state <= 0) continue;
+                int nb = (int)Math.floorMod(h, (long)newCap);
+                while(buckets.getInt(nb * BUCKET + 8) != EMPTY) nb = (nb + 1) % newCap;
+                buckets.putLong(nb * BUCKET, h).putInt(nb * BUCKET + 8, state);
+            }
+            int newBase = newCap <= base ? 0 : base + capacity;
+            write(idx, INDEX_HEADER + (long)newBase * BUCKET, buckets);
+            idx.force(false);
+            base = newBase;
+            capacity = newCap;
+            tombstones = 0;
+            writeHeader();
+            idx.force(false);
+            idx.truncate(bucketPos(capacity));
+        }
+
+        /**
+         * @return the first slot of a free run of at least {@code slots} slots, and the run length
+         */
+        private int[] allocate(int slots) throws IOException
+        {
+            if(freeHead >= 0)
+            {
+                int run = slotCount(freeHead);
+                if(run >= slots)
+                {
+                    int slot = freeHead;
+                    freeHead = read(dat, (long)slot * SLOT + 12, 4).getInt();
+                    return new int[]{slot, run};
+                }
+            }
+            return new int[]{(int)((dat.size() + SLOT - 1) / SLOT), slots};
+        }
+
+        private void free(int slot) throws IOException
+        {
+            ByteBuffer hdr = ByteBuffer.allocate(SLOT_HEADER);
+            hdr.putInt(slotCount(slot)).putInt(-1).putInt(0).putInt(freeHead).flip();
+            write(dat, (long)slot * SLOT, hdr);
+            freeHead = slot;
+        }
+
+        private int slotCount(int slot) throws IOException
+        {
+            return read(dat, (long)slot * SLOT, 4).getInt();
+        }
+
+        private void writeRecord(int slot, int slots, byte[] k, byte[] v) throws IOException
+        {
+            ByteBuffer rec = ByteBuffer.allocate(SLOT_HEADER + k.length + v.length);
+            rec.putInt(slots).putInt(k.length).putInt(v.length).putInt(-1).put(k).put(v).flip();
+            write(dat, (long)slot * SLOT, rec);
+        }
+
+        private String readKey(int slot) throws IOException
+        {
+            ByteBuffer hdr = read(dat, (long)slot * SLOT, SLOT_HEADER);
+            hdr.getInt();
+            int klen = hdr.getInt();
+            ByteBuffer k = read(dat, (long)slot * SLOT + SLOT_HEADER, klen);
+            return new String(k.array(), 0, klen, StandardCharsets.UTF_8);
+        }
+
+        private V readValue(int slot) throws IOException
+        {
+            ByteBuffer hdr = read(dat, (long)slot * SLOT, SLOT_HEADER);
+            hdr.getInt();
+            int klen = hdr.getInt();
+            int vlen = hdr.getInt();
+            return IOUtils.deserialize(read(dat, (long)slot * SLOT + SLOT_HEADER + klen, vlen).array());
+        }
+
+        private static int slotsFor(int klen, int vlen)
+        {
+            return (SLOT_HEADER + klen + vlen + SLOT - 1) / SLOT;
+        }
+
+        private void initIndex(int cap) throws IOException
+        {
+            capacity = cap;
+            count = tombstones = 0;
+            freeHead = -1;
+            base = 0;
+            generation = 0;
+            writeHeader();
+            write(idx, INDEX_HEADER, ByteBuffer.allocate(cap * BUCKET));
+        }
+
+        private void readHeader() throws IOException
+        {
+            ByteBuffer hdr = read(idx, 0, INDEX_HEADER);
+            if(hdr.getInt() != MAGIC) throw new IOException("Not an index file for " + getId());
+            capacity = hdr.getInt();
+            count = hdr.getInt();
+            tombstones = hdr.getInt();
+            freeHead = hdr.getInt();
+            base = hdr.getInt();
+            generation = hdr.getLong();
+            if(generation != cachedGeneration)
+            {
+                cache.clear();
+                cachedGeneration = generation;
+            }
+        }
+
+        private void writeHeader() throws IOException
+        {
+            ByteBuffer hdr = ByteBuffer.allocate(INDEX_HEADER);
+            hdr.putInt(MAGIC).putInt(capacity).putInt(count).putInt(tombstones).putInt(freeHead).putInt(base)
+                .putLong(generation).flip();
+            write(idx, 0, hdr);
+            cachedGeneration = generation;
+        }
+
+        private int readBucketSlot(int b) throws IOException
+        {
+            return read(idx, bucketPos(b) + 8, 4).getInt();
+        }
+
+        private void writeBucket(int b, long h, int state) throws IOException
+        {
+            ByteBuffer buf = ByteBuffer.allocate(BUCKET);
+            buf.putLong(h).putInt(state).flip();
+            write(idx, bucketPos(b), buf);
+        }
+
+        private long bucketPos(int b)
+        {
+            return INDEX_HEADER + ((long)base + b) * BUCKET;
+        }
+
+        private static long hash(String key)
+        {
+            long h = 0xcbf29ce484222325L;
+            for(byte b : key.getBytes(StandardCharsets.UTF_8))
+            {
+                h ^= b & 0xff;
+                h *= 0x100000001b3L;
+            }
+            return h;
+        }
+
+        private static ByteBuffer read(FileChannel ch, long pos, int len) throws IOException
+        {
+            ByteBuffer buf = ByteBuffer.allocate(len);
+            while(buf.hasRemaining())
+                if(ch.read(buf, pos + buf.position()) < 0) throw new IOException("Unexpected end of store file");
+            buf.flip();
+            return buf;
+        }
+
+        private static void write(FileChannel ch, long pos, ByteBuffer buf) throws IOException
+        {
+            while(buf.hasRemaining()) ch.write(buf, pos + buf.position());
+        }
+    }
+}
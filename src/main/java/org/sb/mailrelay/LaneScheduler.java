@@ -0,0 +1,238 @@
+package org.sb.mailrelay;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+/**
+ * Dispatches deliveries to a fixed set of worker threads through lanes chosen by message size and priority.
+ * Lanes are served by smooth weighted round robin, and within a lane the senders take turns, so one busy lane
+ * or sender does not hold up the others. Large messages are limited to a share of the workers.
+ */
+class LaneScheduler
+{
+    private static final Logger log = Logger.getLogger(LaneScheduler.class.getPackage().getName());
+
+    static final long DEFAULT_LARGE_BYTES = 5L << 20;
+
+    enum Lane
+    {
+        URGENT(8), NORMAL(4), BULK(1), LARGE(1);
+
+        final int weight;
+
+        Lane(int weight)
+        {
+            this.weight = weight;
+        }
+    }
+
+    private static final class Job
+    {
+        final Try.SupplierEx<Void, ? extends Exception> task;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Job(Try.SupplierEx<Void, ? extends Exception> task)
+        {
+            this.task = task;
+        }
+    }
+
+    private static final class Queue
+    {
+        final Lane lane;
+        /* per sender queues, in the order senders take their turn */
+        final LinkedHashMap<String, ArrayDeque<Job>> senders = new LinkedHashMap<>();
+        int current;
+        int running;
+        int pending;
+
+        Queue(Lane lane)
+        {
+            this.lane = lane;
+        }
+
+        Job poll()
+        {
+            Map.Entry<String, ArrayDeque<Job>> head = senders.entrySet().iterator().next();
+            String sender = head.getKey();
+            ArrayDeque<Job> jobs = senders.remove(sender);
+            Job job = jobs.poll();
+            if(!jobs.isEmpty()) senders.put(sender, jobs);
+            pending--;
+            return job;
+        }
+    }
+
+    private final long largeBytes;
+    private final int maxLarge;
+    private final Map<Lane, Queue> queues = new EnumMap<>(Lane.class);
+    private final Thread[] workers;
+    private volatile boolean shutdown;
+
+    /**
+     * @param workers the number of concurrent deliveries
+     * @param largeBytes messages whose encoded size is at least this are sent through the large lane
+     */
+    LaneScheduler(int workers, long largeBytes)
+    {
+        this.largeBytes = largeBytes;
+        this.maxLarge = Math.max(1, workers / 4);
+        for(Lane l : Lane.values()) queues.put(l, new Queue(l));
+        this.workers = new Thread[workers];
+        for(int i = 0; i < workers; i++)
+        {
+            Thread t = new Thread(this::work, "mailrelay-lane-" + i);
+            t.setDaemon(true);
+            t.start();
+            this.workers[i] = t;
+        }
+    }
+
+    /**
+     * The lane of the {@code --priority} option, checked when a message is submitted so that a typo is rejected
+     * rather than failing its delivery.
+     *
+     * @throws IllegalStateException if the priority is not urgent, normal or bulk
+     */
+    static Optional<Lane> priority(Map<String, String> nvp)
+    {
+        String p = nvp.get("priority");
+        if(p == null) return Optional.empty();
+        switch(p.trim().toLowerCase(Locale.ROOT))
+        {
+            case "urgent": return Optional.of(Lane.URGENT);
+            case "normal": return Optional.of(Lane.NORMAL);
+            case "bulk": return Optional.of(Lane.BULK);
+            default: throw new IllegalStateException("Invalid priority: " + p + ", expected urgent, normal or bulk");
+        }
+    }
+
+    /**
+     * Picks the lane by size first, then by the {@code --priority} option, falling back to the message's
+     * X-Priority header. The message is the one encoded by the pipeline, whose size is that of its bytes.
+     */
+    Lane classify(Message msg, Map<String, String> nvp) throws MessagingException
+    {
+        if(msg.getSize() >= largeBytes) return Lane.LARGE;
+        Optional<Lane> prio;
+        try
+        {
+            prio = priority(nvp);
+        }
+        catch(IllegalStateException e)
+        {
+            // an entry spooled before priorities were checked
+            log.warning(e.getMessage() + ", sending with the normal priority");
+            return Lane.NORMAL;
+        }
+        if(!prio.isPresent())
+        {
+            String[] xp = msg.getHeader("X-Priority");
+            if(xp != null && xp.length > 0)
+            {
+                String p = xp[0].trim();
+                prio = Optional.of(p.startsWith("1") || p.startsWith("2") ? Lane.URGENT
+                                        : p.startsWith("4") || p.startsWith("5") ? Lane.BULK : Lane.NORMAL);
+            }
+        }
+        return prio.orElse(Lane.NORMAL);
+    }
+
+    CompletableFuture<Void> submit(String sender, Lane lane, Try.SupplierEx<Void, ? extends Exception> task)
+    {
+        Job job = new Job(task);
+        synchronized(queues)
+        {
+            if(shutdown) throw new IllegalStateException("The scheduler is shut down");
+            Queue q = queues.get(lane);
+            q.senders.computeIfAbsent(sender, s -> new ArrayDeque<>()).add(job);
+            q.pending++;
+            queues.notify();
+        }
+        return job.done;
+    }
+
+    /**
+     * Stops the workers once the queued jobs are done.
+     */
+    void shutdown()
+    {
+        synchronized(queues)
+        {
+            shutdown = true;
+            queues.notifyAll();
+        }
+    }
+
+    private void work()
+    {
+        for(;;)
+        {
+            Queue q;
+            Job job;
+            synchronized(queues)
+            {
+                while((q = next()) == null)
+                {
+                    if(shutdown && queues.values().stream().allMatch(qu -> qu.pending == 0)) return;
+                    try
+                    {
+                        queues.wait();
+                    }
+                    catch(InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+                job = q.poll();
+                q.running++;
+            }
+            try
+            {
+                job.task.get();
+                job.done.complete(null);
+            }
+            catch(Exception | Error e)
+            {
+                log.log(Level.FINE, "Delivery failed", e);
+                job.done.completeExceptionally(e);
+            }
+            finally
+            {
+                synchronized(queues)
+                {
+                    q.running--;
+                    queues.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Smooth weighted round robin over the lanes that have work and spare capacity.
+     */
+    private Queue next()
+    {
+        int total = 0;
+        Queue best = null;
+        for(Queue q : queues.values())
+        {
+            if(q.pending == 0 || (q.lane == Lane.LARGE && q.running >= maxLarge)) continue;
+            q.current += q.lane.weight;
+            total += q.lane.weight;
+            if(best == null || q.current > best.current) best = q;
+        }
+        if(best != null) best.current -= total;
+        return best;
+    }
+}
@@ -0,0 +1,479 @@
+package org.sb.mailrelay;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * The outcome of every recipient of every message, in an append only binary log in the {@code ledger} folder of
+ * .mailrelay.
+ * <p>
+ * The log is split in memory mapped segments of {@link #SEGMENT_BYTES}, the newest one is appended to under a lock
+ * file so that several processes can share it. A record is its length followed by the time, duration, smtp reply
+ * code, outcome, Message-ID, recipient, sender and reply text; the length is written last, so a record is only seen
+ * once complete. When a segment is full it is sealed and indexed: the {@code .idx} file next to it is a sorted array
+ * of longs, each the top 40 bits of the hash of a Message-ID or recipient and the 24 bit offset of its record, so a
+ * lookup is a binary search per segment and a read of the candidate records. The keys of the newest segment are
+ * kept in memory, read as it grows.
+ * <p>
+ * Only the newest segment stays mapped, sealed segments are mapped when looked up and up to
+ * {@value #MAPPED_SEGMENTS} of them are kept. With a {@code --ledger-retention}, the segments whose newest record is
+ * older than it are deleted when a segment is sealed.
+ */
+final class Ledger
+{
+    private static final Logger log = Logger.getLogger(Ledger.class.getPackage().getName());
+
+    static final String DIR = "ledger";
+    static final String SEG = ".seg";
+    static final String IDX = ".idx";
+    static final int SEGMENT_BYTES = 1 << 24;
+    private static final int HEADER = 64;
+    /* header fields */
+    private static final int END = 0, SEALED = 8, NEWEST = 16;
+    private static final int OFFSET_BITS = 24;
+    private static final int MAX_REPLY = 1000;
+    private static final int MAPPED_SEGMENTS = 16;
+    private static final long MAPPED_IDLE_MILLIS = 5 * 60_000;
+
+    /* how long segments are kept, 0 to keep them all */
+    private static volatile long retentionMillis;
+
+    private static final Map<Path, Ledger> ledgers = new ConcurrentHashMap<>();
+
+    enum Outcome {DELIVERED, FAILED, SUPPRESSED, DUPLICATE}
+
+    static final class Entry
+    {
+        final long time;
+        final int millis;
+        final int code;
+        final Outcome outcome;
+        final String messageId;
+        final String recipient;
+        final String sender;
+        final String reply;
+
+        Entry(long time, int millis, int code, Outcome outcome, String messageId, String recipient, String sender,
+                String reply)
+        {
+            this.time = time;
+            this.millis = millis;
+            this.code = code;
+            this.outcome = outcome;
+            this.messageId = messageId == null ? "" : messageId;
+            this.recipient = recipient.toLowerCase(Locale.ROOT);
+            this.sender = sender == null ? "" : sender;
+            this.reply = reply == null ? "" : reply.length() > MAX_REPLY ? reply.substring(0, MAX_REPLY) : reply;
+        }
+
+        @Override
+        public String toString()
+        {
+            return Instant.ofEpochMilli(time) + "\t" + outcome + "\t" + (code > 0 ? code : "-") + "\t" + recipient
+                    + "\t" + messageId + "\t" + sender + "\t" + millis + "ms" + (reply.isEmpty() ? "" : "\t" + reply);
+        }
+    }
+
+    private static final class Segment
+    {
+        final long id;
+        final Path file;
+        final MappedByteBuffer map;
+        LongBuffer index;
+        /* the index keys of the records of an unsealed segment, in the order read */
+        long[] keys = new long[1024];
+        int keyCount;
+        long keyedTo = HEADER;
+
+        /**
+         * @param create true to create the file if missing, false if it is sealed and may have been deleted
+         */
+        Segment(long id, Path file, boolean create) throws IOException
+        {
+            this.id = id;
+            this.file = file;
+            try(FileChannel ch = create ? FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                                StandardOpenOption.WRITE)
+                                        : FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE))
+            {
+                if(ch.size() < SEGMENT_BYTES) ch.truncate(SEGMENT_BYTES);
+                map = ch.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+            }
+            if(map.getLong(END) == 0) map.putLong(END, HEADER);
+        }
+
+        long end()
+        {
+            return map.getLong(END);
+        }
+
+        boolean isSealed()
+        {
+            return map.getLong(SEALED) != 0;
+        }
+
+        /**
+         * Adds the index keys of the records appended since the last call.
+         */
+        void keyNew() throws IOException
+        {
+            long end = end();
+            for(int at = (int)keyedTo; at < end; at += 4 + map.getInt(at))
+            {
+                Entry e = read(at);
+                if(keyCount + 2 > keys.length) keys = Arrays.copyOf(keys, keys.length * 2);
+                keys[keyCount++] = indexKey(hash("m", e.messageId), at);
+                keys[keyCount++] = indexKey(hash("r", e.recipient), at);
+            }
+            keyedTo = end;
+        }
+
+        Entry read(int at) throws IOException
+        {
+            int len = map.getInt(at);
+            byte[] b = new byte[len];
+            ByteBuffer dup = map.duplicate();
+            dup.position(at + 4);
+            dup.get(b);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(b));
+            long time = in.readLong();
+            int millis = in.readInt();
+            int code = in.readShort();
+            Outcome outcome = Outcome.values()[in.readByte()];
+            return new Entry(time, millis, code, outcome, in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+        }
+    }
+
+    private final Path dir;
+    private final FileChannel lockChannel;
+    /* the files of the segments by id, the newest is the active one */
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private Segment active;
+    private final BoundedCache<Long, Segment> sealed = new BoundedCache<>("ledger segment", MAPPED_SEGMENTS,
+                                                                            MAPPED_IDLE_MILLIS, s -> {});
+
+    private Ledger(Path dir) throws IOException
+    {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        lockChannel = FileChannel.open(dir.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * The ledger of the .mailrelay folder, shared within the process.
+     */
+    static Ledger forDirectory(Path mailrelay) throws IOException
+    {
+        Path d = mailrelay.resolve(DIR).toAbsolutePath().normalize();
+        Ledger l = ledgers.get(d);
+        if(l == null)
+        synchronized(ledgers)
+        {
+            l = ledgers.get(d);
+            if(l == null)
+            {
+                l = new Ledger(d);
+                ledgers.put(d, l);
+            }
+        }
+        return l;
+    }
+
+    /**
+     * Sets how long segments are kept from the {@code --ledger-retention} option, e.g. 90d.
+     */
+    static void configure(Map<String, String> nvp)
+    {
+        Optional.ofNullable(nvp.get("ledger-retention")).map(Cmd::durationMillis).ifPresent(r -> retentionMillis = r);
+    }
+
+    static long hash(String kind, String value)
+    {
+        return BloomFilter.hash(kind + value);
+    }
+
+    @SuppressWarnings("try")
+    synchronized void append(List<Entry> entries) throws IOException
+    {
+        if(entries.isEmpty()) return;
+        try(FileLock lock = lockChannel.lock())
+        {
+            rescan();
+            Segment active = segments.isEmpty() ? create(1) : segment(segments.lastKey());
+            for(Entry e : entries)
+            {
+                byte[] rec = encode(e);
+                long end = active.end();
+                if(active.isSealed() || end + 4 + rec.length > SEGMENT_BYTES)
+                {
+                    seal(active);
+                    active = create(active.id + 1);
+                    prune();
+                    end = active.end();
+                }
+                ByteBuffer dup = active.map.duplicate();
+                dup.position((int)end + 4);
+                dup.put(rec);
+                active.map.putInt((int)end, rec.length);
+                active.map.putLong(END, end + 4 + rec.length);
+                if(e.time > active.map.getLong(NEWEST)) active.map.putLong(NEWEST, e.time);
+            }
+        }
+    }
+
+    private static byte[] encode(Entry e) throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeLong(e.time);
+        out.writeInt(e.millis);
+        out.writeShort(e.code);
+        out.writeByte(e.outcome.ordinal());
+        out.writeUTF(e.messageId);
+        out.writeUTF(e.recipient);
+        out.writeUTF(e.sender);
+        out.writeUTF(e.reply);
+        return bos.toByteArray();
+    }
+
+    private Segment create(long id) throws IOException
+    {
+        Path file = dir.resolve(String.format("%012d", id) + SEG);
+        active = new Segment(id, file, true);
+        segments.put(id, file);
+        return active;
+    }
+
+    /**
+     * The segment, mapped if it is not already.
+     *
+     * @throws NoSuchFileException if the segment was deleted meanwhile
+     */
+    private Segment segment(long id) throws IOException
+    {
+        if(id == segments.lastKey())
+        {
+            if(active == null || active.id != id) active = new Segment(id, segments.get(id), true);
+            return active;
+        }
+        if(active != null && active.id == id) return active;
+        try
+        {
+            return sealed.get(id, () ->
+            {
+                try
+                {
+                    return new Segment(id, segments.get(id), false);
+                }
+                catch(IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        catch(UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+    }
+
+    /* with the lock held, deletes the sealed segments that are past the retention, oldest first */
+    private void prune() throws IOException
+    {
+        if(retentionMillis <= 0) return;
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        for(Iterator<Map.Entry<Long, Path>> it = segments.headMap(segments.lastKey()).entrySet().iterator();
+                it.hasNext();)
+        {
+            Map.Entry<Long, Path> s = it.next();
+            if(newest(s.getValue()) >= cutoff) break;
+            sealed.invalidate(s.getKey());
+            Files.deleteIfExists(s.getValue());
+            Files.deleteIfExists(s.getValue().resolveSibling(String.format("%012d", s.getKey()) + IDX));
+            it.remove();
+            log.info("Deleted ledger segment " + s.getValue() + ", it is past the retention");
+        }
+    }
+
+    /* the time of the newest record of a segment, read without mapping it */
+    private static long newest(Path file) throws IOException
+    {
+        try(FileChannel ch = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            ByteBuffer b = ByteBuffer.allocate(8);
+            ch.read(b, NEWEST);
+            long newest = b.getLong(0);
+            // segments written before the header had the field
+            return newest > 0 ? newest : Files.getLastModifiedTime(file).toMillis();
+        }
+        catch(NoSuchFileException e)
+        {
+            return 0;
+        }
+    }
+
+    /* with the lock held, writes the index before marking the segment sealed */
+    private void seal(Segment s) throws IOException
+    {
+        if(s.isSealed()) return;
+        s.keyNew();
+        long[] sorted = Arrays.copyOf(s.keys, s.keyCount);
+        Arrays.sort(sorted);
+        ByteBuffer b = ByteBuffer.allocate(sorted.length * 8);
+        b.asLongBuffer().put(sorted);
+        Path idx = index(s);
+        Path tmp = idx.resolveSibling(idx.getFileName() + ".tmp");
+        Files.write(tmp, b.array());
+        Files.move(tmp, idx, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        s.map.putLong(SEALED, 1);
+        s.map.force();
+        log.fine(() -> "Sealed ledger segment " + s.file + " with " + sorted.length + " index keys");
+    }
+
+    private static long indexKey(long hash, int offset)
+    {
+        return hash >>> OFFSET_BITS << OFFSET_BITS | offset;
+    }
+
+    private Path index(Segment s)
+    {
+        return s.file.resolveSibling(String.format("%012d", s.id) + IDX);
+    }
+
+    /* finds the segments other processes created, and forgets the ones they deleted */
+    private void rescan() throws IOException
+    {
+        Set<Long> found = new HashSet<>();
+        try(DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + SEG))
+        {
+            for(Path p : ds)
+            {
+                String n = p.getFileName().toString();
+                long id;
+                try
+                {
+                    id = Long.parseLong(n.substring(0, n.length() - SEG.length()));
+                }
+                catch(NumberFormatException e)
+                {
+                    continue;
+                }
+                found.add(id);
+                segments.putIfAbsent(id, p);
+            }
+        }
+        for(Iterator<Long> it = segments.keySet().iterator(); it.hasNext();)
+        {
+            long id = it.next();
+            if(found.contains(id)) continue;
+            it.remove();
+            sealed.invalidate(id);
+            if(active != null && active.id == id) active = null;
+        }
+    }
+
+    /**
+     * The entries of a Message-ID, or of a recipient if the Message-ID is null, newest first.
+     *
+     * @param recipient if not null, only the entries of this recipient
+     */
+    synchronized List<Entry> find(String messageId, String recipient, int limit) throws IOException
+    {
+        String rcpt = recipient == null ? null : recipient.trim().toLowerCase(Locale.ROOT);
+        long h = messageId != null ? hash("m", messageId) : hash("r", rcpt);
+        Predicate<Entry> match = e -> (messageId == null || e.messageId.equals(messageId))
+                                        && (rcpt == null || e.recipient.equals(rcpt));
+        rescan();
+        List<Entry> found = new ArrayList<>();
+        for(long id : new ArrayList<>(segments.descendingKeySet()))
+        {
+            Segment s;
+            try
+            {
+                s = segment(id);
+            }
+            catch(NoSuchFileException e)
+            {
+                continue;
+            }
+            List<Entry> inSegment = new ArrayList<>();
+            if(s.isSealed())
+            {
+                if(s.index == null) s.index = mapIndex(s);
+                LongBuffer idx = s.index;
+                long lo = h >>> OFFSET_BITS << OFFSET_BITS, hi = lo | ((1L << OFFSET_BITS) - 1);
+                for(int i = lowerBound(idx, lo); i < idx.limit() && idx.get(i) <= hi; i++)
+                {
+                    Entry e = s.read((int)(idx.get(i) & ((1L << OFFSET_BITS) - 1)));
+                    if(match.test(e)) inSegment.add(e);
+                }
+            }
+            else
+            {
+                s.keyNew();
+                for(int i = 0; i < s.keyCount; i++)
+                {
+                    if(s.keys[i] >>> OFFSET_BITS != h >>> OFFSET_BITS) continue;
+                    Entry e = s.read((int)(s.keys[i] & ((1L << OFFSET_BITS) - 1)));
+                    if(match.test(e)) inSegment.add(e);
+                }
+            }
+            if(inSegment.size() > 1) inSegment.sort((a, b) -> Long.compare(b.time, a.time));
+            for(Entry e : inSegment)
+            {
+                if(found.size() >= limit) return found;
+                found.add(e);
+            }
+        }
+        return found;
+    }
+
+    private LongBuffer mapIndex(Segment s) throws IOException
+    {
+        try(FileChannel ch = FileChannel.open(index(s), StandardOpenOption.READ))
+        {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).asLongBuffer();
+        }
+    }
+
+    private static int lowerBound(LongBuffer idx, long key)
+    {
+        int lo = 0, hi = idx.limit();
+        while(lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if(idx.get(mid) < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,151 @@
+package org.sb.mailrelay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Applies the changes of the routing table and of {@code pools.properties} to a running command as the files are
+ * saved, without a restart that would close every connection and forget every credential.
+ * <p>
+ * Only what changed is touched: the connections of a route made to another server are closed once their messages
+ * are sent, the pools of a route with another pool size are resized, and the other routes keep their connections
+ * open. A file that does not parse is logged and the configuration before it is kept.
+ */
+final class LiveConfig implements Closeable
+{
+    private static final Logger log = Logger.getLogger(LiveConfig.class.getPackage().getName());
+
+    /* how long to wait for more events after one, editors save in several steps */
+    private static final long SETTLE_MILLIS = 200;
+
+    private final Path mailrelay;
+    private final Path routesFile;
+    private final Route defaultRoute;
+    private final Send send;
+    private final WatchService ws;
+    private Map<String, Route> routes;
+
+    private LiveConfig(Path mailrelay, Map<String, String> nvp, Send send) throws IOException
+    {
+        this.mailrelay = mailrelay.toAbsolutePath().normalize();
+        this.send = send;
+        routesFile = Routes.file(mailrelay, nvp);
+        defaultRoute = Routes.load(mailrelay, nvp).defaultRoute();
+        ws = mailrelay.getFileSystem().newWatchService();
+        Files.createDirectories(this.mailrelay);
+        for(Path dir : new HashSet<>(Arrays.asList(this.mailrelay, routesFile.getParent())))
+            dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                            StandardWatchEventKinds.ENTRY_DELETE);
+        routes = readRoutes();
+    }
+
+    /**
+     * Starts watching the configuration files of the .mailrelay folder, and the {@code --routes} file.
+     */
+    static LiveConfig start(Path mailrelay, Map<String, String> nvp, Send send) throws IOException
+    {
+        LiveConfig c = new LiveConfig(mailrelay, nvp, send);
+        Thread t = new Thread(c::watch, "mailrelay-config");
+        t.setDaemon(true);
+        t.start();
+        log.fine(() -> "Watching " + c.routesFile + " and " + c.mailrelay.resolve(SenderPool.FILE) + " for changes");
+        return c;
+    }
+
+    private void watch()
+    {
+        try
+        {
+            for(;;)
+            {
+                Set<Path> changed = new HashSet<>();
+                WatchKey key = ws.take();
+                do
+                {
+                    for(WatchEvent<?> ev : key.pollEvents())
+                        if(ev.kind() != StandardWatchEventKinds.OVERFLOW)
+                            changed.add(((Path)key.watchable()).resolve((Path)ev.context()).normalize());
+                    key.reset();
+                }
+                while((key = ws.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+                apply(changed);
+            }
+        }
+        catch(InterruptedException | ClosedWatchServiceException e)
+        {
+            log.fine("Stopped watching the configuration");
+        }
+    }
+
+    private void apply(Set<Path> changed)
+    {
+        try
+        {
+            if(changed.contains(routesFile)) applyRoutes();
+            if(changed.contains(mailrelay.resolve(SenderPool.FILE))) SenderPool.reload(mailrelay);
+        }
+        catch(IOException | RuntimeException e)
+        {
+            log.log(Level.SEVERE, "Could not apply the changes of " + changed + ", keeping the configuration", e);
+        }
+    }
+
+    private void applyRoutes() throws IOException
+    {
+        Map<String, String> props = Files.exists(routesFile) ? Routes.read(routesFile) : null;
+        Map<String, Route> next = parse(props != null ? props : Collections.emptyMap());
+        Map<String, Route> previous = routes;
+        // published first, so that a message sent while the pools change does not make a pool of the old route
+        Routes.update(routesFile, props);
+        routes = next;
+        previous.forEach((name, old) ->
+        {
+            Route now = next.get(name);
+            if(now == null || !old.sameConnection(now) || old.poolSize != now.poolSize) send.routeChanged(old, now);
+        });
+        Set<String> added = next.keySet().stream().filter(n -> !previous.containsKey(n)).collect(Collectors.toSet());
+        log.info("Reloaded " + routesFile + ", routes " + next.keySet() + (added.isEmpty() ? "" : ", added " + added));
+    }
+
+    /* a routes file that does not exist is not kept, it is looked for with every message as before */
+    private Map<String, Route> readRoutes() throws IOException
+    {
+        Map<String, String> props = Files.exists(routesFile) ? Routes.read(routesFile) : null;
+        Routes.update(routesFile, props);
+        return parse(props != null ? props : Collections.emptyMap());
+    }
+
+    private Map<String, Route> parse(Map<String, String> props)
+    {
+        Map<String, Route> byName = new LinkedHashMap<>();
+        Routes.parse(props, defaultRoute).routes().forEach(r -> byName.put(r.name, r));
+        return byName;
+    }
+
+    /**
+     * Stops applying changes, the routes file is read for every message again.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        ws.close();
+        Routes.update(routesFile, null);
+    }
+}
@@ -9,6 +9,7 @@ import java.nio.file.Paths;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -16,6 +17,10 @@ import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
@@ -25,7 +30,9 @@ import java.util.stream.Stream;
 public class Main
 {
     private static Supplier<Logger> log = Lazy.wrap(() -> Logger.getLogger(Main.class.getPackage().getName()));
-    private static final String[] cmds = {"login", "send"};
+    /* by name, in the order of the help; a registry rather than Class.forName keeps startup free of reflection */
+    private static final Map<String, Supplier<Cmd>> cmds = registry();
+    private static final int DEFAULT_PARALLEL = 8;
     
     public static void main(String[] args)
     {
@@ -62,6 +69,12 @@ public class Main
                                                     .orElseGet(() -> Paths.get(System.getProperty("user.home")).toAbsolutePath());
         
 
+        if(boolFlags.contains("parallel") || nvpFlags.containsKey("parallel"))
+        {
+            execParallel(home, cmds, Integer.parseInt(nvpFlags.getOrDefault("parallel", String.valueOf(DEFAULT_PARALLEL))));
+            return;
+        }
+
         cmds.stream()
             .map(cmd -> makeCmd(cmd.getKey()).<Entry<Try<Cmd, Exception>, List<String>>>map(tc -> pair(tc, cmd.getValue())))
             .filter(otc -> otc.isPresent())
@@ -71,6 +84,87 @@ public class Main
 
     }
     
+    /**
+     * Runs the commands in order, except that consecutive sends run concurrently, at most {@code parallel} at a time.
+     * The sends share one {@link Send} and cache its credentials and connections, so a sender logs in and connects
+     * once. Every command runs even if an earlier one failed, and the failures are reported together at the end.
+     */
+    private static void execParallel(Path home, List<Entry<String, List<String>>> cmds, int parallel) throws Exception
+    {
+        long start = System.currentTimeMillis();
+        Send send = new Send(Send.DEFAULT_MAX_ACCOUNTS, Send.DEFAULT_MAX_IDLE_MILLIS, parallel, 0);
+        ExecutorService pool = Executors.newFixedThreadPool(parallel, r ->
+        {
+            Thread t = new Thread(r, "mailrelay-cmd");
+            t.setDaemon(true);
+            return t;
+        });
+        List<Entry<String, Future<Try<Void, Exception>>>> running = new ArrayList<>();
+        List<Entry<String, Exception>> failed = new ArrayList<>();
+        try
+        {
+            int n = 0;
+            for(Entry<String, List<String>> cmd : cmds)
+            {
+                String name = cmd.getKey() + " #" + ++n;
+                if(cmd.getKey().equals("send"))
+                {
+                    List<String> opts = new ArrayList<>(cmd.getValue());
+                    if(!opts.contains("cache")) opts.add("cache");
+                    running.add(pair(name, pool.submit(() -> Try.<Void>wrap(() -> 
+                    {
+                        send.exec(home, opts);
+                        return null;
+                    }).get())));
+                    continue;
+                }
+                join(running, failed);
+                Optional<Try<Cmd, Exception>> c = makeCmd(cmd.getKey());
+                if(!c.isPresent()) continue;
+                Try<Void, Exception> result = c.get().flatMap(x -> Try.<Void>wrap(() -> 
+                {
+                    x.exec(home, cmd.getValue());
+                    return null;
+                }).get());
+                if(!result.isSuccessful()) failed.add(pair(name, result.getFailure()));
+            }
+            join(running, failed);
+        }
+        finally
+        {
+            pool.shutdownNow();
+            send.close();
+        }
+        log.get().info("Ran " + cmds.size() + " commands in " + (System.currentTimeMillis() - start) + " ms, " 
+                            + failed.size() + " failed");
+        if(failed.isEmpty()) return;
+        IOException e = new IOException(failed.size() + " of " + cmds.size() + " commands failed");
+        for(Entry<String, Exception> f : failed)
+        {
+            log.get().warning(f.getKey() + " failed: " + f.getValue());
+            e.addSuppressed(f.getValue());
+        }
+        throw e;
+    }
+
+    private static void join(List<Entry<String, Future<Try<Void, Exception>>>> running,
+                                List<Entry<String, Exception>> failed) throws InterruptedException
+    {
+        for(Entry<String, Future<Try<Void, Exception>>> r : running)
+        {
+            try
+            {
+                Try<Void, Exception> result = r.getValue().get();
+                if(!result.isSuccessful()) failed.add(pair(r.getKey(), result.getFailure()));
+            }
+            catch(ExecutionException e)
+            {
+                failed.add(pair(r.getKey(), e.getCause() instanceof Exception ? (Exception)e.getCause() : e));
+            }
+        }
+        running.clear();
+    }
+
     private static <K, V> Entry<K, V> pair(K k, V v)
     {
         return new SimpleImmutableEntry<>(k, v);
@@ -80,43 +174,52 @@ public class Main
     {
         String[] msgs = {
                 "mailrelay 0.0.1, command line GMail smtp sender.",
-                "usage: mailrelay [--home=<dir>] [--simulation] [--help] [--debug] [<command> [--<arg>]*]...",
+                "usage: mailrelay [--home=<dir>] [--simulation] [--help] [--debug] [--parallel[=<n>]] [<command> [--<arg>]*]...",
                 "",
                 "options:",
                 "\t--home=<dir>\tthe directory where the .mailrelay folder is found.",
                 "\t\t\tif not specified, the user's home directory is assumed to be the home.",
                 "\t--debug\t application logs  at 'fine' verbosity level",
                 "\t--debug-all\t everything logs  at 'fine' verbosity level to the $HOME/.mailrelay.log file",
+                "\t--parallel[=<n>]\t runs consecutive send commands concurrently, " + DEFAULT_PARALLEL + " at a time by default,",
+                "\t\t\tsharing credentials and connections, and reports the failures of all the commands",
                 "",
                 "supported commands:"
                 };
             Stream.concat(
                     Stream.of(msgs),
-                    Stream.of(cmds).flatMap(c -> makeCmd(c).map(Try.uncheckFunction(cmd -> cmd.orElseThrow().help(c)))
+                    cmds.keySet().stream().flatMap(c -> makeCmd(c).map(Try.uncheckFunction(cmd -> cmd.orElseThrow().help(c)))
                                                             .orElseGet(() -> Collections.emptyList()).stream())
                                    .map(s -> "\t" + s))
                 .forEach(s -> System.out.println(s));
     }
 
+    private static Map<String, Supplier<Cmd>> registry()
+    {
+        Map<String, Supplier<Cmd>> r = new LinkedHashMap<>();
+        r.put("login", Login::new);
+        r.put("send", Send::new);
+        r.put("merge", Merge::new);
+        r.put("relay", Relay::new);
+        r.put("watch", Watch::new);
+        r.put("suppress", Suppress::new);
+        r.put("status", Status::new);
+        return Collections.unmodifiableMap(r);
+    }
+
     private static Optional<Try<Cmd, Exception>> makeCmd(String cmd)
     {
-        String clsNm = Cmd.class.getPackage().getName() + "." + cmd.substring(0, 1).toUpperCase() + cmd.substring(1);
-        try
+        Supplier<Cmd> factory = cmds.get(cmd);
+        if(factory == null)
         {
-            @SuppressWarnings("rawtypes")
-            Class cmdCls = Class.forName(clsNm);
-            if(Cmd.class.isAssignableFrom(cmdCls))
-            {
-                return Optional.of(Try.success((Cmd)cmdCls.newInstance()));
-            }
+            log.get().info("Unsupported command: " + cmd);
             return Optional.empty();
         }
-        catch (ClassNotFoundException e)
+        try
         {
-            log.get().info("Unsupported command: " + cmd);
-            return Optional.empty();
+            return Optional.of(Try.success(factory.get()));
         }
-        catch (InstantiationException | IllegalAccessException e)
+        catch (RuntimeException e)
         {
             return Optional.of(Try.failure(e));
         }
@@ -133,7 +236,12 @@ public class Main
                 Properties p = new Properties();
                 p.load(props);
                 p.setProperty(".level", Level.FINE.getName());
-                p.setProperty("handlers", Optional.ofNullable(p.getProperty("handlers")).map(h -> h + ",").orElse("")
+                String async = AsyncHandler.class.getName();
+                if(p.getProperty("handlers", "").contains(async))
+                    p.setProperty(async + ".target", Optional.ofNullable(p.getProperty(async + ".target"))
+                                                        .map(h -> h + ",").orElse("") + "java.util.logging.FileHandler");
+                else
+                    p.setProperty("handlers", Optional.ofNullable(p.getProperty("handlers")).map(h -> h + ",").orElse("")
                                                                         + "java.util.logging.FileHandler");
                 p.setProperty("java.util.logging.FileHandler.formatter", "java.util.logging.SimpleFormatter");
                 p.setProperty("java.util.logging.FileHandler.pattern", "%h/.mailrelay.log");
@@ -0,0 +1,131 @@
+package org.sb.mailrelay;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Accounts for the bytes of messages held in memory by the process, across all the commands and listeners in it.
+ * <p>
+ * A message is buffered in a {@link SpillBuffer}, which reserves its memory from the budget as it grows and moves to
+ * a file in the spill folder once the budget has no room, so that the heap taken by messages stays under the budget
+ * whatever the size of a burst. Submitters wait with {@link #awaitRoom} before taking in another message, which
+ * pushes back on the connections and callers feeding them while the budget is exhausted.
+ */
+final class MemoryBudget
+{
+    private static final Logger log = Logger.getLogger(MemoryBudget.class.getPackage().getName());
+
+    static final long DEFAULT_BYTES = Runtime.getRuntime().maxMemory() / 4;
+    static final long DEFAULT_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final MemoryBudget shared = new MemoryBudget(DEFAULT_BYTES);
+
+    private volatile long limit;
+    private volatile Path spillDir = Paths.get(System.getProperty("java.io.tmpdir"));
+    private volatile long waitMillis = DEFAULT_WAIT_MILLIS;
+    private long used;
+    private long peak;
+    private final LongAdder spills = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+
+    MemoryBudget(long limit)
+    {
+        this.limit = limit;
+    }
+
+    /**
+     * The budget of the process.
+     */
+    static MemoryBudget shared()
+    {
+        return shared;
+    }
+
+    /**
+     * Sets the shared budget from the {@code --memory-budget} and {@code --memory-wait} options.
+     *
+     * @param spillDir the folder messages over the budget are written to, e.g. in the spool
+     */
+    static void configure(Map<String, String> nvp, Optional<Path> spillDir) throws IOException
+    {
+        Optional.ofNullable(nvp.get("memory-budget")).map(Cmd::byteSize).ifPresent(b -> shared.limit = b);
+        Optional.ofNullable(nvp.get("memory-wait")).map(Cmd::durationMillis).ifPresent(w -> shared.waitMillis = w);
+        if(spillDir.isPresent()) shared.spillDir = Files.createDirectories(spillDir.get());
+        log.fine(() -> "Holding up to " + shared.limit + " bytes of messages in memory, spilling to " + shared.spillDir);
+    }
+
+    long limit()
+    {
+        return limit;
+    }
+
+    synchronized long used()
+    {
+        return used;
+    }
+
+    /**
+     * Reserves the bytes if the budget has room for them.
+     */
+    synchronized boolean tryReserve(long bytes)
+    {
+        if(used + bytes > limit) return false;
+        used += bytes;
+        peak = Math.max(peak, used);
+        return true;
+    }
+
+    synchronized void release(long bytes)
+    {
+        if(bytes == 0) return;
+        used -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Waits while the budget is exhausted, at most for the {@code --memory-wait}, after which a message is
+     * taken in anyway and spills to disk.
+     */
+    void awaitRoom() throws InterruptedIOException
+    {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        synchronized(this)
+        {
+            if(used < limit) return;
+            waits.increment();
+            try
+            {
+                for(long left; used >= limit && (left = deadline - System.currentTimeMillis()) > 0; ) wait(left);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for memory");
+            }
+        }
+    }
+
+    /**
+     * A new file to spill a message to.
+     */
+    Path spillFile() throws IOException
+    {
+        spills.increment();
+        return Files.createTempFile(spillDir, "spill-", ".eml");
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "memory budget " + used + "/" + limit + " bytes used, peak " + peak + ", " + spills.sum()
+                + " messages spilled, " + waits.sum() + " waits";
+    }
+}
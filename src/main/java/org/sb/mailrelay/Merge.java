@@ -0,0 +1,372 @@
+package org.sb.mailrelay;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MailDateFormat;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * Sends a message per row of a CSV or JSON lines file, made from a template with {@code {{field}}} placeholders.
+ * <p>
+ * The template is compiled once, and each message is rendered straight into reused byte buffers as a ready to
+ * send message, so the messages skip the MIME encoding stage and go to the pooled connections of the lanes.
+ * An attachment is encoded once and its bytes are copied into every message.
+ */
+public class Merge implements Cmd
+{
+    private static final Logger log = Logger.getLogger(Merge.class.getPackage().getName());
+
+    private static final int MAX_LINE = 998;
+
+    private Template body;
+    private Map<String, Template> headers;
+    private InternetAddress from;
+    private Optional<MimeBodyPart> attachment;
+    private final MailDateFormat dates = new MailDateFormat();
+    private final Template.Buffer text = new Template.Buffer(8192);
+    private final Template.Buffer msg = new Template.Buffer(16384);
+
+    @Override
+    public void exec(Path home, List<String> opts) throws IOException, IllegalStateException
+    {
+        Map<String, String> nvp = Cmd.nvpFlags(opts.stream());
+        Set<String> flags = Stream.concat(Cmd.booleanFlags(opts.stream()).stream(), Stream.of("cache"))
+                                    .collect(Collectors.toSet());
+        Path template = Optional.ofNullable(nvp.get("template")).map(Paths::get)
+                                .orElseThrow(() -> new IllegalStateException("No 'template' option specified"));
+        Path data = Optional.ofNullable(nvp.get("data")).map(Paths::get)
+                                .orElseThrow(() -> new IllegalStateException("No 'data' option specified"));
+        String sender = Optional.ofNullable(nvp.get("from"))
+                                .orElseThrow(() -> new IllegalStateException("No 'from' option specified"));
+        String toField = nvp.getOrDefault("to-field", "email");
+        Optional<Path> out = Optional.ofNullable(nvp.get("out")).map(Paths::get);
+        if(out.isPresent()) Files.createDirectories(out.get());
+
+        Send send = Send.fromOptions(nvp);
+        MemoryBudget.configure(nvp, Optional.empty());
+        LaneScheduler.priority(nvp);
+        Ledger.configure(nvp);
+        try
+        {
+            from = new InternetAddress(sender, true);
+            compile(new String(Files.readAllBytes(template), StandardCharsets.UTF_8), nvp);
+            attachment = nvp.containsKey("file") ? Optional.of(send.attachment(Paths.get(nvp.get("file"))))
+                                                 : Optional.empty();
+        }
+        catch(MessagingException e)
+        {
+            throw new IOException(e);
+        }
+
+        AtomicLong sent = new AtomicLong(), failed = new AtomicLong();
+        long[] rows = {0};
+        Phaser pending = new Phaser(1);
+        long start = System.currentTimeMillis();
+        Set<String> fields = Stream.concat(body.fields().stream(), headers.values().stream().flatMap(t -> t.fields().stream()))
+                                    .collect(Collectors.toSet());
+        rows(data, nvp.get("format"), fields, toField, row ->
+        {
+            long n = ++rows[0];
+            try
+            {
+                Address[] to = InternetAddress.parse(Optional.ofNullable(row.get(toField)).orElse(""), true);
+                if(to.length == 0) throw new IllegalStateException("No '" + toField + "' in row " + n);
+                EncodedMessage m = render(row, to);
+                if(out.isPresent())
+                {
+                    Files.write(out.get().resolve(String.format("%06d.eml", n)), m.bytes());
+                    sent.incrementAndGet();
+                    return;
+                }
+                pending.register();
+                send.submit(home, nvp, flags, sender, m, to).whenComplete((r, e) ->
+                {
+                    if(e == null) sent.incrementAndGet();
+                    else
+                    {
+                        failed.incrementAndGet();
+                        log.log(Level.SEVERE, "Could not send row " + n + " to " + row.get(toField), e);
+                    }
+                    pending.arriveAndDeregister();
+                });
+            }
+            catch(IOException | MessagingException | RuntimeException e)
+            {
+                failed.incrementAndGet();
+                log.log(Level.SEVERE, "Could not merge row " + n, e);
+            }
+        });
+        pending.arriveAndAwaitAdvance();
+        log.info("Merged " + rows[0] + " rows in " + (System.currentTimeMillis() - start) + " ms, "
+                    + sent + " sent, " + failed + " failed");
+        if(failed.get() > 0) throw new IOException(failed + " of " + rows[0] + " messages could not be sent");
+    }
+
+    /**
+     * The template starts with header lines, e.g. {@code Subject: Hello {{name}}}, and a blank line,
+     * followed by the body. A template without headers is all body, and {@code --subject} sets the subject.
+     */
+    private void compile(String template, Map<String, String> nvp)
+    {
+        Map<String, String> raw = new LinkedHashMap<>();
+        String rest = template;
+        if(template.matches("(?s)^[A-Za-z][A-Za-z0-9-]*:.*"))
+        {
+            String[] parts = template.split("\\r?\\n\\r?\\n", 2);
+            String name = null;
+            for(String line : parts[0].split("\\r?\\n"))
+            {
+                if(name != null && (line.startsWith(" ") || line.startsWith("\t")))
+                    raw.put(name, raw.get(name) + " " + line.trim());
+                else
+                {
+                    int colon = line.indexOf(':');
+                    if(colon <= 0) throw new IllegalStateException("Invalid template header: " + line);
+                    name = line.substring(0, colon).trim();
+                    raw.put(name, line.substring(colon + 1).trim());
+                }
+            }
+            rest = parts.length > 1 ? parts[1] : "";
+        }
+        headers = new LinkedHashMap<>();
+        raw.forEach((k, v) -> headers.put(k, Template.compile(v, false)));
+        if(nvp.containsKey("subject") || headers.keySet().stream().noneMatch(k -> k.equalsIgnoreCase("Subject")))
+        {
+            headers.keySet().removeIf(k -> k.equalsIgnoreCase("Subject"));
+            headers.put("Subject", Template.compile(nvp.getOrDefault("subject", "No subject"), false));
+        }
+        Stream.of("From", "To", "Bcc", "Date", "Message-ID", "MIME-Version", "Content-Type",
+                  "Content-Transfer-Encoding").forEach(h -> headers.keySet().removeIf(k -> k.equalsIgnoreCase(h)));
+        body = Template.compile(rest, true);
+    }
+
+    /**
+     * Renders the message for a row.
+     */
+    private EncodedMessage render(Map<String, String> row, Address[] to) throws IOException, MessagingException
+    {
+        text.reset();
+        body.render(row::get, text);
+        boolean plain = isPlain(text);
+
+        msg.reset();
+        header("Date", dates.format(new Date()));
+        header("From", from.toString());
+        header("To", InternetAddress.toString(to, 4));
+        header("Message-ID", "<" + UUID.randomUUID() + "@" + domain(from) + ">");
+        for(Map.Entry<String, Template> h : headers.entrySet())
+            header(h.getKey(), MimeUtility.fold(h.getKey().length() + 2,
+                                    MimeUtility.encodeText(h.getValue().renderLine(row::get), "UTF-8", null)));
+        header("MIME-Version", "1.0");
+        if(!attachment.isPresent())
+        {
+            textHeaders(plain);
+            msg.writeAscii("\r\n");
+            textBody(plain);
+        }
+        else
+        {
+            String boundary = "----=_Part_" + UUID.randomUUID().toString().replace("-", "");
+            header("Content-Type", "multipart/mixed; \r\n\tboundary=\"" + boundary + "\"");
+            msg.writeAscii("\r\n--" + boundary + "\r\n");
+            textHeaders(plain);
+            msg.writeAscii("\r\n");
+            textBody(plain);
+            msg.writeAscii("\r\n--" + boundary + "\r\n");
+            attachment.get().writeTo(msg);
+            msg.writeAscii("\r\n--" + boundary + "--\r\n");
+        }
+        return EncodedMessage.wrap(msg.toByteArray());
+    }
+
+    private void header(String name, String value)
+    {
+        msg.writeAscii(name);
+        msg.writeAscii(": ");
+        msg.writeAscii(value);
+        msg.writeAscii("\r\n");
+    }
+
+    private void textHeaders(boolean plain)
+    {
+        header("Content-Type", "text/plain; charset=" + (plain ? "us-ascii" : "UTF-8"));
+        header("Content-Transfer-Encoding", plain ? "7bit" : "base64");
+    }
+
+    private void textBody(boolean plain) throws IOException
+    {
+        if(plain)
+        {
+            msg.write(text.array(), 0, text.size());
+            return;
+        }
+        try(OutputStream b64 = Base64.getMimeEncoder().wrap(msg))
+        {
+            b64.write(text.array(), 0, text.size());
+        }
+    }
+
+    /**
+     * @return true if the text can be sent as is, it is ASCII with lines no longer than smtp allows
+     */
+    private static boolean isPlain(Template.Buffer text)
+    {
+        byte[] b = text.array();
+        int line = 0;
+        for(int i = 0; i < text.size(); i++)
+        {
+            if(b[i] < 0 || b[i] == 0) return false;
+            line = b[i] == '\n' ? 0 : line + 1;
+            if(line > MAX_LINE) return false;
+        }
+        return true;
+    }
+
+    private static String domain(InternetAddress a)
+    {
+        String addr = a.getAddress();
+        return addr.substring(addr.indexOf('@') + 1);
+    }
+
+    /**
+     * Reads the data file row by row, as CSV with a header row or as a JSON object per line.
+     */
+    private static void rows(Path data, String format, Set<String> fields, String toField,
+            Consumer<Map<String, String>> rowConsumer) throws IOException
+    {
+        String fmt = Optional.ofNullable(format).orElseGet(() ->
+                            data.getFileName().toString().toLowerCase(Locale.ROOT).matches(".*\\.(jsonl|ndjson|json)$")
+                                ? "jsonl" : "csv").toLowerCase(Locale.ROOT);
+        try(BufferedReader in = Files.newBufferedReader(data, StandardCharsets.UTF_8))
+        {
+            if(fmt.equals("jsonl"))
+            {
+                for(String line; (line = in.readLine()) != null;)
+                {
+                    if(line.trim().isEmpty()) continue;
+                    Object json = CredHelper.jfac.createJsonParser(line).parse(Object.class);
+                    if(!(json instanceof Map)) throw new IllegalStateException("Expected a json object per line in " + data);
+                    Map<String, String> row = new HashMap<>();
+                    ((Map<?, ?>)json).forEach((k, v) -> row.put(String.valueOf(k), value(v)));
+                    rowConsumer.accept(row);
+                }
+                return;
+            }
+            if(!fmt.equals("csv")) throw new IllegalStateException("Unsupported data format: " + format);
+            List<String> names = csvRecord(in);
+            if(names == null) return;
+            List<String> missing = Stream.concat(fields.stream(), Stream.of(toField))
+                                        .filter(f -> !names.contains(f)).collect(Collectors.toList());
+            if(!missing.isEmpty()) throw new IllegalStateException("Columns " + missing + " are not in " + data);
+            for(List<String> rec; (rec = csvRecord(in)) != null;)
+            {
+                if(rec.size() == 1 && rec.get(0).isEmpty()) continue;
+                Map<String, String> row = new HashMap<>();
+                for(int i = 0; i < names.size() && i < rec.size(); i++) row.put(names.get(i), rec.get(i));
+                rowConsumer.accept(row);
+            }
+        }
+    }
+
+    /**
+     * Reads a CSV record, quoted fields may contain commas, line breaks and doubled quotes.
+     *
+     * @return null at the end of the input
+     */
+    private static List<String> csvRecord(BufferedReader in) throws IOException
+    {
+        String line = in.readLine();
+        if(line == null) return null;
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for(int i = 0;; i++)
+        {
+            if(i == line.length())
+            {
+                if(!quoted) break;
+                line = in.readLine();
+                if(line == null) throw new IllegalStateException("Unterminated quoted CSV field");
+                field.append('\n');
+                i = -1;
+                continue;
+            }
+            char c = line.charAt(i);
+            if(quoted)
+            {
+                if(c != '"') field.append(c);
+                else if(i + 1 < line.length() && line.charAt(i + 1) == '"') field.append(line.charAt(++i));
+                else quoted = false;
+            }
+            else if(c == '"') quoted = true;
+            else if(c == ',')
+            {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            }
+            else field.append(c);
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+
+    private static String value(Object v)
+    {
+        if(v instanceof Collection)
+            return ((Collection<?>)v).stream().map(String::valueOf).collect(Collectors.joining(","));
+        return String.valueOf(v);
+    }
+
+    @Override
+    public List<String> help(String name)
+    {
+        return Stream.concat(
+                    Stream.of("merge \t sends a message per row of a data file, made from a template:"),
+                    Stream.of(
+                    "--from : the sender's GMail address, the same should already have logged in",
+                    "--template : the template, header lines such as 'Subject: Hi {{name}}', a blank line, then the body",
+                    "--data : the rows, a CSV file with a header row, or a JSON object per line",
+                    "--format : csv or jsonl, defaults by the data file's extension (opt)",
+                    "--to-field : the column holding the recipients, defaults to email (opt)",
+                    "--subject : the subject, may have placeholders, overrides the template's (opt)",
+                    "--file : a file attached to every message (opt)",
+                    "--attachment-cache : bytes of encoded attachments kept for reuse, e.g. 64m (opt)",
+                    "--out : write the messages to this folder instead of sending them (opt)",
+                    "--workers : the number of concurrent deliveries (opt)",
+                    "--memory-budget, --memory-wait : as for relay, messages spill to the temp folder (opt)",
+                    "--ledger-retention : as for relay (opt)",
+                    "--priority, --serverAddress, --serverPort, --routes : as for send (opt)",
+                    "Example: merge --from=abc@gmail.com --template=offer.txt --data=customers.csv")
+                         .map(s -> " \t " + s))
+                .collect(Collectors.toList());
+    }
+}
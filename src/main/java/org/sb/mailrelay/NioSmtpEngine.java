@@ -0,0 +1,842 @@
+package org.sb.mailrelay;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.security.auth.callback.NameCallback;
+import javax.security.sasl.SaslException;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPOutputStream;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * An smtp client that runs every session as a state machine on a few selector threads, instead of a thread
+ * blocked per connection. Sessions do STARTTLS through an {@link SSLEngine}, AUTH XOAUTH2 with the response
+ * made by {@link OauthSaslClient}, and pipeline the envelope when the server offers PIPELINING. Commands and
+ * messages are written from direct buffers of the {@link BufferPool}, which go back to it once on the wire.
+ * It is selected with {@code --engine=nio} or a route's {@code engine} key.
+ */
+final class NioSmtpEngine implements Closeable
+{
+    private static final Logger log = Logger.getLogger(NioSmtpEngine.class.getPackage().getName());
+
+    /* how long a session may go without reading or writing a byte before it is failed */
+    static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    private static final int NET_BUFFER = 32 << 10;
+    private static final byte[] AUTH = "AUTH XOAUTH2 ".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] END = {'.', '\r', '\n'};
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final String[] OMITTED = {"Bcc", "Content-Length"};
+
+    private static final Supplier<NioSmtpEngine> shared = Lazy.wrap(Try.uncheck(() ->
+                                    new NioSmtpEngine(Math.max(1, Runtime.getRuntime().availableProcessors() / 2))));
+
+    private final Loop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+    /* the name sent with EHLO, its reverse lookup may block and so is not done on the selector threads */
+    private final String localHost = localHost();
+
+    NioSmtpEngine(int threads) throws IOException
+    {
+        loops = new Loop[threads];
+        for(int i = 0; i < threads; i++)
+        {
+            loops[i] = new Loop();
+            Thread t = new Thread(loops[i], "mailrelay-nio-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    static NioSmtpEngine shared()
+    {
+        return shared.get();
+    }
+
+    /**
+     * Opens a session, authenticated with XOAUTH2 if a token is given.
+     */
+    CompletableFuture<Session> connect(String host, int port, String user, String oauthToken, boolean debug)
+    {
+        return connect(host, port, user, oauthToken, debug, null);
+    }
+
+    /**
+     * Opens a session whose protocol trace is kept in the capture, if not null.
+     */
+    CompletableFuture<Session> connect(String host, int port, String user, String oauthToken, boolean debug,
+                                        ProtocolCapture capture)
+    {
+        return start(host, port, user, oauthToken, debug, capture).connected;
+    }
+
+    private Session start(String host, int port, String user, String oauthToken, boolean debug,
+                            ProtocolCapture capture)
+    {
+        Loop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+        Session s = new Session(loop, host, port, user, oauthToken, debug, capture);
+        loop.execute(() ->
+        {
+            try
+            {
+                s.open();
+            }
+            catch(IOException | RuntimeException e)
+            {
+                s.fail(e);
+            }
+            return null;
+        });
+        return s;
+    }
+
+    /**
+     * Opens a session and waits for it to be ready.
+     */
+    Session open(String host, int port, String user, String oauthToken, boolean debug) throws IOException
+    {
+        return open(host, port, user, oauthToken, debug, null);
+    }
+
+    Session open(String host, int port, String user, String oauthToken, boolean debug, ProtocolCapture capture)
+            throws IOException
+    {
+        Session s = start(host, port, user, oauthToken, debug, capture);
+        return s.await(s.connected);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        for(Loop l : loops) l.selector.close();
+    }
+
+    private static final class Loop implements Runnable
+    {
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        Loop() throws IOException
+        {
+            selector = Selector.open();
+        }
+
+        void execute(Try.SupplierEx<Void, ? extends Exception> task)
+        {
+            tasks.add(Try.uncheck(() -> task.get())::get);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            while(selector.isOpen())
+            {
+                try
+                {
+                    selector.select(1000);
+                    for(Runnable r; (r = tasks.poll()) != null;)
+                    try
+                    {
+                        r.run();
+                    }
+                    catch(RuntimeException e)
+                    {
+                        log.log(Level.SEVERE, "Smtp task failed", e);
+                    }
+                    for(SelectionKey key : selector.selectedKeys())
+                        ((Session)key.attachment()).ready(key);
+                    selector.selectedKeys().clear();
+                    long now = System.currentTimeMillis();
+                    for(SelectionKey key : selector.keys())
+                        ((Session)key.attachment()).checkTimeout(now);
+                }
+                catch(ClosedSelectorException e)
+                {
+                    break;
+                }
+                catch(IOException e)
+                {
+                    log.log(Level.SEVERE, "Smtp selector failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The reply to a command, called on the session's selector thread.
+     */
+    @FunctionalInterface
+    private interface Handler
+    {
+        void reply(int code, String text) throws Exception;
+    }
+
+    final class Session implements Transmitter
+    {
+        private final Loop loop;
+        private final String host;
+        private final int port;
+        private final InetSocketAddress addr;
+        private final String user;
+        private final String token;
+        private final boolean debug;
+        private final ProtocolCapture capture;
+        final CompletableFuture<Session> connected = new CompletableFuture<>();
+
+        private SocketChannel ch;
+        private SelectionKey key;
+        private SSLEngine ssl;
+        private boolean handshaking;
+        private final BufferPool pool = BufferPool.shared();
+        private ByteBuffer netIn = ByteBuffer.allocateDirect(NET_BUFFER);
+        private ByteBuffer netOut = ByteBuffer.allocateDirect(NET_BUFFER);
+        private ByteBuffer appIn = ByteBuffer.allocate(NET_BUFFER);
+        private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        private final ArrayDeque<Handler> handlers = new ArrayDeque<>();
+        private final StringBuilder reply = new StringBuilder();
+        private final Set<String> extensions = new HashSet<>();
+        private volatile long lastActivity = System.currentTimeMillis();
+        private volatile boolean open;
+        /* the reply to the data of the last message */
+        private volatile int lastCode;
+        private volatile String lastResponse;
+
+        private CompletableFuture<Void> tx;
+        /* the message of the transaction until it is handed to the socket */
+        private BufferPool.Output txData;
+        private List<Address> rcptOk;
+        private List<MessagingException> rcptFailed;
+        private MessagingException txFailure;
+
+        private Session(Loop loop, String host, int port, String user, String token, boolean debug,
+                        ProtocolCapture capture)
+        {
+            this.loop = loop;
+            this.host = host;
+            this.port = port;
+            this.user = user;
+            addr = new InetSocketAddress(host, port);
+            this.token = token;
+            this.debug = debug;
+            this.capture = capture;
+        }
+
+        private Void open() throws IOException
+        {
+            log.info("Connecting to smtp server at " + host + ":" + port);
+            ch = SocketChannel.open();
+            ch.configureBlocking(false);
+            key = ch.register(loop.selector, SelectionKey.OP_CONNECT, this);
+            handlers.add((code, text) ->
+            {
+                if(code != 220) throw new IOException("Unexpected greeting: " + text);
+                ehlo();
+            });
+            if(ch.connect(addr)) key.interestOps(SelectionKey.OP_READ);
+            return null;
+        }
+
+        private void ehlo()
+        {
+            command("EHLO " + localHost, (code, text) ->
+            {
+                if(code != 250) throw new IOException("EHLO failed: " + text);
+                extensions.clear();
+                for(String line : text.split("\n"))
+                    if(line.length() > 4) extensions.add(line.substring(4).trim().split(" ")[0].toUpperCase(Locale.ROOT));
+                if(ssl == null)
+                {
+                    if(!extensions.contains("STARTTLS"))
+                    {
+                        if(token != null) throw new IOException(host + " does not support STARTTLS");
+                        ready();
+                        return;
+                    }
+                    command("STARTTLS", (c, t) ->
+                    {
+                        if(c != 220) throw new IOException("STARTTLS failed: " + t);
+                        startTls();
+                    });
+                }
+                else if(token != null) auth();
+                else ready();
+            });
+        }
+
+        private void auth() throws SaslException
+        {
+            byte[] resp = Base64.getEncoder().encode(new OauthSaslClient(token, callbacks ->
+            {
+                ((NameCallback)callbacks[0]).setName(user);
+            }).evaluateChallenge(new byte[0]));
+            ByteBuffer line = pool.acquire(AUTH.length + resp.length + CRLF.length);
+            line.put(AUTH).put(resp).put(CRLF).flip();
+            Arrays.fill(resp, (byte)0);
+            command("AUTH XOAUTH2 ...", line, (code, text) ->
+            {
+                if(code == 235) ready();
+                else if(code == 334)
+                    command("", (c, t) -> { throw new IOException("Authentication failed: " + t); });
+                else
+                    throw new IOException("Authentication failed: " + text);
+            });
+        }
+
+        private void ready()
+        {
+            open = true;
+            log.fine(() -> "Smtp session to " + host + " ready, extensions " + extensions);
+            connected.complete(this);
+        }
+
+        private void startTls() throws IOException
+        {
+            try
+            {
+                ssl = SSLContext.getDefault().createSSLEngine(host, port);
+            }
+            catch(NoSuchAlgorithmException e)
+            {
+                throw new SSLException(e);
+            }
+            ssl.setUseClientMode(true);
+            SSLParameters params = ssl.getSSLParameters();
+            params.setEndpointIdentificationAlgorithm("HTTPS");
+            ssl.setSSLParameters(params);
+            netIn = grow(netIn, ssl.getSession().getPacketBufferSize());
+            netOut = ByteBuffer.allocateDirect(ssl.getSession().getPacketBufferSize());
+            appIn = ByteBuffer.allocate(ssl.getSession().getApplicationBufferSize());
+            handshaking = true;
+            ssl.beginHandshake();
+            handshake();
+        }
+
+        private void handshake() throws IOException
+        {
+            for(;;)
+            {
+                switch(ssl.getHandshakeStatus())
+                {
+                    case NEED_TASK:
+                        for(Runnable t; (t = ssl.getDelegatedTask()) != null;) t.run();
+                        break;
+                    case NEED_WRAP:
+                        wrap(EMPTY);
+                        flush();
+                        break;
+                    case NEED_UNWRAP:
+                        if(!unwrap()) return;
+                        break;
+                    default:
+                        if(handshaking)
+                        {
+                            handshaking = false;
+                            log.fine(() -> "TLS established with " + host + " using " + ssl.getSession().getProtocol());
+                            ehlo();
+                        }
+                        return;
+                }
+            }
+        }
+
+        /**
+         * @return false if more data has to be read first
+         */
+        private boolean unwrap() throws IOException
+        {
+            netIn.flip();
+            SSLEngineResult r = ssl.unwrap(netIn, appIn);
+            netIn.compact();
+            switch(r.getStatus())
+            {
+                case BUFFER_UNDERFLOW:
+                    netIn = grow(netIn, ssl.getSession().getPacketBufferSize());
+                    return false;
+                case BUFFER_OVERFLOW:
+                    appIn = grow(appIn, appIn.position() + ssl.getSession().getApplicationBufferSize());
+                    return true;
+                case CLOSED:
+                    throw new EOFException("TLS session closed by " + host);
+                default:
+                    return r.bytesConsumed() > 0 || r.bytesProduced() > 0;
+            }
+        }
+
+        private void wrap(ByteBuffer src) throws IOException
+        {
+            SSLEngineResult r = ssl.wrap(src, netOut);
+            if(r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+                netOut = grow(netOut, netOut.position() + ssl.getSession().getPacketBufferSize());
+            else if(r.getStatus() == SSLEngineResult.Status.CLOSED)
+                throw new EOFException("TLS session closed");
+        }
+
+        private void ready(SelectionKey k)
+        {
+            try
+            {
+                if(k.isConnectable() && ch.finishConnect()) k.interestOps(SelectionKey.OP_READ);
+                if(k.isValid() && k.isReadable()) read();
+                if(k.isValid() && k.isWritable()) flush();
+            }
+            catch(Exception e)
+            {
+                fail(e);
+            }
+        }
+
+        private void read() throws Exception
+        {
+            int n = ch.read(netIn);
+            if(n < 0) throw new EOFException("Connection closed by " + host);
+            lastActivity = System.currentTimeMillis();
+            if(ssl == null)
+            {
+                netIn.flip();
+                appIn = grow(appIn, appIn.position() + netIn.remaining());
+                appIn.put(netIn);
+                netIn.clear();
+            }
+            else if(handshaking) handshake();
+            else
+            {
+                while(unwrap())
+                    if(ssl.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) handshake();
+            }
+            replies();
+        }
+
+        private void replies() throws Exception
+        {
+            appIn.flip();
+            while(appIn.hasRemaining())
+            {
+                int nl = -1;
+                for(int i = appIn.position(); i < appIn.limit(); i++)
+                    if(appIn.get(i) == '\n')
+                    {
+                        nl = i;
+                        break;
+                    }
+                if(nl < 0) break;
+                byte[] b = new byte[nl - appIn.position() + 1];
+                appIn.get(b);
+                String line = new String(b, StandardCharsets.ISO_8859_1).trim();
+                if(debug) log.fine(() -> "S: " + line);
+                if(capture != null) capture.line("S: " + line);
+                if(reply.length() > 0) reply.append('\n');
+                reply.append(line);
+                if(line.length() < 4 || line.charAt(3) != '-')
+                {
+                    String text = reply.toString();
+                    reply.setLength(0);
+                    Handler h = handlers.poll();
+                    if(h == null) throw new IOException("Unexpected reply: " + text);
+                    int code = line.length() >= 3 ? Integer.parseInt(line.substring(0, 3)) : 0;
+                    SSLEngine plain = ssl;
+                    h.reply(code, text);
+                    if(plain != ssl) return;
+                }
+            }
+            appIn.compact();
+        }
+
+        private void command(String line, Handler h)
+        {
+            ByteBuffer buf = pool.acquire(line.length() + CRLF.length);
+            for(int i = 0; i < line.length(); i++) buf.put((byte)line.charAt(i));
+            buf.put(CRLF).flip();
+            command(line, buf, h);
+        }
+
+        /**
+         * @param traced the command as logged
+         * @param buf the command line from the pool, it goes back to it once written
+         */
+        private void command(String traced, ByteBuffer buf, Handler h)
+        {
+            if(debug) log.fine(() -> "C: " + traced);
+            if(capture != null) capture.line("C: " + traced);
+            handlers.add(h);
+            write(Collections.singletonList(buf));
+        }
+
+        private void write(List<ByteBuffer> bufs)
+        {
+            pending.addAll(bufs);
+            try
+            {
+                flush();
+            }
+            catch(IOException e)
+            {
+                fail(e);
+            }
+        }
+
+        private void flush() throws IOException
+        {
+            for(;;)
+            {
+                if(netOut.position() > 0)
+                {
+                    netOut.flip();
+                    written(ch.write(netOut));
+                    boolean more = netOut.hasRemaining();
+                    netOut.compact();
+                    if(more) break;
+                }
+                ByteBuffer head = pending.peek();
+                if(head == null || handshaking) break;
+                if(ssl == null)
+                {
+                    written(ch.write(head));
+                    if(head.hasRemaining()) break;
+                }
+                else
+                    wrap(head);
+                if(!head.hasRemaining()) pool.release(pending.poll());
+            }
+            if(key.isValid())
+                key.interestOps(netOut.position() > 0 || (!pending.isEmpty() && !handshaking)
+                                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        /* a session sending a large message is not idle while its bytes go out, though no reply is due yet */
+        private void written(int n)
+        {
+            if(n > 0) lastActivity = System.currentTimeMillis();
+        }
+
+        private void checkTimeout(long now)
+        {
+            if(!handlers.isEmpty() && now - lastActivity > TIMEOUT_MILLIS)
+                fail(new SocketTimeoutException("No reply from " + host));
+        }
+
+        /**
+         * Waits for the future as long as the session is not idle for {@link #TIMEOUT_MILLIS}. Once it is, the
+         * session is failed, so that a message it was sending is not delivered after the caller gave up on it.
+         */
+        private <T> T await(CompletableFuture<T> f) throws IOException
+        {
+            try
+            {
+                for(;;)
+                try
+                {
+                    return f.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                catch(TimeoutException e)
+                {
+                    if(System.currentTimeMillis() - lastActivity < TIMEOUT_MILLIS) continue;
+                    SocketTimeoutException timeout = new SocketTimeoutException("Smtp session to " + host + " timed out");
+                    loop.execute(() ->
+                    {
+                        fail(timeout);
+                        return null;
+                    });
+                    throw timeout;
+                }
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            catch(ExecutionException e)
+            {
+                if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+                throw new IOException(e.getCause());
+            }
+        }
+
+        private void fail(Throwable e)
+        {
+            log.log(Level.FINE, "Smtp session to " + host + " failed", e);
+            open = false;
+            connected.completeExceptionally(e);
+            if(tx != null) tx.completeExceptionally(e);
+            tx = null;
+            handlers.clear();
+            releaseData();
+            for(ByteBuffer b; (b = pending.poll()) != null; ) pool.release(b);
+            if(key != null) key.cancel();
+            try
+            {
+                if(ch != null) ch.close();
+            }
+            catch(IOException io)
+            {
+                log.log(Level.FINE, "Close failed", io);
+            }
+        }
+
+        /**
+         * Sends a message with the session user as the envelope sender, the data must already be dot stuffed
+         * and end with the terminating dot line, as made by {@link NioSmtpEngine#encode}. The session releases
+         * the data once the message is sent or fails.
+         */
+        CompletableFuture<Void> sendAsync(List<Address> rcpts, BufferPool.Output data)
+        {
+            return sendAsync(rcpts, data, "");
+        }
+
+        /**
+         * @param params the parameters of the MAIL FROM command, with a leading space, e.g. {@code BODY=8BITMIME}
+         */
+        CompletableFuture<Void> sendAsync(List<Address> rcpts, BufferPool.Output data, String params)
+        {
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            loop.execute(() ->
+            {
+                if(!open || tx != null)
+                {
+                    data.release();
+                    f.completeExceptionally(!open ? new IOException("The smtp session is closed")
+                                                : new IllegalStateException("A message is already being sent"));
+                }
+                else transaction(f, rcpts, data, params);
+                return null;
+            });
+            return f;
+        }
+
+        private void transaction(CompletableFuture<Void> f, List<Address> rcpts, BufferPool.Output data,
+                                    String params)
+        {
+            tx = f;
+            txData = data;
+            txFailure = null;
+            rcptOk = new ArrayList<>();
+            rcptFailed = new ArrayList<>();
+            List<String> lines = new ArrayList<>();
+            List<Handler> hs = new ArrayList<>();
+            lines.add("MAIL FROM:<" + user + ">" + params);
+            hs.add((code, text) ->
+            {
+                if(code != 250) txFailure = new SMTPSendFailedException("MAIL", code, text, null, null, null, null);
+            });
+            for(Address a : rcpts)
+            {
+                InternetAddress ia = (InternetAddress)a;
+                lines.add("RCPT TO:<" + ia.getAddress() + ">");
+                hs.add((code, text) ->
+                {
+                    if(code == 250 || code == 251) rcptOk.add(ia);
+                    else rcptFailed.add(new SMTPAddressFailedException(ia, "RCPT", code, text));
+                });
+            }
+            lines.add("DATA");
+            hs.add((code, text) ->
+            {
+                if(code == 354)
+                {
+                    handlers.add(this::endData);
+                    write(txData.detach());
+                    txData = null;
+                }
+                else end(txFailure != null ? txFailure
+                          : new SMTPSendFailedException("DATA", code, text, null, null, null, null));
+            });
+            if(extensions.contains("PIPELINING"))
+                for(int i = 0; i < lines.size(); i++) command(lines.get(i), hs.get(i));
+            else
+                sequence(lines, hs, 0);
+        }
+
+        /**
+         * Sends the commands one at a time, each after the reply to the previous one.
+         */
+        private void sequence(List<String> lines, List<Handler> hs, int i)
+        {
+            command(lines.get(i), (code, text) ->
+            {
+                hs.get(i).reply(code, text);
+                if(i + 1 < lines.size() && tx != null) sequence(lines, hs, i + 1);
+            });
+        }
+
+        private void endData(int code, String text)
+        {
+            lastCode = code;
+            lastResponse = text;
+            if(code != 250) end(new SMTPSendFailedException("DATA", code, text, null, null, null, null));
+            else end(null);
+        }
+
+        private void end(MessagingException failure)
+        {
+            CompletableFuture<Void> f = tx;
+            tx = null;
+            releaseData();
+            if(failure == null && rcptFailed.isEmpty())
+            {
+                f.complete(null);
+                return;
+            }
+            if(failure == null)
+                failure = new SendFailedException("Invalid Addresses", null,
+                                    rcptOk.toArray(new Address[rcptOk.size()]), new Address[0],
+                                    rcptFailed.stream().map(e -> ((SMTPAddressFailedException)e).getAddress())
+                                                        .toArray(Address[]::new));
+            for(MessagingException e : rcptFailed) failure.setNextException(e);
+            command("RSET", (c, t) -> {});
+            f.completeExceptionally(failure);
+        }
+
+        private void releaseData()
+        {
+            if(txData != null) txData.release();
+            txData = null;
+        }
+
+        @Override
+        public synchronized void sendMessage(Message msg, Address[] rcpts) throws MessagingException
+        {
+            try
+            {
+                boolean eightBit = extensions.contains("8BITMIME");
+                Message m = EightBitMime.forServer(msg, eightBit);
+                await(sendAsync(Arrays.asList(rcpts), encode(m), 
+                                EightBitMime.mailParameters(m, eightBit, extensions.contains("SMTPUTF8"))));
+            }
+            catch(IOException e)
+            {
+                if(e.getCause() instanceof MessagingException) throw (MessagingException)e.getCause();
+                throw new MessagingException("Sending failed", e);
+            }
+        }
+
+        @Override
+        public boolean isConnected()
+        {
+            return open;
+        }
+
+        @Override
+        public int lastReturnCode()
+        {
+            return lastCode;
+        }
+
+        @Override
+        public String lastServerResponse()
+        {
+            return lastResponse;
+        }
+
+        @Override
+        public void close()
+        {
+            if(!open) return;
+            open = false;
+            loop.execute(() ->
+            {
+                command("QUIT", (code, text) -> fail(new EOFException("Session closed")));
+                return null;
+            });
+        }
+
+        @Override
+        public String toString()
+        {
+            return "nio smtp session to " + host + ":" + port + " for " + user;
+        }
+    }
+
+    /**
+     * Writes the message with CRLF line ends and dot stuffing, followed by the terminating dot line, into chunks
+     * of the {@link BufferPool}.
+     */
+    static BufferPool.Output encode(Message msg) throws MessagingException
+    {
+        BufferPool.Output data = new BufferPool.Output(BufferPool.shared());
+        try
+        {
+            SMTPOutputStream out = new SMTPOutputStream(data);
+            if(msg instanceof MimeMessage) ((MimeMessage)msg).writeTo(out, OMITTED);
+            else msg.writeTo(out);
+            out.ensureAtBOL();
+            out.flush();
+            data.write(END);
+            return data;
+        }
+        catch(IOException e)
+        {
+            data.release();
+            throw new MessagingException("Could not encode the message", e);
+        }
+        catch(MessagingException | RuntimeException e)
+        {
+            data.release();
+            throw e;
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buf, int min)
+    {
+        if(buf.capacity() >= min) return buf;
+        int capacity = Math.max(min, buf.capacity() * 2);
+        ByteBuffer bigger = buf.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        buf.flip();
+        bigger.put(buf);
+        return bigger;
+    }
+
+    private static String localHost()
+    {
+        try
+        {
+            return java.net.InetAddress.getLocalHost().getCanonicalHostName();
+        }
+        catch(IOException e)
+        {
+            return "localhost";
+        }
+    }
+}
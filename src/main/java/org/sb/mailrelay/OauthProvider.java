@@ -4,11 +4,14 @@
 package org.sb.mailrelay;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.security.Provider;
 import java.security.Security;
 import java.util.Properties;
 import java.util.logging.Logger;
 
+import javax.mail.Address;
+import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.URLName;
@@ -24,6 +27,8 @@ public class OauthProvider extends Provider {
 	private static final Logger log = Logger.getLogger(OauthProvider.class.getPackage().getName());
 	
 	private static final long serialVersionUID = 1L;
+	
+	private static final String MAIL_EXTENSION = "mail.smtp.mailextension";
 
 	static {
 		Security.addProvider(new OauthProvider());
@@ -52,7 +57,7 @@ public class OauthProvider extends Provider {
 	 *            Email address of the user to authenticate, for example
 	 *            {@code oauth@gmail.com}.
 	 * @param oauthToken
-	 *            The user's OAuth token.
+	 *            The user's OAuth token, or null to relay without authentication.
 	 * @param debug
 	 *            Whether to enable debug logging on the connection.
 	 *
@@ -61,22 +66,56 @@ public class OauthProvider extends Provider {
 	 */
 	static SMTPTransport connectToSmtp(String host, int port, String userEmail, String oauthToken, boolean debug)
 			throws IOException {
+		return connectToSmtp(host, port, userEmail, oauthToken, debug, null);
+	}
+
+	/**
+	 * Connects as {@link #connectToSmtp(String, int, String, String, boolean)}, with the protocol trace written to
+	 * {@code debugOut} rather than standard output, if it is not null.
+	 * <p>
+	 * Each message's MAIL FROM parameters are set in the session's {@code mail.smtp.mailextension} option, from
+	 * the 8BITMIME and SMTPUTF8 support of the server, see {@link EightBitMime}.
+	 */
+	static SMTPTransport connectToSmtp(String host, int port, String userEmail, String oauthToken, boolean debug,
+			PrintStream debugOut) throws IOException {
 		log.info("Connecting to smtp server at " + host +  ":" + port);
 		Properties props = new Properties();
 		props.put("mail.smtp.starttls.enable", "true");
-		props.put("mail.smtp.starttls.required", "true");
-		props.put("mail.smtp.sasl.enable", "true");
-		props.put("mail.smtp.sasl.mechanisms", "XOAUTH2");
-		props.put(OauthSaslClientFactory.OAUTH_TOKEN_PROP, oauthToken);
+		if(oauthToken != null)
+		{
+			props.put("mail.smtp.starttls.required", "true");
+			props.put("mail.smtp.sasl.enable", "true");
+			props.put("mail.smtp.sasl.mechanisms", "XOAUTH2");
+			props.put(OauthSaslClientFactory.OAUTH_TOKEN_PROP, oauthToken);
+		}
+		else
+			props.put("mail.smtp.auth", "false");
 		Session session = Session.getInstance(props);
-		session.setDebug(debug);
+		if(debugOut != null) session.setDebugOut(debugOut);
+		session.setDebug(debug || debugOut != null);
 
 		final URLName unusedUrlName = null;
-		SMTPTransport transport = new SMTPTransport(session, unusedUrlName);
+		SMTPTransport transport = new SMTPTransport(session, unusedUrlName)
+		{
+			@Override
+			public synchronized void sendMessage(Message msg, Address[] rcpts) throws MessagingException
+			{
+				boolean eightBit = supportsExtension("8BITMIME");
+				Message m;
+				try {
+					m = EightBitMime.forServer(msg, eightBit);
+					props.put(MAIL_EXTENSION, EightBitMime.mailParameters(m, eightBit, supportsExtension("SMTPUTF8")).trim());
+				} catch (IOException e) {
+					throw new MessagingException("Could not prepare the message for " + host, e);
+				}
+				super.sendMessage(m, rcpts);
+			}
+		};
 		// If the password is non-null, SMTP tries to do AUTH LOGIN.
 		final String emptyPassword = "";
 		try {
-			transport.connect(host, port, userEmail, emptyPassword);
+			if(oauthToken != null) transport.connect(host, port, userEmail, emptyPassword);
+			else transport.connect(host, port, null, null);
 		} catch (MessagingException e) {
 			// TODO Auto-generated catch block
 			throw new IOException(e);
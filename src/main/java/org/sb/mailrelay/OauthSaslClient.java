@@ -4,6 +4,7 @@
 package org.sb.mailrelay;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,6 +22,9 @@ import javax.security.sasl.SaslException;
 class OauthSaslClient implements SaslClient {
 
 	private static final Logger log = Logger.getLogger(OauthSaslClient.class.getPackage().getName());
+
+	private static final byte[] USER = "user=".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] AUTH = "\1auth=Bearer ".getBytes(StandardCharsets.US_ASCII);
 	
 	private final String oauthToken;
 	private final CallbackHandler callbackHandler;
@@ -66,11 +70,29 @@ class OauthSaslClient implements SaslClient {
 		}
 		String email = nameCallback.getName();
 
-		byte[] response = String.format("user=%s\1auth=Bearer %s\1\1", email, oauthToken).getBytes();
+		byte[] response = response(email, oauthToken);
 		isComplete = true;
 		return response;
 	}
 
+	/**
+	 * The XOAUTH2 initial response, copied straight into one array. The address is UTF-8, the token is ASCII.
+	 */
+	static byte[] response(String email, String oauthToken) {
+		byte[] user = email.getBytes(StandardCharsets.UTF_8);
+		byte[] r = new byte[USER.length + user.length + AUTH.length + oauthToken.length() + 2];
+		int n = 0;
+		System.arraycopy(USER, 0, r, n, USER.length);
+		System.arraycopy(user, 0, r, n += USER.length, user.length);
+		System.arraycopy(AUTH, 0, r, n += user.length, AUTH.length);
+		n += AUTH.length;
+		for (int i = 0; i < oauthToken.length(); i++)
+			r[n++] = (byte) oauthToken.charAt(i);
+		r[n++] = 1;
+		r[n] = 1;
+		return r;
+	}
+
 	public boolean isComplete() {
 		return isComplete;
 	}
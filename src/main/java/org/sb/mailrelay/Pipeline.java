@@ -0,0 +1,108 @@
+package org.sb.mailrelay;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import javax.mail.Message;
+
+/**
+ * Separates the MIME encoding of messages from their transmission. Messages are encoded on a pool sized to the
+ * cores, and each encoded message is handed to the transmit stage, which only writes bytes to its connections.
+ * <p>
+ * The stages are decoupled by bounded queues. When the encoders fall behind, the submitting thread encodes the
+ * message itself, and when the connections fall behind, {@link #submit} blocks once {@code maxInFlight} messages
+ * are encoded but not yet sent, or while the {@link MemoryBudget} is exhausted. Encoded messages are kept within the
+ * budget, spilling to disk past it, and are released once sent.
+ */
+final class Pipeline
+{
+    private static final Logger log = Logger.getLogger(Pipeline.class.getPackage().getName());
+
+    private final ThreadPoolExecutor encoders;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+
+    /**
+     * @param encoders the number of encoding threads
+     * @param maxInFlight the number of messages that can be encoded or waiting for a connection
+     */
+    Pipeline(int encoders, int maxInFlight)
+    {
+        AtomicInteger n = new AtomicInteger();
+        this.encoders = new ThreadPoolExecutor(encoders, encoders, 1, TimeUnit.MINUTES,
+                                            new ArrayBlockingQueue<>(encoders * 2), r ->
+                                            {
+                                                Thread t = new Thread(r, "mailrelay-encode-" + n.getAndIncrement());
+                                                t.setDaemon(true);
+                                                return t;
+                                            }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.encoders.allowCoreThreadTimeOut(true);
+        this.maxInFlight = maxInFlight;
+        inFlight = new Semaphore(maxInFlight);
+    }
+
+    static int defaultEncoders()
+    {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Encodes the message, unless it already is, and passes it to the transmit stage.
+     *
+     * @param transmit starts sending the encoded message, the returned future completes when it is sent
+     */
+    <T> CompletableFuture<T> submit(Message msg, Function<? super Message, CompletableFuture<T>> transmit)
+            throws InterruptedIOException
+    {
+        MemoryBudget.shared().awaitRoom();
+        try
+        {
+            inFlight.acquire();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to submit a message");
+        }
+        CompletableFuture<Message> encoded;
+        try
+        {
+            encoded = EncodedMessage.isEncoded(msg) ? CompletableFuture.completedFuture(msg)
+                        : CompletableFuture.supplyAsync(Try.uncheck(() -> EncodedMessage.encode(msg)), encoders);
+        }
+        catch(RuntimeException e)
+        {
+            inFlight.release();
+            throw e;
+        }
+        CompletableFuture<T> sent = encoded.thenCompose(transmit);
+        sent.whenComplete((r, e) ->
+        {
+            inFlight.release();
+            Message m = encoded.getNow(null);
+            if(m != msg && m instanceof EncodedMessage) ((EncodedMessage)m).close();
+        });
+        return sent;
+    }
+
+    /**
+     * The number of messages encoded or being encoded and not yet sent.
+     */
+    int inFlight()
+    {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    void shutdown()
+    {
+        log.fine(() -> "Stopping the encoders");
+        encoders.shutdown();
+    }
+}
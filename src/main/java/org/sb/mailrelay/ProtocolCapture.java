@@ -0,0 +1,143 @@
+package org.sb.mailrelay;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+/**
+ * Keeps the last bytes of an smtp session's protocol trace in a fixed ring, so that tracing can stay on in
+ * production. Nothing is written out while the session goes well, the trace is logged only when it fails.
+ */
+final class ProtocolCapture extends OutputStream
+{
+    private static final Logger log = Logger.getLogger(ProtocolCapture.class.getPackage().getName());
+
+    static final int DEFAULT_BYTES = 64 << 10;
+
+    private final byte[] ring;
+    private long written;
+    private final PrintStream out = new PrintStream(this, true);
+
+    ProtocolCapture(int bytes)
+    {
+        ring = new byte[bytes];
+    }
+
+    /**
+     * The stream that javamail's debug output is sent to.
+     */
+    PrintStream printStream()
+    {
+        return out;
+    }
+
+    @Override
+    public synchronized void write(int b)
+    {
+        ring[(int)(written++ % ring.length)] = (byte)b;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len)
+    {
+        if(len >= ring.length)
+        {
+            off += len - ring.length;
+            written += len - ring.length;
+            len = ring.length;
+        }
+        int at = (int)(written % ring.length);
+        int first = Math.min(len, ring.length - at);
+        System.arraycopy(b, off, ring, at, first);
+        System.arraycopy(b, off + first, ring, 0, len - first);
+        written += len;
+    }
+
+    void line(String line)
+    {
+        byte[] b = (line + "\n").getBytes(StandardCharsets.ISO_8859_1);
+        write(b, 0, b.length);
+    }
+
+    synchronized void clear()
+    {
+        written = 0;
+    }
+
+    /**
+     * Logs what was captured since it was last cleared, then clears it.
+     */
+    void dump(String what, Exception cause)
+    {
+        String trace;
+        long lost;
+        synchronized(this)
+        {
+            int len = (int)Math.min(written, ring.length);
+            int start = (int)((written - len) % ring.length);
+            byte[] b = new byte[len];
+            int first = Math.min(len, ring.length - start);
+            System.arraycopy(ring, start, b, 0, first);
+            System.arraycopy(ring, 0, b, first, len - first);
+            trace = new String(b, StandardCharsets.ISO_8859_1);
+            lost = written - len;
+            written = 0;
+        }
+        log.log(Level.WARNING, what + " failed: " + cause + ", smtp trace"
+                        + (lost > 0 ? " (" + lost + " earlier bytes dropped)" : "") + ":\n" + trace);
+    }
+
+    /**
+     * Wraps the transmitter so that a failed send logs the trace of its session, and a successful one clears it.
+     */
+    Transmitter wrap(Transmitter t)
+    {
+        return new Transmitter()
+        {
+            @Override
+            public void sendMessage(Message msg, Address[] rcpts) throws MessagingException
+            {
+                try
+                {
+                    t.sendMessage(msg, rcpts);
+                    clear();
+                }
+                catch(MessagingException | RuntimeException e)
+                {
+                    dump("Sending", e);
+                    throw e;
+                }
+            }
+
+            @Override
+            public boolean isConnected()
+            {
+                return t.isConnected();
+            }
+
+            @Override
+            public void close() throws MessagingException
+            {
+                t.close();
+            }
+
+            @Override
+            public int lastReturnCode()
+            {
+                return t.lastReturnCode();
+            }
+
+            @Override
+            public String lastServerResponse()
+            {
+                return t.lastServerResponse();
+            }
+        };
+    }
+}
@@ -0,0 +1,537 @@
+package org.sb.mailrelay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+
+/**
+ * The long running relay, delivers the messages in the spool when they become due.
+ * Deferred messages are kept in a {@link TimingWheel}, and new spool entries are picked up as they appear.
+ * With {@code --cluster} several relays share the spool, each delivering the entries of the {@link Cluster} shards
+ * it holds. Changes of the routes and sender pools are applied as they are saved, see {@link LiveConfig}, and with
+ * {@code --drain} a relay that is stopped finishes the deliveries in flight before it exits.
+ */
+public class Relay implements Cmd
+{
+    private static final Logger log = Logger.getLogger(Relay.class.getPackage().getName());
+
+    static final int MAX_ATTEMPTS = 5;
+    static final long DEFAULT_DRAIN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final String LOOPBACK = "127.0.0.0/8,::1";
+    private static final Set<String> SEND_OPTIONS = 
+            new HashSet<>(Arrays.asList("serveraddress", "serverport", "routes", "priority"));
+
+    private Send send;
+    private Spool spool;
+    private TimingWheel<String> wheel;
+    private Path home;
+    private Optional<Coalescer> coalescer;
+    private Optional<Cluster> cluster;
+    /* the entries in the wheel or being delivered */
+    private final Set<String> scheduled = ConcurrentHashMap.newKeySet();
+    /* the submitted deliveries that have not completed, waited for by the drain */
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean draining;
+
+    @Override
+    public void exec(Path home, List<String> opts) throws IOException, IllegalStateException
+    {
+        Map<String, String> nvp = Cmd.nvpFlags(opts.stream());
+        this.home = home;
+        send = Send.fromOptions(nvp);
+        spool = Spool.open(home, nvp);
+        MemoryBudget.configure(nvp, Optional.of(spool.dir().resolve("spill")));
+        Ledger.configure(nvp);
+        long tick = Optional.ofNullable(nvp.get("tick")).map(Cmd::durationMillis).orElse(100L);
+        wheel = new TimingWheel<>(tick, System.currentTimeMillis());
+        coalescer = Coalescer.fromOptions(nvp);
+        cluster = Cluster.fromOptions(Cmd.booleanFlags(opts.stream()), nvp, spool.dir(), this::rescan);
+
+        try(WatchService ws = spool.dir().getFileSystem().newWatchService())
+        {
+            spool.dir().register(ws, StandardWatchEventKinds.ENTRY_CREATE);
+            cluster.ifPresent(Cluster::beat);
+            for(String id : spool.ids()) schedule(id);
+            log.info("Relaying from " + spool.dir() + ", " + wheel.size() + " messages scheduled"
+                        + cluster.map(c -> " as node " + c.node).orElse(""));
+
+            ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+            ticker.scheduleAtFixedRate(this::tick, tick, tick, TimeUnit.MILLISECONDS);
+            cluster.ifPresent(c -> ticker.scheduleAtFixedRate(c::beat, c.heartbeat(), c.heartbeat(), TimeUnit.MILLISECONDS));
+            List<Closeable> listeners = startListeners(nvp);
+            listeners.add(LiveConfig.start(home.resolve(".mailrelay"), nvp, send));
+            Optional<Long> drain = Cmd.booleanFlags(opts.stream()).contains("drain") ? Optional.of(DEFAULT_DRAIN_MILLIS)
+                                    : Optional.ofNullable(nvp.get("drain")).map(Cmd::durationMillis);
+            Thread hook = new Thread(() -> drain(ticker, listeners, drain.orElse(0L)), "mailrelay-drain");
+            if(drain.isPresent()) Runtime.getRuntime().addShutdownHook(hook);
+            try
+            {
+                watch(ws);
+            }
+            finally
+            {
+                if(!drain.isPresent() || removeHook(hook)) drain(ticker, listeners, drain.orElse(0L));
+            }
+        }
+    }
+
+    /**
+     * Stops taking in and starting deliveries, waits up to {@code millis} for those in flight to complete, and closes
+     * the connections with a QUIT. Entries not delivered stay in the spool for the next start, or another node.
+     */
+    private void drain(ScheduledExecutorService ticker, List<Closeable> listeners, long millis)
+    {
+        draining = true;
+        ticker.shutdownNow();
+        for(Closeable c : listeners)
+        try
+        {
+            c.close();
+        }
+        catch(IOException e)
+        {
+            log.log(Level.WARNING, "Could not close " + c, e);
+        }
+        if(millis > 0) log.info("Draining " + inFlight.get() + " deliveries in flight, for up to " + millis / 1000 + "s");
+        long deadline = System.currentTimeMillis() + millis;
+        synchronized(inFlight)
+        {
+            try
+            {
+                for(long left; inFlight.get() > 0 && (left = deadline - System.currentTimeMillis()) > 0; )
+                    inFlight.wait(left);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(inFlight.get() > 0) log.warning("Stopping with " + inFlight.get() + " deliveries in flight");
+        else if(millis > 0) log.info("Drained");
+        send.close();
+        try
+        {
+            if(cluster.isPresent()) cluster.get().close();
+        }
+        catch(IOException e)
+        {
+            log.log(Level.WARNING, "Could not leave the cluster", e);
+        }
+    }
+
+    /* false if the hook is already running */
+    private static boolean removeHook(Thread hook)
+    {
+        try
+        {
+            return Runtime.getRuntime().removeShutdownHook(hook);
+        }
+        catch(IllegalStateException e)
+        {
+            return false;
+        }
+    }
+
+    private void submitted()
+    {
+        inFlight.incrementAndGet();
+    }
+
+    private void completed()
+    {
+        if(inFlight.decrementAndGet() == 0)
+        synchronized(inFlight)
+        {
+            inFlight.notifyAll();
+        }
+    }
+
+    private List<Closeable> startListeners(Map<String, String> nvp) throws IOException
+    {
+        List<Closeable> listeners = new ArrayList<>();
+        Map<String, String> opts = sendOptions(nvp);
+        InetAddress bind = InetAddress.getByName(nvp.getOrDefault("bind", "127.0.0.1"));
+        if(nvp.containsKey("smtp"))
+        {
+            // the listener has no smtp AUTH, whoever can connect sends through the logged in accounts
+            if(!bind.isLoopbackAddress() && !nvp.containsKey("smtp-allow"))
+                throw new IllegalStateException("Listening for smtp on " + bind + " needs --smtp-allow, the client "
+                                                + "addresses that may send through the logged in accounts");
+            AddressFilter clients = AddressFilter.parse(nvp.getOrDefault("smtp-allow", LOOPBACK));
+            SmtpListener smtp = new SmtpListener(new InetSocketAddress(bind, Integer.parseInt(nvp.get("smtp"))), spool,
+                                    Long.parseLong(nvp.getOrDefault("max-size", String.valueOf(SmtpListener.DEFAULT_MAX_SIZE))),
+                                    opts, Collections.emptySet(), clients, Try.uncheck(this::schedule));
+            start("mailrelay-smtp", smtp);
+            listeners.add(smtp);
+        }
+        if(nvp.containsKey("http"))
+        {
+            Optional<String> token = httpToken(nvp);
+            if(!bind.isLoopbackAddress() && !token.isPresent())
+                throw new IllegalStateException("Listening for http on " + bind + " needs --http-token-file, the "
+                                                + "token clients must send");
+            listeners.add(new HttpListener(new InetSocketAddress(bind, Integer.parseInt(nvp.get("http"))),
+                                    Integer.parseInt(nvp.getOrDefault("http-threads", "4")), send, spool, opts, token,
+                                    Try.uncheck(this::schedule)));
+        }
+        return listeners;
+    }
+
+    /* read from a file, so that the token is not in the command line others can list */
+    private static Optional<String> httpToken(Map<String, String> nvp) throws IOException
+    {
+        if(!nvp.containsKey("http-token-file")) return Optional.empty();
+        Path file = Paths.get(nvp.get("http-token-file"));
+        String token = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+        if(token.isEmpty()) throw new IllegalStateException("The token file " + file + " is empty");
+        return Optional.of(token);
+    }
+
+    /**
+     * The relay options that are passed on to {@link Send} with messages it accepts.
+     */
+    static Map<String, String> sendOptions(Map<String, String> nvp)
+    {
+        return nvp.entrySet().stream().filter(e -> SEND_OPTIONS.contains(e.getKey()))
+                    .collect(Collectors.toMap(e -> e.getKey(), e -> e.getValue()));
+    }
+
+    private static void start(String name, Runnable r)
+    {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void watch(WatchService ws) throws IOException
+    {
+        try
+        {
+            for(;;)
+            {
+                WatchKey key = ws.take();
+                for(WatchEvent<?> ev : key.pollEvents())
+                {
+                    if(ev.kind() == StandardWatchEventKinds.OVERFLOW)
+                    {
+                        for(String id : spool.ids()) schedule(id);
+                        continue;
+                    }
+                    String id = Spool.id((Path)ev.context());
+                    if(id != null) schedule(id);
+                }
+                key.reset();
+            }
+        }
+        catch(InterruptedException | ClosedWatchServiceException e)
+        {
+            log.info("Relay stopped");
+        }
+    }
+
+    /* picks up the entries of shards taken over from another node */
+    private void rescan()
+    {
+        try
+        {
+            for(String id : spool.ids()) schedule(id);
+        }
+        catch(IOException e)
+        {
+            log.log(Level.SEVERE, "Could not read the spool " + spool.dir(), e);
+        }
+    }
+
+    private void schedule(String id) throws IOException
+    {
+        if(!scheduled.add(id)) return;
+        Optional<Spool.Entry> e = spool.read(id);
+        if(e.isPresent() && cluster.isPresent() && !cluster.get().owns(e.get()))
+            scheduled.remove(id);
+        else if(e.isPresent())
+        {
+            log.fine(() -> "Scheduling " + id + " at " + e.get().due);
+            wheel.add(id, e.get().due);
+        }
+        else
+            scheduled.remove(id);
+    }
+
+    private void tick()
+    {
+        List<String> due = wheel.advance(System.currentTimeMillis());
+        if(!due.isEmpty()) log.fine(() -> "Delivering a batch of " + due.size() + " messages");
+        due.forEach(this::deliver);
+        coalescer.ifPresent(c -> c.expired(System.currentTimeMillis()).forEach(this::deliver));
+    }
+
+    private void deliver(String id)
+    {
+        Spool.Entry begun = null;
+        if(draining)
+        {
+            scheduled.remove(id);
+            return;
+        }
+        try
+        {
+            Optional<Spool.Entry> oe = spool.read(id);
+            if(!oe.isPresent() || (cluster.isPresent() && !cluster.get().begin(oe.get())))
+            {
+                scheduled.remove(id);
+                return;
+            }
+            Spool.Entry e = begun = oe.get();
+            if(coalescer.isPresent() && coalescer.get().accepts(e))
+            {
+                String subject;
+                try(Spool.SpooledMessage msg = spool.message(id))
+                {
+                    subject = msg.getSubject();
+                }
+                begun = null;
+                coalescer.get().add(e, subject, spool.size(id), System.currentTimeMillis()).ifPresent(this::deliver);
+            }
+            else
+                send(e);
+        }
+        catch(Exception ex)
+        {
+            log.log(Level.SEVERE, "Could not deliver " + id, ex);
+            scheduled.remove(id);
+            if(begun != null) ended(begun);
+        }
+    }
+
+    /* the delivery attempt of the entry is over, its shard may be handed over */
+    private void ended(Spool.Entry e)
+    {
+        cluster.ifPresent(c -> c.end(e));
+    }
+
+    private void send(Spool.Entry e) throws IOException, MessagingException
+    {
+        String id = e.id;
+        Spool.SpooledMessage msg = spool.message(id);
+        Set<String> flags = Stream.concat(e.flags.stream(), Stream.of("cache")).collect(Collectors.toSet());
+        Set<Address> delivered = ConcurrentHashMap.newKeySet();
+        submitted();
+        CompletableFuture<Void> sent = null;
+        try
+        {
+            sent = send.submit(home, e.nvp, flags, e.from, msg, e.pending(), delivered);
+        }
+        finally
+        {
+            // not handed off, e.g. interrupted waiting for memory by a drain
+            if(sent == null)
+            {
+                completed();
+                close(Collections.singletonList(msg));
+            }
+        }
+        sent.whenComplete((v, ex) ->
+        {
+            try
+            {
+                msg.close();
+                if(ex == null)
+                {
+                    spool.remove(id);
+                    scheduled.remove(id);
+                    log.fine(() -> "Delivered " + id);
+                }
+                else
+                    retry(e, ex, delivered);
+            }
+            catch(IOException io)
+            {
+                log.log(Level.SEVERE, "Could not update the spool for " + id, io);
+            }
+            finally
+            {
+                ended(e);
+                completed();
+            }
+        });
+    }
+
+    /**
+     * Sends the messages of a coalesced group as one digest, the entries are delivered or retried together.
+     */
+    private void deliver(Coalescer.Group g)
+    {
+        List<Spool.SpooledMessage> msgs = new ArrayList<>();
+        try
+        {
+            if(g.entries.size() == 1)
+            {
+                send(g.entries.get(0));
+                return;
+            }
+            for(Spool.Entry e : g.entries) msgs.add(spool.message(e.id));
+            Spool.Entry first = g.entries.get(0);
+            Set<String> flags = Stream.concat(first.flags.stream(), Stream.of("cache")).collect(Collectors.toSet());
+            log.info("Sending " + g.entries.size() + " messages from " + first.from + " as a digest");
+            // the entries of a group are still to be delivered to the same recipients
+            Set<Address> delivered = ConcurrentHashMap.newKeySet();
+            submitted();
+            CompletableFuture<Void> sent = null;
+            try
+            {
+                sent = send.submit(home, first.nvp, flags, first.from, Coalescer.digest(g, msgs), first.pending(), 
+                                    delivered);
+            }
+            finally
+            {
+                // the messages are closed by the catch below
+                if(sent == null) completed();
+            }
+            sent.whenComplete((v, ex) ->
+            {
+                close(msgs);
+                for(Spool.Entry e : g.entries)
+                try
+                {
+                    if(ex == null)
+                    {
+                        spool.remove(e.id);
+                        scheduled.remove(e.id);
+                    }
+                    else
+                        retry(e, ex, delivered);
+                }
+                catch(IOException io)
+                {
+                    log.log(Level.SEVERE, "Could not update the spool for " + e.id, io);
+                }
+                finally
+                {
+                    ended(e);
+                }
+                completed();
+            });
+        }
+        catch(Exception ex)
+        {
+            log.log(Level.SEVERE, "Could not deliver a digest of " + g.entries, ex);
+            close(msgs);
+            g.entries.forEach(e -> scheduled.remove(e.id));
+            g.entries.forEach(this::ended);
+        }
+    }
+
+    private static void close(List<Spool.SpooledMessage> msgs)
+    {
+        for(Spool.SpooledMessage m : msgs)
+        try
+        {
+            m.close();
+        }
+        catch(IOException e)
+        {
+            log.log(Level.FINE, "Close failed", e);
+        }
+    }
+
+    /**
+     * Reschedules an entry whose delivery failed, to be sent only to the recipients it was not delivered to.
+     */
+    private void retry(Spool.Entry e, Throwable ex, Set<Address> delivered) throws IOException
+    {
+        if(Stream.of(e.pending()).allMatch(delivered::contains))
+        {
+            log.log(Level.WARNING, "Delivery of " + e.id + " failed after it was sent to every recipient", ex);
+            spool.remove(e.id);
+            scheduled.remove(e.id);
+            return;
+        }
+        if(e.attempts + 1 >= MAX_ATTEMPTS)
+        {
+            log.log(Level.SEVERE, "Giving up on " + e.id + " after " + MAX_ATTEMPTS + " attempts", ex);
+            spool.fail(e.id);
+            scheduled.remove(e.id);
+            return;
+        }
+        long backoff = TimeUnit.MINUTES.toMillis(1L << (2 * e.attempts));
+        log.log(Level.WARNING, "Delivery of " + e.id + " failed, retrying in " + backoff / 1000 + "s"
+                + (delivered.isEmpty() ? "" : ", it was sent to " + delivered), ex);
+        Spool.Entry next = spool.reschedule(e, System.currentTimeMillis() + backoff, delivered);
+        wheel.add(next.id, next.due);
+    }
+
+    @Override
+    public List<String> help(String name)
+    {
+        return Stream.concat(
+                    Stream.of("relay \t runs until stopped, delivering spooled and scheduled messages:"),
+                    Stream.of(
+                    "--spool : the spool folder, defaults to spool in the .mailrelay folder (opt)",
+                    "--workers : the number of concurrent deliveries (opt)",
+                    "--accounts : the number of senders whose connections are kept open (opt)",
+                    "--memory-budget : the bytes of messages held in memory, e.g. 256m, past it they spill to the spool",
+                    "    folder, defaults to a quarter of the heap (opt)",
+                    "--memory-wait : how long a submission waits for memory before it is spilled, defaults to 5s (opt)",
+                    "--idle : the time after which unused connections are closed, e.g. 5m (opt)",
+                    "--ledger-retention : delete the ledger segments with no entry newer than this, e.g. 90d,",
+                    "    defaults to keeping them all (opt)",
+                    "--tick : the resolution of scheduled sends, e.g. 100ms (opt)",
+                    "--smtp : accept smtp submissions on this port, the sender must be a logged in account (opt)",
+                    "--smtp-allow : the client addresses and networks that may submit over smtp, e.g. 10.0.0.0/8,",
+                    "    defaults to loopback and is required to bind another address (opt)",
+                    "--bind : the address to listen on, defaults to 127.0.0.1 (opt)",
+                    "--max-size : the largest message accepted in bytes (opt)",
+                    "--http : accept json submissions with POST /messages on this port (opt)",
+                    "--http-token-file : a file holding the token http requests must send as Authorization: Bearer,",
+                    "    required to bind another address than loopback (opt)",
+                    "--http-threads : the number of threads serving http requests (opt)",
+                    "--coalesce : hold messages with the same sender, recipients and subject for this window, e.g. 30s,",
+                    "    and send them as one digest (opt)",
+                    "--coalesce-max : the most messages in a digest, defaults to " + Coalescer.DEFAULT_MAX_COUNT + " (opt)",
+                    "--coalesce-max-size : the most bytes in a digest, e.g. 10m (opt)",
+                    "--coalesce-pattern : the regex of the parts of subjects that may differ, defaults to numbers (opt)",
+                    "--cluster : share the spool with other relays, each delivers the messages of the senders whose",
+                    "    shards it holds, and takes over those of a relay that stops (opt)",
+                    "--node : the name of this relay in the cluster, defaults to its process id and host (opt)",
+                    "--shards : the number of shards of the cluster, set by its first relay, defaults to "
+                        + Cluster.DEFAULT_SHARDS + " (opt)",
+                    "--heartbeat : how often the relay renews its place in the cluster, defaults to 2s (opt)",
+                    "--drain : when stopped, finish the deliveries in flight for up to this long, e.g. 1m, or 30s if no",
+                    "    duration is given, before closing the connections (opt)",
+                    "--serverAddress, --serverPort, --routes : as for send (opt), changes of the routes file apply as it is saved",
+                    "Example: relay --workers=16")
+                         .map(s -> " \t " + s))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,130 @@
+package org.sb.mailrelay;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An upstream smtp server, with the senders and recipient domains that are relayed through it.
+ */
+final class Route
+{
+    enum Auth {XOAUTH2, NONE}
+
+    /**
+     * The smtp client used for the route, javax.mail's blocking transport or the selector based {@link NioSmtpEngine}.
+     */
+    enum Engine {JAVAMAIL, NIO}
+
+    static final int DEFAULT_POOL = 1;
+    static final int DEFAULT_MAX_RECIPIENTS = 100;
+
+    final String name;
+    final String host;
+    final int port;
+    final Auth auth;
+    final Engine engine;
+    final int poolSize;
+    final int maxRecipients;
+    final Set<String> domains;
+    final Set<String> senders;
+
+    Route(String name, String host, int port, Auth auth, Engine engine, int poolSize, int maxRecipients,
+            Set<String> domains, Set<String> senders)
+    {
+        if(poolSize <= 0) throw new IllegalStateException("The pool size of route '" + name + "' must be positive");
+        if(maxRecipients <= 0)
+            throw new IllegalStateException("The recipient limit of route '" + name + "' must be positive");
+        this.name = name;
+        this.host = host;
+        this.port = port;
+        this.auth = auth;
+        this.engine = engine;
+        this.poolSize = poolSize;
+        this.maxRecipients = maxRecipients;
+        this.domains = domains;
+        this.senders = senders;
+    }
+
+    /**
+     * Reads the route {@code name} from properties of the form {@code route.<name>.<key>}.
+     *
+     * @param engine the engine used if the route does not name one
+     */
+    static Route parse(String name, Map<String, String> props, Engine engine)
+    {
+        String prefix = "route." + name + ".";
+        String host = props.get(prefix + "host");
+        if(host == null) throw new IllegalStateException("No host specified for route '" + name + "'");
+        return new Route(name, host,
+                Integer.parseInt(props.getOrDefault(prefix + "port", "587")),
+                Auth.valueOf(props.getOrDefault(prefix + "auth", "xoauth2").toUpperCase(Locale.ROOT)),
+                Optional.ofNullable(props.get(prefix + "engine")).map(Route::engine).orElse(engine),
+                Integer.parseInt(props.getOrDefault(prefix + "pool", String.valueOf(DEFAULT_POOL))),
+                Integer.parseInt(props.getOrDefault(prefix + "maxrecipients", String.valueOf(DEFAULT_MAX_RECIPIENTS))),
+                list(props.get(prefix + "domains")),
+                list(props.get(prefix + "senders")));
+    }
+
+    static Engine engine(String name)
+    {
+        return Engine.valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+
+    private static Set<String> list(String csv)
+    {
+        return csv == null ? Collections.emptySet()
+                           : Stream.of(csv.split(",")).map(s -> s.trim().toLowerCase(Locale.ROOT))
+                                                         .filter(s -> !s.isEmpty()).collect(Collectors.toSet());
+    }
+
+    /**
+     * @return true if the domain is listed, either exactly, or as a sub domain of a {@code *.<domain>} entry
+     */
+    boolean matchesDomain(String domain)
+    {
+        if(domains.contains(domain)) return true;
+        for(int dot = domain.indexOf('.'); dot >= 0; dot = domain.indexOf('.', dot + 1))
+            if(domains.contains("*" + domain.substring(dot))) return true;
+        return false;
+    }
+
+    /**
+     * Splits the recipients into batches no larger than this route's recipient limit.
+     */
+    <T> List<List<T>> chunk(List<T> rcpts)
+    {
+        List<List<T>> chunks = new ArrayList<>();
+        for(int i = 0; i < rcpts.size(); i += maxRecipients)
+            chunks.add(rcpts.subList(i, Math.min(rcpts.size(), i + maxRecipients)));
+        return chunks;
+    }
+
+    /**
+     * @return true if the connections of the other route are made the same way, to the same server
+     */
+    boolean sameConnection(Route other)
+    {
+        return host.equalsIgnoreCase(other.host) && port == other.port && auth == other.auth && engine == other.engine;
+    }
+
+    /**
+     * The key of the connection pool for a sender on this route.
+     */
+    String poolKey(String sender)
+    {
+        return name + "/" + host + ":" + port + "/" + sender;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "route " + name + " (" + host + ":" + port + ", " + auth + ", " + engine + ")";
+    }
+}
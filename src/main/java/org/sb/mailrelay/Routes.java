@@ -0,0 +1,144 @@
+package org.sb.mailrelay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * The routing table, maps senders and recipient domains to upstream servers.
+ * <p>
+ * Routes are read from {@code routes.properties} in the .mailrelay folder, or the file given by {@code --routes}.
+ * A route is declared by listing its name in {@code routes} and configured by {@code route.<name>.<key>} entries,
+ * with the keys {@code host}, {@code port}, {@code auth} (xoauth2 or none), {@code engine} (javamail or nio),
+ * {@code pool}, {@code maxrecipients}, {@code domains} and {@code senders}. Everything else goes through the default route made from
+ * {@code --serverAddress} and {@code --serverPort}.
+ */
+final class Routes
+{
+    static final String FILE = "routes.properties";
+
+    /* the tables of the routes files a LiveConfig keeps up to date, so that they are not read for every message */
+    private static final Map<Path, Map<String, String>> live = new ConcurrentHashMap<>();
+
+    private final List<Route> routes;
+    private final Route defaultRoute;
+
+    Routes(List<Route> routes, Route defaultRoute)
+    {
+        this.routes = routes;
+        this.defaultRoute = defaultRoute;
+    }
+
+    static Routes load(Path mailrelay, Map<String, String> nvp) throws IOException
+    {
+        Route def = new Route("default", nvp.getOrDefault("serveraddress", "smtp.gmail.com"),
+                                        Integer.parseInt(nvp.getOrDefault("serverport", "587")), Route.Auth.XOAUTH2,
+                                        Route.engine(nvp.getOrDefault("engine", "javamail")),
+                                        Route.DEFAULT_POOL, Route.DEFAULT_MAX_RECIPIENTS,
+                                        Collections.emptySet(), Collections.emptySet());
+        Path file = file(mailrelay, nvp);
+        Map<String, String> props = live.get(file);
+        if(props != null) return parse(props, def);
+        if(Files.notExists(file))
+        {
+            if(nvp.containsKey("routes")) throw new IllegalStateException("The routes file " + file + " does not exist");
+            return new Routes(Collections.emptyList(), def);
+        }
+        return parse(read(file), def);
+    }
+
+    /**
+     * The routes file of the {@code --routes} option, or routes.properties in the .mailrelay folder.
+     */
+    static Path file(Path mailrelay, Map<String, String> nvp)
+    {
+        return Optional.ofNullable(nvp.get("routes")).map(Paths::get).orElseGet(() -> mailrelay.resolve(FILE))
+                    .toAbsolutePath().normalize();
+    }
+
+    /**
+     * Sets the table of a routes file that is kept up to date as it changes, or stops keeping it if null.
+     */
+    static void update(Path file, Map<String, String> props)
+    {
+        if(props == null) live.remove(file);
+        else live.put(file, props);
+    }
+
+    static Map<String, String> read(Path file) throws IOException
+    {
+        Properties p = new Properties();
+        try(InputStream in = Files.newInputStream(file))
+        {
+            p.load(in);
+        }
+        return p.stringPropertyNames().stream()
+                .collect(Collectors.toMap(k -> k.toLowerCase(Locale.ROOT), k -> p.getProperty(k).trim()));
+    }
+
+    static Routes parse(Map<String, String> props, Route def)
+    {
+        List<Route> routes = Stream.of(props.getOrDefault("routes", "").split(","))
+                                    .map(String::trim).filter(s -> !s.isEmpty())
+                                    .map(name -> Route.parse(name.toLowerCase(Locale.ROOT), props, def.engine))
+                                    .collect(Collectors.toList());
+        return new Routes(routes, routes.stream().filter(r -> r.name.equals("default")).findFirst().orElse(def));
+    }
+
+    /**
+     * Picks the route for a recipient, a route listing the sender wins over a route listing the recipient's domain.
+     */
+    Route route(String sender, Address rcpt)
+    {
+        String from = sender.toLowerCase(Locale.ROOT);
+        for(Route r : routes)
+            if(r.senders.contains(from)) return r;
+        String domain = domain(rcpt);
+        for(Route r : routes)
+            if(r.matchesDomain(domain)) return r;
+        return defaultRoute;
+    }
+
+    /**
+     * Groups the recipients by route, preserving their order.
+     */
+    Map<Route, List<Address>> split(String sender, Address[] rcpts)
+    {
+        Map<Route, List<Address>> split = new LinkedHashMap<>();
+        for(Address rcpt : rcpts)
+            split.computeIfAbsent(route(sender, rcpt), r -> new ArrayList<>()).add(rcpt);
+        return split;
+    }
+
+    Route defaultRoute()
+    {
+        return defaultRoute;
+    }
+
+    List<Route> routes()
+    {
+        return routes;
+    }
+
+    private static String domain(Address rcpt)
+    {
+        String addr = rcpt instanceof InternetAddress ? ((InternetAddress)rcpt).getAddress() : rcpt.toString();
+        return addr.substring(addr.lastIndexOf('@') + 1).toLowerCase(Locale.ROOT);
+    }
+}
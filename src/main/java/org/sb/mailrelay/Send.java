@@ -5,28 +5,44 @@ package org.sb.mailrelay;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import javax.activation.DataHandler;
-import javax.activation.FileDataSource;
 import javax.mail.Address;
 import javax.mail.Message;
 import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
 import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
@@ -34,7 +50,8 @@ import javax.mail.internet.MimeMultipart;
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.http.HttpTransport;
-import com.sun.mail.smtp.SMTPTransport;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
 
 /**
  * @author sam
@@ -44,9 +61,86 @@ public class Send implements Cmd
 {
 	private static final Logger log = Logger.getLogger(Send.class.getPackage().getName());
 	
-	private Map<String, Credential> credMap = new ConcurrentHashMap<String, Credential>();
-	private Map<String, ConnMgr<SMTPTransport>> transMap = new ConcurrentHashMap<>();
+	static final int DEFAULT_MAX_ACCOUNTS = 64;
+	static final long DEFAULT_MAX_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+	static final int DEFAULT_WORKERS = 8;
 	
+	private final BoundedCache<String, Credential> credMap;
+	private final BoundedCache<String, ConnPool<Transmitter>> transMap;
+	private final Lazy<LaneScheduler> lanes;
+	private final Lazy<Pipeline> pipeline;
+	private final AttachmentCache attachmentCache;
+	
+	private static final Supplier<ExecutorService> fanout = Lazy.wrap(() -> Executors.newCachedThreadPool(r -> 
+	{
+		Thread t = new Thread(r, "mailrelay-route");
+		t.setDaemon(true);
+		return t;
+	}));
+	
+	public Send()
+	{
+		this(DEFAULT_MAX_ACCOUNTS, DEFAULT_MAX_IDLE_MILLIS, DEFAULT_WORKERS, 0);
+	}
+	
+	/**
+	 * @param maxAccounts the number of senders whose credentials and connections are kept warm
+	 * @param maxIdleMillis cached connections and credentials unused for this long are released
+	 * @param workers the number of concurrent deliveries of {@link #submit} 
+	 * @param attachmentBudget the bytes of encoded attachments kept for reuse, 0 to not keep any
+	 */
+	Send(int maxAccounts, long maxIdleMillis, int workers, long attachmentBudget)
+	{
+		attachmentCache = new AttachmentCache(attachmentBudget);
+		lanes = Lazy.wrap(() -> new LaneScheduler(workers, LaneScheduler.DEFAULT_LARGE_BYTES));
+		pipeline = Lazy.wrap(() -> new Pipeline(Pipeline.defaultEncoders(), workers * 4));
+		credMap = new BoundedCache<>("credential", maxAccounts, maxIdleMillis, cred -> {});
+		transMap = new BoundedCache<>("connection", maxAccounts, maxIdleMillis, ConnPool::close);
+	}
+	
+	/**
+	 * Makes a sender for a long running command, sized by the {@code --accounts}, {@code --idle}, 
+	 * {@code --workers} and {@code --attachment-cache} options.
+	 */
+	static Send fromOptions(Map<String, String> nvp)
+	{
+		return new Send(Integer.parseInt(nvp.getOrDefault("accounts", String.valueOf(DEFAULT_MAX_ACCOUNTS))),
+				Optional.ofNullable(nvp.get("idle")).map(Cmd::durationMillis).orElse(DEFAULT_MAX_IDLE_MILLIS),
+				Integer.parseInt(nvp.getOrDefault("workers", String.valueOf(DEFAULT_WORKERS))),
+				Optional.ofNullable(nvp.get("attachment-cache")).map(Cmd::byteSize).orElse(AttachmentCache.DEFAULT_BUDGET));
+	}
+	
+	/**
+	 * Applies a change of a route to its cached connections, the connections of other routes stay open.
+	 * A route now made to a different server, or removed, has its connections closed once their messages are sent,
+	 * a route with another pool size has its pools resized.
+	 *
+	 * @param changed the route as it is now, null if it was removed
+	 */
+	void routeChanged(Route old, Route changed)
+	{
+		String prefix = old.name + "/";
+		if(changed == null || !old.sameConnection(changed))
+		{
+			log.info("Closing the connections of " + old);
+			transMap.invalidateIf(k -> k.startsWith(prefix));
+		}
+		else if(old.poolSize != changed.poolSize)
+		{
+			log.info("Resizing the connection pools of " + changed + " to " + changed.poolSize);
+			transMap.forEach((k, p) -> { if(k.startsWith(prefix)) p.resize(changed.poolSize); });
+		}
+	}
+	
+	/**
+	 * Closes the cached connections and forgets the cached credentials.
+	 */
+	void close()
+	{
+		transMap.close();
+		credMap.close();
+	}
+
 	/* (non-Javadoc)
 	 * @see org.sb.mailrelay.Cmd#exec(java.util.List)
 	 */
@@ -57,75 +151,459 @@ public class Send implements Cmd
 			Map<String, String> nvp = Cmd.nvpFlags(opts.stream());
 			Set<String> flags = Cmd.booleanFlags(opts.stream());
 			
-			boolean cache = flags.contains("cache");
-			
-			String senderAddress = nvp.get("from");
-			if(senderAddress == null) throw new IllegalStateException("No 'from' option specified");
+			String senderAddress = Optional.ofNullable(nvp.get("from")).orElse(nvp.get("pool"));
+			if(senderAddress == null) throw new IllegalStateException("No 'from' or 'pool' option specified");
 
-			Message msg = makeMessage(nvp, flags);
-			Address[] allRecipients = msg.getAllRecipients();
-			if(allRecipients == null || allRecipients.length == 0) throw new IllegalStateException("No recipients specified");
-			
-			log.fine(() -> "Sending message " + msg + "to " + Arrays.toString(allRecipients));
-			
-			Credential cred = getCreds(home, senderAddress, cache);
+			SpillBuffer stdin = flags.contains("stdin") ? readSysIn() : null;
+			try {
+				Message msg = makeMessage(nvp, flags, Collections.emptyList(), stdin);
+				Address[] allRecipients = msg.getAllRecipients();
+				if(allRecipients == null || allRecipients.length == 0) throw new IllegalStateException("No recipients specified");
 				
-			SMTPTransport smtpTransport = getTransport(nvp, flags, senderAddress, cred, cache);
-			
-			smtpTransport.sendMessage(msg, allRecipients);
-			if(!cache) smtpTransport.close();
-		} catch (MessagingException | GeneralSecurityException e) {
-			// TODO Auto-generated catch block
+				Optional<Long> due = dueTime(nvp);
+				LaneScheduler.priority(nvp);
+				Ledger.configure(nvp);
+				if(due.isPresent())
+				{
+					Map<String, String> spooled = new HashMap<>(nvp);
+					Stream.of("at", "delay", "text", "file", "to", "cc", "bcc", "subject").forEach(spooled::remove);
+					String id = Spool.open(home, nvp).put(senderAddress, allRecipients, (MimeMessage)msg, due.get(), 
+							spooled, flags);
+					log.info("Scheduled message " + id + " for " + new Date(due.get()) + ", it is sent by a running relay");
+					return;
+				}
+				deliver(home, nvp, flags, senderAddress, msg, allRecipients);
+			} finally {
+				if(stdin != null) stdin.release();
+			}
+		} catch (MessagingException e) {
 			throw new IOException(e);
 		}
 
 	}
 
-	protected SMTPTransport getTransport(Map<String, String> nvp, Set<String> flags, String senderAddress,
-			Credential cred, boolean cache) throws IOException 
+	/**
+	 * Relays the message to the recipients, recipients on different routes are delivered in parallel.
+	 */
+	void deliver(Path home, Map<String, String> nvp, Set<String> flags, String senderAddress, Message msg,
+			Address[] allRecipients) throws IOException
+	{
+		deliver(home, nvp, flags, senderAddress, msg, allRecipients, false, ConcurrentHashMap.newKeySet());
+	}
+
+	/**
+	 * Queues the message for delivery through the lane matching its size and priority, 
+	 * large messages are sent over their own connections so that they do not hold up smaller ones.
+	 * The message is encoded on the pipeline's encoders first, so the lane workers only write bytes, 
+	 * and this blocks while too many messages are waiting to be sent.
+	 */
+	CompletableFuture<Void> submit(Path home, Map<String, String> nvp, Set<String> flags, String senderAddress, 
+			Message msg, Address[] allRecipients) throws IOException
 	{
-		Supplier<SMTPTransport> ts = Try.uncheck(() -> OauthProvider.connectToSmtp(nvp.getOrDefault("serverAddress", "smtp.gmail.com"),
-				Integer.parseInt(nvp.getOrDefault("serverPort", "587")),
-				senderAddress,
-		        cred.getAccessToken(),
-		        flags.contains("debug")));
+		return submit(home, nvp, flags, senderAddress, msg, allRecipients, ConcurrentHashMap.newKeySet());
+	}
+
+	/**
+	 * Like {@link #submit(Path, Map, Set, String, Message, Address[])}, and adds the recipients the message
+	 * was accepted for to the set as it goes, so that when the send fails the caller retries only the others.
+	 * 
+	 * @param delivered a set that is safe to add to from several threads
+	 */
+	CompletableFuture<Void> submit(Path home, Map<String, String> nvp, Set<String> flags, String senderAddress, 
+			Message msg, Address[] allRecipients, Set<Address> delivered) throws IOException
+	{
+		return pipeline.get().submit(msg, Try.uncheckFunction(encoded -> 
+		{
+			LaneScheduler.Lane lane = lanes.get().classify(encoded, nvp);
+			log.fine(() -> "Queuing message from " + senderAddress + " in the " + lane + " lane");
+			return lanes.get().submit(senderAddress, lane, 
+					() -> deliver(home, nvp, flags, senderAddress, encoded, allRecipients, 
+								lane == LaneScheduler.Lane.LARGE, delivered));
+		}));
+	}
+	
+	/**
+	 * Delivers the message unless it has an idempotency key and a message with the same key was sent 
+	 * within the {@code --dedup-window}, the duplicate is then only logged.
+	 */
+	private Void deliver(Path home, Map<String, String> nvp, Set<String> flags, String senderAddress, Message msg,
+			Address[] allRecipients, boolean dedicated, Set<Address> delivered) throws IOException
+	{
+		Optional<DedupIndex.Key> key;
+		try {
+			key = DedupIndex.key(nvp, flags, senderAddress, msg, allRecipients);
+		} catch (MessagingException e) {
+			throw new IOException(e);
+		}
+		if(!key.isPresent()) 
+			return deliverOnce(home, nvp, flags, senderAddress, msg, allRecipients, dedicated, delivered);
 		
-		if(cache)
+		DedupIndex dedup = DedupIndex.forDirectory(mailrelay(home));
+		long window = Optional.ofNullable(nvp.get("dedup-window")).map(Cmd::durationMillis).orElse(DedupIndex.DEFAULT_WINDOW);
+		if(!dedup.begin(key.get(), window))
 		{
-			ConnMgr<SMTPTransport> st = transMap.get(senderAddress);
-			if(st == null )
-			synchronized(this)
+			log.info("Message " + key.get() + " was already sent to " + Arrays.toString(allRecipients) + ", it is not sent again");
+			ledger(home, senderAddress, msg, Arrays.asList(allRecipients), Ledger.Outcome.DUPLICATE, "Idempotency key " + key.get());
+			return null;
+		}
+		boolean sent = false;
+		try {
+			deliverOnce(home, nvp, flags, senderAddress, msg, allRecipients, dedicated, delivered);
+			sent = true;
+		} finally {
+			dedup.end(key.get(), sent, window);
+		}
+		return null;
+	}
+	
+	private Void deliverOnce(Path home, Map<String, String> nvp, Set<String> flags, String senderAddress, Message msg,
+			Address[] allRecipients, boolean dedicated, Set<Address> delivered) throws IOException
+	{
+		log.fine(() -> "Sending message " + msg + "to " + Arrays.toString(allRecipients));
+		List<Address> suppressed = new ArrayList<>();
+		Address[] rcpts = flags.contains("ignore-suppressions") ? allRecipients 
+				: Suppressions.forDirectory(mailrelay(home)).filter(allRecipients, suppressed::add);
+		if(!suppressed.isEmpty())
+		{
+			log.info("Not sending to suppressed addresses " + suppressed);
+			ledger(home, senderAddress, msg, suppressed, Ledger.Outcome.SUPPRESSED, "Suppressed");
+		}
+		if(rcpts.length == 0)
+		{
+			log.warning("All the recipients of the message are suppressed, it is not sent");
+			return null;
+		}
+		String pool = nvp.get("pool");
+		if(pool != null) return deliverPooled(home, nvp, flags, SenderPool.forName(mailrelay(home), pool), msg, rcpts, 
+				dedicated, delivered);
+		return deliverRouted(home, nvp, flags, senderAddress, msg, rcpts, dedicated, delivered);
+	}
+	
+	/**
+	 * Sends from an account of the pool, and from another while the account picked is throttled or refused, 
+	 * to the recipients the failed account did not deliver to.
+	 */
+	private Void deliverPooled(Path home, Map<String, String> nvp, Set<String> flags, SenderPool pool, Message msg, 
+			Address[] allRecipients, boolean dedicated, Set<Address> delivered) throws IOException
+	{
+		Set<String> tried = new HashSet<>();
+		IOException last = null;
+		while(true)
+		{
+			Address[] rcpts = Stream.of(allRecipients).filter(a -> !delivered.contains(a)).toArray(Address[]::new);
+			String account;
+			try {
+				account = pool.acquire(rcpts.length, tried);
+			} catch (IOException e) {
+				if(last != null) e.addSuppressed(last);
+				throw e;
+			}
+			try {
+				deliverRouted(home, nvp, flags, account, msg, rcpts, dedicated, delivered);
+				pool.succeeded(account);
+				return null;
+			} catch (IOException | RuntimeException e) {
+				if(!pool.failed(account, rcpts.length, e)) throw e;
+				log.warning("Account " + account + " of pool " + pool.name + " failed, sending from another: " + e);
+				tried.add(account);
+				last = e instanceof IOException ? (IOException)e : new IOException(e);
+			}
+		}
+	}
+	
+	private Void deliverRouted(Path home, Map<String, String> nvp, Set<String> flags, String senderAddress, Message msg,
+			Address[] rcpts, boolean dedicated, Set<Address> delivered) throws IOException
+	{
+		boolean cache = flags.contains("cache");
+		Map<Route, List<Address>> routed = Routes.load(mailrelay(home), nvp).split(senderAddress, rcpts);
+		Message encoded = encodeOnce(msg, routed);
+		try {
+			deliver(home, flags, senderAddress, encoded, routed, cache, dedicated, delivered);
+		} finally {
+			if(encoded != msg) ((EncodedMessage)encoded).close();
+		}
+		if(cache) log.fine(() -> credMap + ", " + transMap + ", " + MemoryBudget.shared());
+		return null;
+	}
+	
+	private void deliver(Path home, Set<String> flags, String senderAddress, Message encoded, 
+			Map<Route, List<Address>> routed, boolean cache, boolean dedicated, Set<Address> delivered) 
+			throws IOException
+	{
+		if(routed.size() == 1)
+		{
+			Entry<Route, List<Address>> e = routed.entrySet().iterator().next();
+			deliver(home, e.getKey(), flags, senderAddress, encoded, e.getValue(), cache, dedicated, delivered);
+		}
+		else
+		{
+			List<CompletableFuture<Void>> sends = routed.entrySet().stream()
+					.map(e -> CompletableFuture.supplyAsync(Try.uncheck(() -> 
+								deliver(home, e.getKey(), flags, senderAddress, encoded, e.getValue(), cache, 
+										dedicated, delivered)), 
+								fanout.get()))
+					.collect(Collectors.toList());
+			IOException failed = null;
+			for(CompletableFuture<Void> f : sends)
+			try
+			{
+				f.join();
+			}
+			catch(CompletionException e)
 			{
-				st = transMap.get(senderAddress);
-				if(st == null )
+				IOException io = e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+				if(failed == null) failed = io;
+				else failed.addSuppressed(io);
+			}
+			if(failed != null) throw failed;
+		}
+	}
+	
+	/**
+	 * Encodes the message up front if it is written more than once, to several routes or recipient batches.
+	 */
+	private static Message encodeOnce(Message msg, Map<Route, List<Address>> routed) throws IOException
+	{
+		if(EncodedMessage.isEncoded(msg)
+				|| routed.size() == 1 && routed.entrySet().iterator().next().getValue().size() 
+										<= routed.keySet().iterator().next().maxRecipients)
+			return msg;
+		try {
+			return EncodedMessage.encode(msg);
+		} catch (MessagingException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	private Void deliver(Path home, Route route, Set<String> flags, String senderAddress, Message msg, 
+			List<Address> rcpts, boolean cache, boolean dedicated, Set<Address> delivered) throws IOException
+	{
+		log.fine(() -> "Relaying to " + rcpts.size() + " recipients through " + route);
+		try {
+			for(List<Address> chunk : route.chunk(rcpts))
+			{
+				Address[] to = chunk.toArray(new Address[chunk.size()]);
+				long start = System.currentTimeMillis();
+				Reply reply = new Reply();
+				try
 				{
-					st = ConnMgr.wrap(ts, t -> t.isConnected(), Try.uncheck(t -> t.close()));
-					transMap.put(senderAddress, st);
+					if(cache)
+						transMap.get(route.poolKey(senderAddress) + (dedicated ? "#large" : ""), 
+								() -> ConnPool.wrap(route.poolSize, 
+										// the credential is looked up for each connection, it may have been refreshed or remade
+										Try.uncheck(() -> getTransport(route, flags, senderAddress,
+												credential(home, route, senderAddress, cache))), 
+										t -> t.isConnected(), Try.uncheck(t -> t.close())))
+								.apply(t -> 
+								{
+									try {
+										t.sendMessage(msg, to);
+									} finally {
+										reply.of(t);
+									}
+									return null;
+								});
+					else
+					{
+						Transmitter smtpTransport = getTransport(route, flags, senderAddress,
+								credential(home, route, senderAddress, cache));
+						try {
+							smtpTransport.sendMessage(msg, to);
+						} finally {
+							reply.of(smtpTransport);
+							smtpTransport.close();
+						}
+					}
+					record(home, senderAddress, msg, to, start, null, reply);
+					delivered.addAll(chunk);
+				}
+				catch(SendFailedException e)
+				{
+					record(home, senderAddress, msg, to, start, e, reply);
+					// the message was accepted for the valid recipients unless the transaction itself failed
+					if(!(e instanceof SMTPSendFailedException) && e.getValidSentAddresses() != null)
+						delivered.addAll(Arrays.asList(e.getValidSentAddresses()));
+					if(!suppressBounces(home, e)) throw e;
+				}
+				catch(MessagingException | IOException | RuntimeException e)
+				{
+					record(home, senderAddress, msg, to, start, e, reply);
+					throw e;
 				}
 			}
-			return st.get();
+		} catch (MessagingException | GeneralSecurityException e) {
+			throw new IOException(e);
 		}
-		return ts.get();
+		return null;
 	}
 
-	protected Credential getCreds(Path home, String senderAddress, boolean cache) throws GeneralSecurityException, IOException 
+	/**
+	 * The server's reply to the message of a transmission, as the transmitter last saw it.
+	 */
+	private static final class Reply
 	{
-		Credential cred = null;
-		Supplier<Credential> scred = Try.uncheck(() -> makeCred(home, senderAddress));
-		if(cache)
+		/* a server that accepted the message replied 250, if the transmitter does not know the reply */
+		volatile int code = 250;
+		volatile String text = "";
+
+		void of(Transmitter t)
 		{
-			cred = credMap.get(senderAddress);
-			if(cred == null)
-			synchronized(this)
+			if(t.lastReturnCode() <= 0) return;
+			code = t.lastReturnCode();
+			text = Optional.ofNullable(t.lastServerResponse()).orElse("").trim();
+		}
+	}
+
+	/**
+	 * Adds the outcome of each recipient of a transmission to the ledger, a failure to do so is only logged.
+	 * 
+	 * @param failure the exception the transmission failed with, null if it succeeded
+	 * @param reply the server's reply to the message, recorded for the recipients it was delivered to
+	 */
+	private void record(Path home, String senderAddress, Message msg, Address[] to, long start, Exception failure,
+			Reply reply)
+	{
+		long now = System.currentTimeMillis();
+		int millis = (int)(now - start);
+		try {
+			String id = msg instanceof MimeMessage ? ((MimeMessage)msg).getMessageID() : null;
+			Map<Address, Ledger.Entry> entries = new LinkedHashMap<>();
+			for(Address a : to)
+				entries.put(a, failure == null 
+						? new Ledger.Entry(now, millis, reply.code, Ledger.Outcome.DELIVERED, id, address(a), senderAddress, 
+								reply.text)
+						: new Ledger.Entry(now, millis, failure instanceof SMTPSendFailedException 
+								? ((SMTPSendFailedException)failure).getReturnCode() : 0, Ledger.Outcome.FAILED, id, 
+								address(a), senderAddress, failure.getMessage()));
+			if(failure instanceof SendFailedException && !(failure instanceof SMTPSendFailedException))
 			{
-				cred = credMap.get(senderAddress);
-				if(cred == null)
-				{
-					cred = scred.get();
-					credMap.put(senderAddress, cred);
-				}
+				SendFailedException sf = (SendFailedException)failure;
+				for(Address a : Optional.ofNullable(sf.getValidSentAddresses()).orElse(new Address[0]))
+					entries.put(a, new Ledger.Entry(now, millis, reply.code, Ledger.Outcome.DELIVERED, id, address(a), 
+							senderAddress, reply.text));
+				for(Address a : Optional.ofNullable(sf.getValidUnsentAddresses()).orElse(new Address[0]))
+					entries.put(a, new Ledger.Entry(now, millis, 0, Ledger.Outcome.FAILED, id, address(a), 
+							senderAddress, "Not sent, other recipients were rejected"));
+				for(Exception next = sf.getNextException(); next instanceof MessagingException; 
+						next = ((MessagingException)next).getNextException())
+					if(next instanceof SMTPAddressFailedException)
+					{
+						SMTPAddressFailedException af = (SMTPAddressFailedException)next;
+						entries.put(af.getAddress(), new Ledger.Entry(now, millis, af.getReturnCode(), 
+								Ledger.Outcome.FAILED, id, address(af.getAddress()), senderAddress, af.getMessage()));
+					}
+			}
+			Ledger.forDirectory(mailrelay(home)).append(new ArrayList<>(entries.values()));
+		} catch (IOException | MessagingException | RuntimeException e) {
+			log.warning("Could not record the delivery in the ledger: " + e);
+		}
+	}
+	
+	private void ledger(Path home, String senderAddress, Message msg, List<Address> rcpts, Ledger.Outcome outcome,
+			String reason)
+	{
+		long now = System.currentTimeMillis();
+		try {
+			String id = msg instanceof MimeMessage ? ((MimeMessage)msg).getMessageID() : null;
+			Ledger.forDirectory(mailrelay(home)).append(rcpts.stream()
+					.map(a -> new Ledger.Entry(now, 0, 0, outcome, id, address(a), senderAddress, reason))
+					.collect(Collectors.toList()));
+		} catch (IOException | MessagingException e) {
+			log.warning("Could not record the delivery in the ledger: " + e);
+		}
+	}
+	
+	private static String address(Address a)
+	{
+		return a instanceof InternetAddress ? ((InternetAddress)a).getAddress() : a.toString();
+	}
+
+	/**
+	 * Suppresses the recipients that were rejected permanently, with a 550, 551 or 553 reply, 
+	 * so that they are not sent to again until the suppression expires.
+	 * 
+	 * @return true if the message was sent to every other recipient
+	 */
+	private boolean suppressBounces(Path home, SendFailedException e) throws IOException
+	{
+		Suppressions suppressions = Suppressions.forDirectory(mailrelay(home));
+		long expires = System.currentTimeMillis() + Suppressions.DEFAULT_BOUNCE_EXPIRY;
+		for(Exception next = e.getNextException(); next instanceof MessagingException; 
+				next = ((MessagingException)next).getNextException())
+		{
+			if(!(next instanceof SMTPAddressFailedException)) continue;
+			SMTPAddressFailedException af = (SMTPAddressFailedException)next;
+			int code = af.getReturnCode();
+			if(code == 550 || code == 551 || code == 553)
+			{
+				log.warning("Suppressing " + af.getAddress() + " after a " + code + " reply");
+				suppressions.add(af.getAddress().getAddress(), expires, af.getMessage());
 			}
 		}
+		Address[] invalid = e.getInvalidAddresses(), unsent = e.getValidUnsentAddresses();
+		if(invalid == null || invalid.length == 0 || unsent != null && unsent.length > 0) return false;
+		for(Address a : invalid)
+			if(!(a instanceof InternetAddress && suppressions.isSuppressed(((InternetAddress)a).getAddress()))) 
+				return false;
+		return true;
+	}
+
+	/**
+	 * Opens a session on the route with the engine configured for it.
+	 */
+	protected Transmitter getTransport(Route route, Set<String> flags, String senderAddress,
+			Credential cred) throws IOException 
+	{
+		String token = cred != null ? cred.getAccessToken() : null;
+		boolean debug = flags.contains("debug");
+		if(!flags.contains("smtp-capture"))
+		{
+			if(route.engine == Route.Engine.NIO)
+				return NioSmtpEngine.shared().open(route.host, route.port, senderAddress, token, debug);
+			return Transmitter.of(OauthProvider.connectToSmtp(route.host, route.port, senderAddress, token, debug));
+		}
+		ProtocolCapture capture = new ProtocolCapture(ProtocolCapture.DEFAULT_BYTES);
+		try {
+			return capture.wrap(route.engine == Route.Engine.NIO 
+					? NioSmtpEngine.shared().open(route.host, route.port, senderAddress, token, debug, capture)
+					: Transmitter.of(OauthProvider.connectToSmtp(route.host, route.port, senderAddress, token, debug, 
+							capture.printStream())));
+		} catch (IOException | RuntimeException e) {
+			capture.dump("Connecting to " + route.host + ":" + route.port, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * The time of a deferred send from {@code --at}, an ISO-8601 date and time, 
+	 * or {@code --delay}, a duration from now.
+	 */
+	static Optional<Long> dueTime(Map<String, String> nvp)
+	{
+		String at = nvp.get("at");
+		if(at != null)
+		{
+			try {
+				return Optional.of(ZonedDateTime.parse(at).toInstant().toEpochMilli());
+			} catch (DateTimeParseException e) {
+				return Optional.of(LocalDateTime.parse(at).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+			}
+		}
+		return Optional.ofNullable(nvp.get("delay")).map(d -> System.currentTimeMillis() + Cmd.durationMillis(d));
+	}
+
+	private Credential credential(Path home, Route route, String senderAddress, boolean cache)
+			throws GeneralSecurityException, IOException
+	{
+		return route.auth == Route.Auth.XOAUTH2 ? getCreds(home, senderAddress, cache) : null;
+	}
+
+	protected Credential getCreds(Path home, String senderAddress, boolean cache) throws GeneralSecurityException, IOException 
+	{
+		Credential cred = null;
+		Supplier<Credential> scred = Try.uncheck(() -> makeCred(home, senderAddress));
+		if(cache)
+			cred = credMap.get(senderAddress, scred);
 		else
 			cred = scred.get();
 		
@@ -160,30 +638,64 @@ public class Send implements Cmd
         return home.resolve(".mailrelay");
     }	
     
+    /**
+     * A part attaching the file, encoded once and reused while it is unchanged.
+     */
+    MimeBodyPart attachment(Path file) throws IOException, MessagingException
+    {
+    	return attachmentCache.part(file);
+    }
+    
     protected Message makeMessage(Map<String, String> nvp, Set<String> flags) throws MessagingException, IOException
+    {
+    	return makeMessage(nvp, flags, Collections.emptyList());
+    }
+    
+    /**
+     * @param attachments parts attached after the {@code --file} attachment, if any
+     */
+    MimeMessage makeMessage(Map<String, String> nvp, Set<String> flags, List<MimeBodyPart> attachments) 
+    		throws MessagingException, IOException
+    {
+    	return makeMessage(nvp, flags, attachments, null);
+    }
+    
+    /**
+     * @param text the text of the message if read from standard input, it is referred to rather than copied
+     */
+    private MimeMessage makeMessage(Map<String, String> nvp, Set<String> flags, List<MimeBodyPart> attachments, 
+    		SpillBuffer text) throws MessagingException, IOException
     {
     	MimeMessage msg = new MimeMessage((Session)null);
     	Optional<File> attachment = Optional.ofNullable(nvp.get("file")).map(f -> new File(f));
     	
-    	String text = flags.contains("stdin") ? readSysIn() : nvp.getOrDefault("text", "No text provided");
+    	String textType = "text/plain; charset=" + Charset.defaultCharset().name();
+    	DataHandler body = text != null 
+    			? new DataHandler(text.dataSource(textType))
+    			: new DataHandler(nvp.getOrDefault("text", "No text provided"), textType);
     	
-		if(!attachment.isPresent())
-    		msg.setContent(text, "text/plain");
+		if(!attachment.isPresent() && attachments.isEmpty())
+		{
+    		msg.setDataHandler(body);
+    		if(!flags.contains("7bit")) EightBitMime.mark(msg);
+		}
     	else
     	{
-    		File file = attachment.get();
-    		log.fine(() -> "Attachment specifed " + file +  ", sending multipart message");
-			if(!file.exists() || !file.canRead() || file.isDirectory())
-    			throw new IllegalStateException("The file specified " + file + "cannot be  attached");
     		MimeMultipart multipart = new MimeMultipart();
     		MimeBodyPart messageBodyPart = new MimeBodyPart();
-    		messageBodyPart.setText(text);
+    		messageBodyPart.setDataHandler(body);
+    		if(!flags.contains("7bit")) EightBitMime.mark(messageBodyPart);
     		multipart.addBodyPart(messageBodyPart);
     		
-    		messageBodyPart = new MimeBodyPart();
-    		messageBodyPart.setDataHandler(new DataHandler(new FileDataSource(file)));
-    		messageBodyPart.setFileName(file.getName());
-    		multipart.addBodyPart(messageBodyPart);
+    		if(attachment.isPresent())
+    		{
+	    		File file = attachment.get();
+	    		log.fine(() -> "Attachment specifed " + file +  ", sending multipart message");
+				if(!file.exists() || !file.canRead() || file.isDirectory())
+	    			throw new IllegalStateException("The file specified " + file + "cannot be  attached");
+	    		multipart.addBodyPart(attachmentCache.part(file.toPath()));
+    		}
+    		for(MimeBodyPart part : attachments) multipart.addBodyPart(part);
     	
     		msg.setContent(multipart);
     		
@@ -203,16 +715,30 @@ public class Send implements Cmd
 					Stream.of("send \t sends email using GMail over SMTP with following options:"),
 				    Stream.of(
 					"--from : the sender's GMail adddress, the same should already have logged in",
+					"--pool : send from the accounts of a sender pool of pools.properties instead, spreading the load and failing over (opt)",
 					"--to : comma separated TO recipients",
 					"--serverAddress : smtp server addres (opt)",
 					"--serverPort : smptp server port (opt)",
+					"--routes : routing table file, defaults to routes.properties in the .mailrelay folder (opt)",
+					"--cache : keep connections and credentials open for reuse (opt)",
+					"--ignore-suppressions : send to suppressed recipients too, see the suppress command (opt)",
+					"--idempotency-key : a key of the message, it is not sent again with the same key to the same recipients (opt)",
+					"--dedup : derive the idempotency key from the message's headers and content (opt)",
+					"--dedup-window : how long sent keys are remembered, e.g. 12h, defaults to 24h (opt)",
+					"--ledger-retention : delete the ledger segments with no entry newer than this, e.g. 90d (opt)",
+					"--engine : javamail or nio, the smtp client of routes that do not name one (opt)",
 					"--cc : comma separated CC recipients (opt)",
 					"--bcc : comma separated BCC recipients (opt)",
 					"--text : text of the message (opt)",
 					"--stdin : pipe the text to be sent from standard input (opt)",
+					"--7bit : always encode non-ASCII text, rather than sending it as 8bit to servers with 8BITMIME (opt)",
 					"--subject : subject of the message (opt)",
+					"--priority : urgent, normal or bulk, used when queuing the message (opt)",
+					"--at : send at the given ISO-8601 time, e.g. 2026-01-31T09:00, through a running relay (opt)",
+					"--delay : send after the given duration, e.g. 15m or 2h, through a running relay (opt)",
 					"--file : file attachment, must exist and be readable (opt)",
 					"--debug : enable smtp debugging",
+					"--smtp-capture : keep the last " + (ProtocolCapture.DEFAULT_BYTES >> 10) + "KB of each smtp session's trace and log it only if the session fails (opt)",
 					"at least one recipient must be specified",
 					"Example: send --from=abc@gmail.com --to=xyz@gmail.com --text=\"What's up yo\"")
 				    	 .map(s -> " \t " + s))
@@ -220,18 +746,15 @@ public class Send implements Cmd
 				
 	}
 	
-	private String readSysIn() throws IOException
+	/**
+	 * Buffers the text within the memory budget, a large text spills to disk.
+	 */
+	private SpillBuffer readSysIn() throws IOException
 	{
 		log.fine(() -> "Reading message body from standard input");
 
 		System.out.println("please type in your message: (Ctrl-D to finish)");
 		
-		StringBuffer sb = new StringBuffer();
-		char[] buff = new char[2048];  
-		InputStreamReader br = new InputStreamReader(System.in);
-		
-		int ret = 0;
-		while((ret = br.read(buff)) != -1) sb.append(buff, 0, ret);
-		return sb.toString();
+		return SpillBuffer.read(MemoryBudget.shared(), System.in);
 	}
 }
@@ -0,0 +1,383 @@
+package org.sb.mailrelay;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.mail.AuthenticationFailedException;
+
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * A named group of logged in accounts that messages are sent from in turn, so that the sending quota of one account
+ * does not cap the throughput.
+ * <p>
+ * Pools are read from {@code pools.properties} in the .mailrelay folder. A pool is declared by listing its name in
+ * {@code pools} and configured by {@code pool.<name>.accounts}, the comma separated addresses of accounts that have
+ * logged in, {@code pool.<name>.quota}, the recipients an account may send to per {@code pool.<name>.window}
+ * ({@value #DEFAULT_QUOTA} a day by default), and {@code pool.<name>.quota.<account>} to override it for an account.
+ * <p>
+ * Each send picks an account at random, weighted by its remaining quota times its health, the moving average of the
+ * success of its recent sends. An account the server throttles or refuses is rested, for a minute doubling up to the
+ * window, or to the end of its window if its quota is exhausted, and the send fails over to another account. The
+ * usage of the accounts is kept in {@code pools/<name>.usage} under a lock of {@code pools/<name>.lock}, so it carries
+ * across commands.
+ */
+final class SenderPool
+{
+    private static final Logger log = Logger.getLogger(SenderPool.class.getPackage().getName());
+
+    static final String FILE = "pools.properties";
+    static final String DIR = "pools";
+    static final int DEFAULT_QUOTA = 2000;
+    static final long DEFAULT_WINDOW = TimeUnit.DAYS.toMillis(1);
+    static final long MIN_REST = TimeUnit.MINUTES.toMillis(1);
+    private static final double DECAY = 0.8;
+    /* the smtp replies of a throttled or refused account, and of an exhausted quota */
+    private static final Pattern THROTTLED = Pattern.compile("^\\s*(421|45[0-4]|535|550[ -]5\\.4\\.5|550[ -]5\\.7\\.\\d).*",
+                                                            Pattern.DOTALL);
+    private static final Pattern EXHAUSTED = Pattern.compile(".*\\b(5\\.4\\.5|quota exceeded)\\b.*",
+                                                            Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+
+    private static final Map<Path, SenderPool> pools = new ConcurrentHashMap<>();
+
+    private static final class Account
+    {
+        final String address;
+        final int quota;
+        long windowStart;
+        int used;
+        long restUntil;
+        long rest;
+        double health = 1;
+
+        Account(String address, int quota)
+        {
+            this.address = address;
+            this.quota = quota;
+        }
+
+        int remaining(long now, long window)
+        {
+            return now - windowStart >= window ? quota : quota - used;
+        }
+
+        @Override
+        public String toString()
+        {
+            return address + "\t" + used + "/" + quota + "\thealth " + String.format(Locale.ROOT, "%.2f", health)
+                    + (restUntil > System.currentTimeMillis() ? "\tresting until " + new Date(restUntil) : "");
+        }
+    }
+
+    final String name;
+    private long window;
+    private final Map<String, Account> accounts = new LinkedHashMap<>();
+    private final Path usage;
+    private final FileChannel lockChannel;
+
+    private SenderPool(String name, long window, List<Account> accounts, Path usageFile) throws IOException
+    {
+        this.name = name;
+        this.window = window;
+        accounts.forEach(a -> this.accounts.put(a.address, a));
+        Files.createDirectories(usageFile.getParent());
+        usage = usageFile;
+        // the usage file is replaced on each save, so the lock is held on a file of its own
+        lockChannel = FileChannel.open(usageFile.resolveSibling(name + ".lock"), StandardOpenOption.CREATE,
+                                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * The pool named in {@code pools.properties} of the .mailrelay folder, shared within the process.
+     */
+    static SenderPool forName(Path mailrelay, String name) throws IOException
+    {
+        String n = name.trim().toLowerCase(Locale.ROOT);
+        Path usageFile = mailrelay.resolve(DIR).resolve(n + ".usage").toAbsolutePath().normalize();
+        SenderPool p = pools.get(usageFile);
+        if(p == null)
+        synchronized(pools)
+        {
+            p = pools.get(usageFile);
+            if(p == null)
+            {
+                p = parse(n, read(mailrelay), usageFile);
+                pools.put(usageFile, p);
+            }
+        }
+        return p;
+    }
+
+    private static Map<String, String> read(Path mailrelay) throws IOException
+    {
+        Path file = mailrelay.resolve(FILE);
+        if(Files.notExists(file)) throw new IllegalStateException("No sender pools are defined, " + file + " does not exist");
+        return Routes.read(file);
+    }
+
+    static SenderPool parse(String name, Map<String, String> props, Path usageFile) throws IOException
+    {
+        return new SenderPool(name, window(name, props), accounts(name, props), usageFile);
+    }
+
+    private static long window(String name, Map<String, String> props)
+    {
+        String key = "pool." + name + ".window";
+        return props.containsKey(key) ? Cmd.durationMillis(props.get(key)) : DEFAULT_WINDOW;
+    }
+
+    private static List<Account> accounts(String name, Map<String, String> props)
+    {
+        boolean declared = Stream.of(props.getOrDefault("pools", "").split(","))
+                                .anyMatch(s -> s.trim().equalsIgnoreCase(name));
+        String prefix = "pool." + name + ".";
+        List<String> addresses = Stream.of(props.getOrDefault(prefix + "accounts", "").split(","))
+                                    .map(s -> s.trim().toLowerCase(Locale.ROOT)).filter(s -> !s.isEmpty())
+                                    .distinct().collect(Collectors.toList());
+        if(!declared || addresses.isEmpty())
+            throw new IllegalStateException("The sender pool '" + name + "' is not declared or has no accounts");
+        int quota = Integer.parseInt(props.getOrDefault(prefix + "quota", String.valueOf(DEFAULT_QUOTA)));
+        List<Account> accounts = new ArrayList<>();
+        for(String a : addresses)
+        {
+            int q = Integer.parseInt(props.getOrDefault(prefix + "quota." + a, String.valueOf(quota)));
+            if(q <= 0) throw new IllegalStateException("The quota of " + a + " in pool '" + name + "' must be positive");
+            accounts.add(new Account(a, q));
+        }
+        return accounts;
+    }
+
+    /**
+     * Applies a change of {@code pools.properties} to the pools of the .mailrelay folder in use, their accounts,
+     * quotas and windows. The usage of the accounts is kept, a pool no longer declared is dropped.
+     */
+    static void reload(Path mailrelay) throws IOException
+    {
+        Path dir = mailrelay.resolve(DIR).toAbsolutePath().normalize();
+        Path file = mailrelay.resolve(FILE);
+        Map<String, String> props = Files.exists(file) ? Routes.read(file) : Collections.emptyMap();
+        synchronized(pools)
+        {
+            for(Map.Entry<Path, SenderPool> e : new ArrayList<>(pools.entrySet()))
+            {
+                if(!e.getKey().getParent().equals(dir)) continue;
+                SenderPool p = e.getValue();
+                try
+                {
+                    p.redefine(window(p.name, props), accounts(p.name, props));
+                }
+                catch(RuntimeException ex)
+                {
+                    log.warning("Dropping the sender pool '" + p.name + "': " + ex.getMessage());
+                    pools.remove(e.getKey());
+                }
+            }
+        }
+    }
+
+    private synchronized void redefine(long window, List<Account> accounts)
+    {
+        List<String> before = new ArrayList<>(this.accounts.keySet());
+        this.window = window;
+        this.accounts.clear();
+        accounts.forEach(a -> this.accounts.put(a.address, a));
+        log.info("Sender pool " + name + " has the accounts " + this.accounts.keySet() + ", had " + before);
+    }
+
+    /**
+     * Picks an account to send to the recipients from and reserves their count of its quota.
+     *
+     * @param exclude accounts not to pick, those that already failed the message
+     * @throws IOException if no account can send now
+     */
+    @SuppressWarnings("try")
+    synchronized String acquire(int rcpts, Set<String> exclude) throws IOException
+    {
+        try(FileLock lock = lockChannel.lock())
+        {
+            load();
+            long now = System.currentTimeMillis();
+            double total = 0;
+            double[] weights = new double[accounts.size()];
+            List<Account> list = new ArrayList<>(accounts.values());
+            for(int i = 0; i < weights.length; i++)
+            {
+                Account a = list.get(i);
+                int remaining = a.remaining(now, window);
+                if(exclude.contains(a.address) || a.restUntil > now || remaining < rcpts) continue;
+                weights[i] = remaining * Math.max(a.health, 0.01);
+                total += weights[i];
+            }
+            if(total == 0)
+                throw new IOException("No account of the sender pool '" + name + "' can send to " + rcpts
+                                        + " recipients now, " + accounts.values().stream().map(Account::toString)
+                                                            .collect(Collectors.joining(", ")));
+            double r = ThreadLocalRandom.current().nextDouble(total);
+            int pick = -1;
+            for(int i = 0; i < weights.length; i++)
+            {
+                if(weights[i] == 0) continue;
+                pick = i;
+                if((r -= weights[i]) < 0) break;
+            }
+            Account a = list.get(pick);
+            if(now - a.windowStart >= window)
+            {
+                a.windowStart = now;
+                a.used = 0;
+            }
+            a.used += rcpts;
+            save();
+            log.fine(() -> "Sending from " + a.address + " of pool " + name + ", " + a.used + "/" + a.quota + " used");
+            return a.address;
+        }
+    }
+
+    /**
+     * Records a successful send of the account.
+     */
+    synchronized void succeeded(String account) throws IOException
+    {
+        update(account, a ->
+        {
+            a.health = a.health * DECAY + (1 - DECAY);
+            a.rest = 0;
+            return true;
+        });
+    }
+
+    /**
+     * Records a failed send of the account, which is rested if it was throttled or refused.
+     *
+     * @return true if the account was throttled or refused, the message can then be sent from another account
+     */
+    synchronized boolean failed(String account, int rcpts, Throwable failure) throws IOException
+    {
+        String reply = reply(failure);
+        boolean throttled = reply != null;
+        update(account, a ->
+        {
+            a.health *= DECAY;
+            if(!throttled) return true;
+            a.used = Math.max(0, a.used - rcpts);
+            long now = System.currentTimeMillis();
+            if(EXHAUSTED.matcher(reply).matches())
+            {
+                a.used = a.quota;
+                a.restUntil = a.windowStart + window;
+            }
+            else
+            {
+                a.rest = Math.min(Math.max(MIN_REST, a.rest * 2), window);
+                a.restUntil = now + a.rest;
+            }
+            log.warning("Resting " + a.address + " of pool " + name + " until " + new Date(a.restUntil) + ": " + reply);
+            return true;
+        });
+        return throttled;
+    }
+
+    /**
+     * The state of each account, for display.
+     */
+    @SuppressWarnings("try")
+    synchronized List<String> describe() throws IOException
+    {
+        try(FileLock lock = lockChannel.lock(0, Long.MAX_VALUE, true))
+        {
+            load();
+            return accounts.values().stream().map(Account::toString).collect(Collectors.toList());
+        }
+    }
+
+    private interface Change
+    {
+        boolean apply(Account a);
+    }
+
+    @SuppressWarnings("try")
+    private void update(String account, Change change) throws IOException
+    {
+        try(FileLock lock = lockChannel.lock())
+        {
+            load();
+            Account a = accounts.get(account);
+            if(a != null && change.apply(a)) save();
+        }
+    }
+
+    /**
+     * The server's reply if the failure is a throttling or refusal of the account, null otherwise.
+     */
+    static String reply(Throwable failure)
+    {
+        if(failure == null) return null;
+        if(failure instanceof AuthenticationFailedException) return "535 " + failure.getMessage();
+        if(failure instanceof SMTPSendFailedException)
+        {
+            SMTPSendFailedException sf = (SMTPSendFailedException)failure;
+            String text = String.valueOf(sf.getMessage()).trim();
+            String reply = text.startsWith(String.valueOf(sf.getReturnCode())) ? text : sf.getReturnCode() + " " + text;
+            if(THROTTLED.matcher(reply).matches()) return reply;
+        }
+        else if(failure instanceof IOException && String.valueOf(failure.getMessage()).startsWith("Authentication failed"))
+            return failure.getMessage();
+        for(Throwable s : failure.getSuppressed())
+        {
+            String r = reply(s);
+            if(r != null) return r;
+        }
+        return failure.getCause() == failure ? null : reply(failure.getCause());
+    }
+
+    /* with the lock held, reads the usage written by any process, lines of address, window start, used, rest until,
+     * rest and health */
+    private void load() throws IOException
+    {
+        if(Files.notExists(usage)) return;
+        for(String line : new String(Files.readAllBytes(usage), StandardCharsets.UTF_8).split("\n"))
+        {
+            String[] f = line.split("\t");
+            Account a = f.length == 6 ? accounts.get(f[0]) : null;
+            if(a == null) continue;
+            a.windowStart = Long.parseLong(f[1]);
+            a.used = Integer.parseInt(f[2]);
+            a.restUntil = Long.parseLong(f[3]);
+            a.rest = Long.parseLong(f[4]);
+            a.health = Double.parseDouble(f[5]);
+        }
+    }
+
+    private void save() throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for(Account a : accounts.values())
+            sb.append(a.address).append('\t').append(a.windowStart).append('\t').append(a.used).append('\t')
+              .append(a.restUntil).append('\t').append(a.rest).append('\t').append(a.health).append('\n');
+        // written aside and renamed over the old usage, so a crash leaves one or the other whole
+        Path tmp = usage.resolveSibling(usage.getFileName() + ".tmp");
+        Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, usage, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,466 @@
+package org.sb.mailrelay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Address;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Accepts smtp submissions from local applications on a single selector thread and spools them for the relay.
+ * Commands may be pipelined, and the DATA phase is streamed into the spool as it arrives, so a message is never
+ * held in memory. The envelope sender must be an account that has logged in, it is used for the upstream
+ * XOAUTH2 authentication. There is no smtp AUTH, so only the clients of an allow-list may connect, anyone who can
+ * would send through those accounts.
+ */
+class SmtpListener implements Runnable, Closeable
+{
+    private static final Logger log = Logger.getLogger(SmtpListener.class.getPackage().getName());
+
+    static final long DEFAULT_MAX_SIZE = 35L << 20;
+    private static final int MAX_LINE = 1000;
+    private static final int MAX_RECIPIENTS = 1000;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Spool spool;
+    private final long maxSize;
+    private final Map<String, String> nvp;
+    private final Set<String> flags;
+    private final Consumer<String> onSpooled;
+    private final Predicate<InetAddress> clients;
+    private final String hostName;
+
+    /**
+     * @param nvp the send options stored with each spooled message
+     * @param clients the client addresses that may connect, others are turned away at the greeting
+     * @param onSpooled invoked with the id of each message accepted into the spool
+     */
+    SmtpListener(InetSocketAddress addr, Spool spool, long maxSize, Map<String, String> nvp, Set<String> flags,
+            Predicate<InetAddress> clients, Consumer<String> onSpooled) throws IOException
+    {
+        this.clients = clients;
+        this.spool = spool;
+        this.maxSize = maxSize;
+        this.nvp = nvp;
+        this.flags = flags;
+        this.onSpooled = onSpooled;
+        hostName = InetAddress.getLocalHost().getHostName();
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(addr);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        log.info("Accepting smtp submissions on " + server.getLocalAddress());
+    }
+
+    InetSocketAddress address() throws IOException
+    {
+        return (InetSocketAddress)server.getLocalAddress();
+    }
+
+    @Override
+    public void run()
+    {
+        while(selector.isOpen())
+        {
+            try
+            {
+                selector.select();
+                if(!selector.isOpen()) break;
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while(it.hasNext())
+                {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if(!key.isValid()) continue;
+                    if(key.isAcceptable()) accept();
+                    else
+                    {
+                        Session s = (Session)key.attachment();
+                        try
+                        {
+                            if(key.isReadable()) s.read();
+                            if(key.isValid() && key.isWritable()) s.flush();
+                        }
+                        catch(IOException | RuntimeException e)
+                        {
+                            log.log(Level.FINE, "Smtp session failed", e);
+                            s.close();
+                        }
+                    }
+                }
+            }
+            catch(IOException e)
+            {
+                log.log(Level.SEVERE, "Smtp listener failed", e);
+            }
+            catch(ClosedSelectorException e)
+            {
+                break;
+            }
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel ch = server.accept();
+        if(ch == null) return;
+        ch.configureBlocking(false);
+        Session s = new Session(ch);
+        s.key = ch.register(selector, SelectionKey.OP_READ, s);
+        InetAddress client = ((InetSocketAddress)ch.getRemoteAddress()).getAddress();
+        if(!clients.test(client))
+        {
+            log.warning("Refused an smtp connection from " + client + ", it is not in " + clients);
+            s.reply("554 " + hostName + " access denied");
+            s.quit = true;
+        }
+        else
+            s.reply("220 " + hostName + " ESMTP mailrelay");
+        s.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        server.close();
+        for(SelectionKey k : selector.keys())
+            if(k.attachment() instanceof Session) ((Session)k.attachment()).close();
+        selector.close();
+    }
+
+    private enum Data {NONE, LINE, TEXT, DOT, DOT_CR}
+
+    private final class Session
+    {
+        private final SocketChannel ch;
+        private SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocate(64 << 10);
+        private ByteBuffer out = ByteBuffer.allocate(1024);
+        private final ByteBuffer staged = ByteBuffer.allocateDirect(64 << 10);
+
+        private String from;
+        private final List<Address> rcpts = new ArrayList<>();
+        private Spool.Draft draft;
+        private Data data = Data.NONE;
+        private long size;
+        private boolean quit;
+
+        Session(SocketChannel ch)
+        {
+            this.ch = ch;
+        }
+
+        void read() throws IOException
+        {
+            if(ch.read(in) < 0)
+            {
+                close();
+                return;
+            }
+            in.flip();
+            while(in.hasRemaining() && !quit)
+            {
+                if(data != Data.NONE) data();
+                else
+                {
+                    String line = line();
+                    if(line == null) break;
+                    command(line);
+                }
+            }
+            in.compact();
+            if(data == Data.NONE && !in.hasRemaining())
+            {
+                in.clear();
+                reply("500 5.5.2 Line too long");
+            }
+            flush();
+        }
+
+        private String line()
+        {
+            for(int i = in.position(); i < in.limit(); i++)
+            {
+                if(in.get(i) != '\n') continue;
+                int end = i > in.position() && in.get(i - 1) == '\r' ? i - 1 : i;
+                String line = new String(in.array(), in.position(), end - in.position(), StandardCharsets.ISO_8859_1);
+                in.position(i + 1);
+                return line;
+            }
+            return null;
+        }
+
+        private void command(String line) throws IOException
+        {
+            if(line.length() > MAX_LINE)
+            {
+                reply("500 5.5.2 Line too long");
+                return;
+            }
+            String upper = line.toUpperCase(Locale.ROOT);
+            String verb = upper.split(" ", 2)[0];
+            switch(verb)
+            {
+                case "EHLO":
+                    reply("250-" + hostName + "\r\n250-PIPELINING\r\n250-8BITMIME\r\n250 SIZE " + maxSize);
+                    break;
+                case "HELO":
+                    reply("250 " + hostName);
+                    break;
+                case "MAIL":
+                    mail(line, upper);
+                    break;
+                case "RCPT":
+                    rcpt(line, upper);
+                    break;
+                case "DATA":
+                    if(from == null) reply("503 5.5.1 MAIL first");
+                    else if(rcpts.isEmpty()) reply("554 5.5.1 No valid recipients");
+                    else
+                    {
+                        draft = spool.draft(System.currentTimeMillis());
+                        size = 0;
+                        data = Data.LINE;
+                        reply("354 End data with <CR><LF>.<CR><LF>");
+                    }
+                    break;
+                case "RSET":
+                    reset();
+                    reply("250 2.0.0 OK");
+                    break;
+                case "NOOP":
+                    reply("250 2.0.0 OK");
+                    break;
+                case "VRFY":
+                    reply("252 2.1.5 Cannot verify, will attempt delivery");
+                    break;
+                case "QUIT":
+                    reply("221 2.0.0 Bye");
+                    quit = true;
+                    break;
+                default:
+                    reply("502 5.5.2 Command not recognized");
+            }
+        }
+
+        private void mail(String line, String upper)
+        {
+            if(from != null)
+            {
+                reply("503 5.5.1 Sender already specified");
+                return;
+            }
+            if(!upper.startsWith("MAIL FROM:"))
+            {
+                reply("501 5.5.4 Syntax: MAIL FROM:<address>");
+                return;
+            }
+            String addr = path(line.substring(10));
+            int sz = upper.indexOf(" SIZE=");
+            if(sz > 0)
+            {
+                long size;
+                try
+                {
+                    size = Long.parseLong(upper.substring(sz + 6).split(" ")[0]);
+                }
+                catch(NumberFormatException e)
+                {
+                    size = -1;
+                }
+                if(size < 0)
+                {
+                    reply("501 5.5.4 Syntax error in parameters");
+                    return;
+                }
+                if(size > maxSize)
+                {
+                    reply("552 5.3.4 Message size exceeds " + maxSize);
+                    return;
+                }
+            }
+            if(addr.isEmpty()) reply("553 5.1.7 A sender account is required");
+            else
+            {
+                from = addr;
+                reply("250 2.1.0 OK");
+            }
+        }
+
+        private void rcpt(String line, String upper)
+        {
+            if(from == null) reply("503 5.5.1 MAIL first");
+            else if(!upper.startsWith("RCPT TO:")) reply("501 5.5.4 Syntax: RCPT TO:<address>");
+            else if(rcpts.size() >= MAX_RECIPIENTS) reply("452 4.5.3 Too many recipients");
+            else
+            try
+            {
+                rcpts.add(new InternetAddress(path(line.substring(8)), true));
+                reply("250 2.1.5 OK");
+            }
+            catch(AddressException e)
+            {
+                reply("553 5.1.3 Invalid address");
+            }
+        }
+
+        private String path(String arg)
+        {
+            String a = arg.trim();
+            int lt = a.indexOf('<'), gt = a.indexOf('>');
+            return lt >= 0 && gt > lt ? a.substring(lt + 1, gt).trim() : a.split(" ")[0];
+        }
+
+        /**
+         * Streams message data into the spool, undoing dot stuffing, until the terminating dot line.
+         */
+        private void data() throws IOException
+        {
+            while(in.hasRemaining())
+            {
+                byte b = in.get();
+                switch(data)
+                {
+                    case LINE:
+                        if(b == '.') data = Data.DOT;
+                        else stage(b);
+                        break;
+                    case TEXT:
+                        stage(b);
+                        break;
+                    case DOT:
+                        if(b == '\r') data = Data.DOT_CR;
+                        else stage(b);
+                        break;
+                    case DOT_CR:
+                        if(b == '\n')
+                        {
+                            endData();
+                            return;
+                        }
+                        stage((byte)'\r');
+                        stage(b);
+                        break;
+                    default:
+                }
+            }
+            spill();
+        }
+
+        private void stage(byte b) throws IOException
+        {
+            data = b == '\n' ? Data.LINE : Data.TEXT;
+            if(++size > maxSize) return;
+            if(!staged.hasRemaining()) spill();
+            staged.put(b);
+        }
+
+        private void spill() throws IOException
+        {
+            staged.flip();
+            if(draft != null) draft.write(staged);
+            staged.clear();
+        }
+
+        private void endData() throws IOException
+        {
+            spill();
+            data = Data.NONE;
+            try
+            {
+                if(size > maxSize) reply("552 5.3.4 Message size exceeds " + maxSize);
+                else
+                {
+                    String id = draft.commit(from, rcpts.toArray(new Address[rcpts.size()]), nvp, flags);
+                    log.fine(() -> "Accepted message " + id + " from " + from + " for " + rcpts.size() + " recipients");
+                    reply("250 2.0.0 OK queued as " + id);
+                    onSpooled.accept(id);
+                }
+            }
+            catch(IOException e)
+            {
+                log.log(Level.SEVERE, "Could not spool message from " + from, e);
+                reply("451 4.3.0 Could not queue the message");
+            }
+            finally
+            {
+                reset();
+            }
+        }
+
+        private void reset()
+        {
+            from = null;
+            rcpts.clear();
+            if(draft != null)
+            try
+            {
+                draft.close();
+            }
+            catch(IOException e)
+            {
+                log.log(Level.WARNING, "Could not discard a partial message", e);
+            }
+            draft = null;
+        }
+
+        void reply(String line)
+        {
+            byte[] b = (line + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            if(out.remaining() < b.length)
+            {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + b.length));
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+            out.put(b);
+        }
+
+        void flush() throws IOException
+        {
+            out.flip();
+            ch.write(out);
+            out.compact();
+            if(out.position() > 0) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            else if(quit) close();
+            else key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void close()
+        {
+            reset();
+            if(key != null) key.cancel();
+            try
+            {
+                ch.close();
+            }
+            catch(IOException e)
+            {
+                log.log(Level.FINE, "Close failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.sb.mailrelay;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.activation.DataSource;
+import javax.mail.internet.SharedInputStream;
+import javax.mail.util.SharedFileInputStream;
+
+/**
+ * A buffer for the bytes of a message, in chunks of the {@link BufferPool} reserved from a {@link MemoryBudget} while
+ * it has room, and in a spill file once it does not. What was written is read back as a {@link SharedInputStream}, so that a message
+ * parsed from it refers to its bytes rather than copying them. {@link #release} gives back the memory or deletes
+ * the file, once nothing reads from the buffer any more.
+ */
+final class SpillBuffer extends OutputStream
+{
+    private static final Logger log = Logger.getLogger(SpillBuffer.class.getPackage().getName());
+
+    private final MemoryBudget budget;
+    private BufferPool.Output mem = new BufferPool.Output(BufferPool.shared());
+    private long reserved;
+    private Path file;
+    private OutputStream fileOut;
+    private long size;
+    private boolean closed;
+    /* the stream the streams handed out are made from, so that closing those leaves the file open */
+    private SharedInputStream shared;
+
+    SpillBuffer(MemoryBudget budget)
+    {
+        this.budget = budget;
+    }
+
+    /**
+     * Buffers everything the stream has left.
+     */
+    static SpillBuffer read(MemoryBudget budget, InputStream in) throws IOException
+    {
+        SpillBuffer b = new SpillBuffer(budget);
+        try
+        {
+            BufferPool.copy(in, b);
+            b.close();
+            return b;
+        }
+        catch(IOException | RuntimeException e)
+        {
+            b.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException
+    {
+        if(reserve(1)) mem.write(b);
+        else fileOut.write(b);
+        size++;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException
+    {
+        if(reserve(len)) mem.write(b, off, len);
+        else fileOut.write(b, off, len);
+        size += len;
+    }
+
+    /**
+     * @return true if the bytes go to memory, false if to the file
+     */
+    private boolean reserve(int len) throws IOException
+    {
+        if(closed) throw new IOException("The buffer is closed");
+        if(file != null) return false;
+        long more = mem.growth(len);
+        if(more == 0 || budget.tryReserve(more))
+        {
+            reserved += more;
+            return true;
+        }
+        spill();
+        return false;
+    }
+
+    private void spill() throws IOException
+    {
+        file = budget.spillFile();
+        log.fine(() -> "Spilling a message of " + size + " bytes so far to " + file + ", the " + budget + " is exhausted");
+        fileOut = new BufferedOutputStream(Files.newOutputStream(file), BufferPool.PAGE);
+        mem.writeTo(fileOut);
+        mem.release();
+        mem = null;
+        budget.release(reserved);
+        reserved = 0;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException
+    {
+        if(fileOut != null && !closed) fileOut.flush();
+    }
+
+    /**
+     * Ends the writing, the buffer can still be read.
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if(fileOut != null && !closed) fileOut.close();
+        closed = true;
+    }
+
+    long size()
+    {
+        return size;
+    }
+
+    boolean isSpilled()
+    {
+        return file != null;
+    }
+
+    /**
+     * A stream of the bytes written, it can be read until the buffer is released.
+     */
+    synchronized InputStream inputStream() throws IOException
+    {
+        flush();
+        if(shared == null)
+            shared = file != null ? new SharedFileInputStream(file.toFile()) : mem.inputStream();
+        return shared.newStream(0, -1);
+    }
+
+    /**
+     * Writes the bytes written to the stream.
+     */
+    synchronized void writeTo(OutputStream os) throws IOException
+    {
+        if(file == null) mem.writeTo(os);
+        else
+        {
+            flush();
+            try(InputStream in = Files.newInputStream(file))
+            {
+                BufferPool.copy(in, os);
+            }
+        }
+    }
+
+    /**
+     * The bytes as a data source of the content type, e.g. to parse a multipart request from.
+     */
+    DataSource dataSource(String contentType)
+    {
+        return new DataSource()
+        {
+            @Override
+            public InputStream getInputStream() throws IOException
+            {
+                return SpillBuffer.this.inputStream();
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException
+            {
+                throw new IOException("The buffer is read only");
+            }
+
+            @Override
+            public String getContentType()
+            {
+                return contentType;
+            }
+
+            @Override
+            public String getName()
+            {
+                return "buffer";
+            }
+        };
+    }
+
+    /**
+     * Gives back the memory of the buffer or deletes its file, the streams of the buffer fail from then on.
+     */
+    synchronized void release()
+    {
+        budget.release(reserved);
+        reserved = 0;
+        if(mem != null) mem.release();
+        try
+        {
+            if(shared != null) ((InputStream)shared).close();
+            close();
+            if(file != null) Files.deleteIfExists(file);
+        }
+        catch(IOException e)
+        {
+            log.log(Level.WARNING, "Could not delete the spill file " + file, e);
+        }
+        shared = null;
+    }
+}
@@ -0,0 +1,350 @@
+package org.sb.mailrelay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+
+/**
+ * A directory of messages waiting to be relayed. Each entry is a message file {@code <id>.eml} and an envelope
+ * file {@code <id>.env} holding the sender, recipients, due time and the send options, and the recipients the
+ * message was already delivered to by an attempt that failed for others. The envelope is moved into place last,
+ * so an entry is visible only once it is complete.
+ */
+class Spool
+{
+    private static final Logger log = Logger.getLogger(Spool.class.getPackage().getName());
+
+    static final String ENV = ".env";
+    static final String EML = ".eml";
+
+    private final Path dir;
+
+    /**
+     * An envelope read back from the spool.
+     */
+    static final class Entry
+    {
+        final String id;
+        final String from;
+        final Address[] rcpts;
+        final Address[] delivered;
+        final long due;
+        final int attempts;
+        final Map<String, String> nvp;
+        final Set<String> flags;
+
+        Entry(String id, String from, Address[] rcpts, Address[] delivered, long due, int attempts,
+                Map<String, String> nvp, Set<String> flags)
+        {
+            this.id = id;
+            this.from = from;
+            this.rcpts = rcpts;
+            this.delivered = delivered;
+            this.due = due;
+            this.attempts = attempts;
+            this.nvp = nvp;
+            this.flags = flags;
+        }
+
+        /**
+         * The recipients the message is still to be delivered to.
+         */
+        Address[] pending()
+        {
+            if(delivered.length == 0) return rcpts;
+            Set<Address> done = new HashSet<>(Arrays.asList(delivered));
+            return Stream.of(rcpts).filter(a -> !done.contains(a)).toArray(Address[]::new);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "spooled message " + id;
+        }
+    }
+
+    Spool(Path dir) throws IOException
+    {
+        this.dir = Files.createDirectories(dir);
+    }
+
+    /**
+     * The spool of the {@code --spool} option, or the spool folder in .mailrelay.
+     */
+    static Spool open(Path home, Map<String, String> nvp) throws IOException
+    {
+        return new Spool(Optional.ofNullable(nvp.get("spool")).map(Paths::get)
+                                    .orElseGet(() -> home.resolve(".mailrelay").resolve("spool")));
+    }
+
+    Path dir()
+    {
+        return dir;
+    }
+
+    /**
+     * Adds a message to the spool.
+     *
+     * @return the id of the entry
+     */
+    String put(String from, Address[] rcpts, MimeMessage msg, long due, Map<String, String> nvp, Set<String> flags)
+            throws IOException, MessagingException
+    {
+        msg.saveChanges();
+        try(Draft d = draft(due))
+        {
+            msg.writeTo(Channels.newOutputStream(d.ch));
+            return d.commit(from, rcpts, nvp, flags);
+        }
+    }
+
+    /**
+     * Starts an entry whose message is written incrementally, it is not visible until committed.
+     */
+    Draft draft(long due) throws IOException
+    {
+        return new Draft(String.format("%013d-%s", due, UUID.randomUUID().toString().replace("-", "")), due);
+    }
+
+    /**
+     * An entry being written, closing it without a commit discards it.
+     */
+    final class Draft implements Closeable
+    {
+        final String id;
+        private final long due;
+        private final Path tmp;
+        private final FileChannel ch;
+        private boolean committed;
+
+        private Draft(String id, long due) throws IOException
+        {
+            this.id = id;
+            this.due = due;
+            tmp = dir.resolve(id + EML + ".tmp");
+            ch = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+
+        void write(ByteBuffer buf) throws IOException
+        {
+            while(buf.hasRemaining()) ch.write(buf);
+        }
+
+        long size() throws IOException
+        {
+            return ch.size();
+        }
+
+        String commit(String from, Address[] rcpts, Map<String, String> nvp, Set<String> flags) throws IOException
+        {
+            ch.close();
+            Files.move(tmp, dir.resolve(id + EML), StandardCopyOption.ATOMIC_MOVE);
+            writeEnvelope(new Entry(id, from, rcpts, new Address[0], due, 0, nvp, flags));
+            committed = true;
+            return id;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if(committed) return;
+            ch.close();
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Updates the due time and attempt count of an entry, and adds the recipients the failed attempt delivered to,
+     * so that the next attempt does not send to them again.
+     */
+    Entry reschedule(Entry e, long due, Collection<Address> delivered) throws IOException
+    {
+        Set<Address> all = new LinkedHashSet<>(Arrays.asList(e.delivered));
+        all.addAll(delivered);
+        Entry next = new Entry(e.id, e.from, e.rcpts, all.toArray(new Address[all.size()]), due, e.attempts + 1,
+                                e.nvp, e.flags);
+        writeEnvelope(next);
+        return next;
+    }
+
+    private void writeEnvelope(Entry e) throws IOException
+    {
+        Properties p = new Properties();
+        p.setProperty("from", e.from);
+        p.setProperty("to", InternetAddress.toString(e.rcpts));
+        if(e.delivered.length > 0) p.setProperty("delivered", InternetAddress.toString(e.delivered));
+        p.setProperty("due", String.valueOf(e.due));
+        p.setProperty("attempts", String.valueOf(e.attempts));
+        e.nvp.forEach((k, v) -> p.setProperty("opt." + k, v));
+        e.flags.forEach(f -> p.setProperty("flag." + f, "true"));
+        Path tmp = dir.resolve(e.id + ENV + ".tmp");
+        try(OutputStream out = Files.newOutputStream(tmp))
+        {
+            p.store(out, null);
+        }
+        Files.move(tmp, dir.resolve(e.id + ENV), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return the ids of the complete entries in the spool, oldest due first
+     */
+    List<String> ids() throws IOException
+    {
+        TreeSet<String> ids = new TreeSet<>();
+        try(DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + ENV))
+        {
+            ds.forEach(p -> ids.add(id(p)));
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * @return the entry id of an envelope file, or null for other files
+     */
+    static String id(Path file)
+    {
+        String name = file.getFileName().toString();
+        return name.endsWith(ENV) ? name.substring(0, name.length() - ENV.length()) : null;
+    }
+
+    Optional<Entry> read(String id) throws IOException
+    {
+        Properties p = new Properties();
+        try(InputStream in = Files.newInputStream(dir.resolve(id + ENV)))
+        {
+            p.load(in);
+        }
+        catch(NoSuchFileException e)
+        {
+            return Optional.empty();
+        }
+        Map<String, String> nvp = new TreeMap<>();
+        Set<String> flags = new TreeSet<>();
+        for(String k : p.stringPropertyNames())
+        {
+            if(k.startsWith("opt.")) nvp.put(k.substring(4), p.getProperty(k));
+            else if(k.startsWith("flag.")) flags.add(k.substring(5));
+        }
+        try
+        {
+            return Optional.of(new Entry(id, p.getProperty("from"), InternetAddress.parse(p.getProperty("to", "")),
+                                            InternetAddress.parse(p.getProperty("delivered", "")),
+                                            Long.parseLong(p.getProperty("due", "0")),
+                                            Integer.parseInt(p.getProperty("attempts", "0")),
+                                            Collections.unmodifiableMap(nvp), Collections.unmodifiableSet(flags)));
+        }
+        catch(AddressException e)
+        {
+            throw new IOException("Invalid recipients in " + id, e);
+        }
+    }
+
+    /**
+     * A message whose body stays in the spool file and is streamed when the message is written out.
+     */
+    static final class SpooledMessage extends MimeMessage implements Closeable
+    {
+        private final SharedFileInputStream in;
+        private final long size;
+
+        private SpooledMessage(SharedFileInputStream in, long size) throws MessagingException
+        {
+            super((Session)null, in);
+            this.in = in;
+            this.size = size;
+        }
+
+        /**
+         * The size of the spool file, the bytes the message is written as.
+         */
+        @Override
+        public int getSize()
+        {
+            return (int)Math.min(Integer.MAX_VALUE, size);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+
+    SpooledMessage message(String id) throws IOException, MessagingException
+    {
+        Path file = dir.resolve(id + EML);
+        SharedFileInputStream in = new SharedFileInputStream(file.toFile());
+        try
+        {
+            return new SpooledMessage(in, Files.size(file));
+        }
+        catch(IOException | MessagingException | RuntimeException e)
+        {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The size of the spooled message in bytes.
+     */
+    long size(String id) throws IOException
+    {
+        return Files.size(dir.resolve(id + EML));
+    }
+
+    void remove(String id) throws IOException
+    {
+        Files.deleteIfExists(dir.resolve(id + ENV));
+        Files.deleteIfExists(dir.resolve(id + EML));
+    }
+
+    /**
+     * Moves an entry that could not be delivered to the failed folder of the spool.
+     */
+    void fail(String id) throws IOException
+    {
+        Path failed = Files.createDirectories(dir.resolve("failed"));
+        log.warning("Moving undeliverable message " + id + " to " + failed);
+        for(String ext : new String[]{EML, ENV})
+        {
+            Path f = dir.resolve(id + ext);
+            if(Files.exists(f)) Files.move(f, failed.resolve(id + ext), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
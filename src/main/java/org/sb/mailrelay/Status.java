@@ -0,0 +1,69 @@
+package org.sb.mailrelay;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Looks up the outcome of messages in the delivery ledger.
+ */
+public class Status implements Cmd
+{
+    private static final Logger log = Logger.getLogger(Status.class.getPackage().getName());
+
+    static final int DEFAULT_LIMIT = 20;
+
+    @Override
+    public void exec(Path home, List<String> opts) throws IOException, IllegalStateException
+    {
+        Map<String, String> nvp = Cmd.nvpFlags(opts.stream());
+        String messageId = nvp.get("message-id");
+        String to = nvp.get("to");
+        String pool = nvp.get("pool");
+        if(Cmd.booleanFlags(opts.stream()).contains("cluster"))
+        {
+            Cluster.describe(Spool.open(home, nvp).dir()).forEach(System.out::println);
+            if(messageId == null && to == null && pool == null) return;
+        }
+        if(pool != null)
+        {
+            SenderPool.forName(home.resolve(".mailrelay"), pool).describe().forEach(System.out::println);
+            if(messageId == null && to == null) return;
+        }
+        if(messageId == null && to == null)
+            throw new IllegalStateException("No 'message-id', 'to', 'pool' or 'cluster' option specified");
+        if(messageId != null && !messageId.startsWith("<")) messageId = "<" + messageId + ">";
+
+        long start = System.nanoTime();
+        List<Ledger.Entry> found = Ledger.forDirectory(home.resolve(".mailrelay"))
+                .find(messageId, to, Integer.parseInt(nvp.getOrDefault("limit", String.valueOf(DEFAULT_LIMIT))));
+        long micros = (System.nanoTime() - start) / 1000;
+        found.forEach(System.out::println);
+        log.info("Found " + found.size() + " entries in " + micros / 1000.0 + " ms");
+
+        if(messageId != null && to != null
+                && found.stream().noneMatch(e -> e.outcome == Ledger.Outcome.DELIVERED))
+            throw new IOException("Message " + messageId + " was not delivered to " + to);
+    }
+
+    @Override
+    public List<String> help(String name)
+    {
+        return Stream.concat(
+                    Stream.of("status \t looks up deliveries in the ledger, newest first, with following options:"),
+                    Stream.of(
+                    "--message-id : the Message-ID of the message, with or without the angle brackets (opt)",
+                    "--to : the recipient (opt)",
+                    "--limit : the number of entries shown, defaults to " + DEFAULT_LIMIT + " (opt)",
+                    "--pool : shows the usage and health of the accounts of a sender pool (opt)",
+                    "--cluster : shows the relays sharing the spool and the shards they hold, with --spool (opt)",
+                    "at least one of message-id, to, pool or cluster must be specified, with message-id and to it fails unless the message was delivered",
+                    "Example: status --message-id=\"<1234@example.com>\" --to=xyz@gmail.com")
+                         .map(s -> " \t " + s))
+                .collect(Collectors.toList());
+    }
+}
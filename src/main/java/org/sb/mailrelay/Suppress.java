@@ -0,0 +1,99 @@
+package org.sb.mailrelay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Manages the suppression list, the recipients that messages are not sent to.
+ */
+public class Suppress implements Cmd
+{
+    private static final Logger log = Logger.getLogger(Suppress.class.getPackage().getName());
+
+    @Override
+    public void exec(Path home, List<String> opts) throws IOException, IllegalStateException
+    {
+        Map<String, String> nvp = Cmd.nvpFlags(opts.stream());
+        Set<String> flags = Cmd.booleanFlags(opts.stream());
+        Suppressions suppressions = Suppressions.forDirectory(home.resolve(".mailrelay"));
+        long expires = Optional.ofNullable(nvp.get("expire"))
+                                .map(d -> System.currentTimeMillis() + Cmd.durationMillis(d)).orElse(0L);
+
+        Optional.ofNullable(nvp.get("add")).ifPresent(Try.uncheck(addrs ->
+        {
+            for(String a : addrs.split(",")) suppressions.add(a, expires, nvp.getOrDefault("reason", "manual"));
+        }));
+        Optional.ofNullable(nvp.get("remove")).ifPresent(Try.uncheck(addrs ->
+        {
+            for(String a : addrs.split(","))
+                if(!suppressions.remove(a)) log.info(a.trim() + " is not suppressed");
+        }));
+        Optional.ofNullable(nvp.get("import")).ifPresent(Try.uncheck(f ->
+        {
+            try(InputStream in = Files.newInputStream(Paths.get(f)))
+            {
+                log.info("Imported " + suppressions.importFrom(in, expires) + " addresses from " + f);
+            }
+        }));
+        Optional.ofNullable(nvp.get("check")).ifPresent(Try.uncheck(addrs ->
+        {
+            for(String a : addrs.split(","))
+                System.out.println(a.trim() + "\t" + (suppressions.isSuppressed(a)
+                        ? suppressions.get(a).map(Suppress::describe).orElse("suppressed") : "not suppressed"));
+        }));
+        if(flags.contains("compact")) suppressions.compact();
+        Optional.ofNullable(nvp.get("export")).ifPresent(Try.uncheck(f ->
+        {
+            OutputStream os = f.equals("-") ? System.out : Files.newOutputStream(Paths.get(f));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+            out.println("# address,reason,expiry");
+            suppressions.forEach(e -> out.println(Suppressions.exportLine(e)));
+            out.flush();
+            if(os != System.out) out.close();
+        }));
+        log.info(suppressions.size() + " addresses are suppressed");
+    }
+
+    private static String describe(Suppressions.Entry e)
+    {
+        return "suppressed" + (e.expires > 0 ? " until " + new Date(e.expires) : "")
+                + (e.reason.isEmpty() ? "" : ", " + e.reason);
+    }
+
+    @Override
+    public List<String> help(String name)
+    {
+        return Stream.concat(
+                    Stream.of("suppress \t manages the addresses that are not sent to, with following options:"),
+                    Stream.of(
+                    "--add : comma separated addresses to suppress (opt)",
+                    "--expire : with --add or --import, the duration of the suppression, e.g. 30d, forever if omitted (opt)",
+                    "    imported addresses that have an expiry keep it",
+                    "--reason : with --add, why the addresses are suppressed (opt)",
+                    "--remove : comma separated addresses to send to again (opt)",
+                    "--check : comma separated addresses to look up (opt)",
+                    "--import : a file of addresses to suppress, one per line followed by an optional comma and reason (opt)",
+                    "    and an optional comma and expiry, as written by --export",
+                    "--export : writes the suppressed addresses to the file, or to standard output for - (opt)",
+                    "--compact : rewrites the suppression list without removed and expired addresses (opt)",
+                    "recipients rejected with a 550, 551 or 553 reply are suppressed for 180 days by send and relay",
+                    "Example: suppress --add=bounced@example.com --reason=\"mailbox closed\"")
+                         .map(s -> " \t " + s))
+                .collect(Collectors.toList());
+    }
+}
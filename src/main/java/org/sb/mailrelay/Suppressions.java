@@ -0,0 +1,459 @@
+package org.sb.mailrelay;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * The recipients that are not sent to, such as addresses that bounced with a permanent failure.
+ * <p>
+ * Entries are appended to {@code suppressions.log} in the .mailrelay folder, one per line as
+ * {@code <expiry millis>\t<address>\t<reason>}, a removal is a line {@code -\t<address>}. In memory, a Bloom filter
+ * over the address hashes answers most lookups, an address that is not suppressed is almost always rejected by it
+ * alone. A maybe is checked against a table of the hashes and the log offsets of their entries, and the entry is
+ * read back to compare the address and expiry. The log is compacted when it is opened, if mostly stale.
+ * <p>
+ * Several processes share the log. Each reads what the others appended, before it writes and at most every
+ * {@value #REFRESH_MILLIS} ms when it looks an address up. Compacting writes a new log and renames it over the old
+ * one, and then appends a line {@code !} to the old one, so that a process that still has it open reopens the new
+ * one. The offsets a process holds refer to the log it has open, which is never rewritten in place.
+ */
+final class Suppressions
+{
+    private static final Logger log = Logger.getLogger(Suppressions.class.getPackage().getName());
+
+    static final String FILE = "suppressions.log";
+    static final long DEFAULT_BOUNCE_EXPIRY = TimeUnit.DAYS.toMillis(180);
+    private static final int MIN_EXPECTED = 1 << 20;
+    private static final double FPP = 0.01;
+    private static final int MAX_RECORD = 1024;
+    private static final long REFRESH_MILLIS = 1000;
+    private static final String MOVED = "!";
+    private static final String NEVER = "never";
+
+    private static final Map<Path, Suppressions> lists = new ConcurrentHashMap<>();
+
+    static final class Entry
+    {
+        final String address;
+        final long expires;
+        final String reason;
+
+        Entry(String address, long expires, String reason)
+        {
+            this.address = address;
+            this.expires = expires;
+            this.reason = reason;
+        }
+
+        boolean isExpired(long now)
+        {
+            return expires > 0 && expires <= now;
+        }
+    }
+
+    private final Path file;
+    private FileChannel ch;
+    private volatile BloomFilter bloom;
+    /* open addressed table of address hashes and the offsets of their entries, a negative offset is removed */
+    private long[] hashes;
+    private long[] offsets;
+    private int used;
+    private int live;
+    /* the bytes of the open log read so far, and the records among them */
+    private long loaded;
+    private long records;
+    private volatile long checked;
+
+    private Suppressions(Path file) throws IOException
+    {
+        this.file = file;
+        bloom = open();
+        refresh();
+        log.fine(() -> "Loaded " + live + " suppressed addresses from " + file);
+        if(records > 1000 && records > live * 2L) compact();
+    }
+
+    /**
+     * The suppression list of the .mailrelay folder, shared within the process.
+     */
+    static Suppressions forDirectory(Path mailrelay) throws IOException
+    {
+        Path f = mailrelay.resolve(FILE).toAbsolutePath().normalize();
+        Suppressions s = lists.get(f);
+        if(s == null)
+        synchronized(lists)
+        {
+            s = lists.get(f);
+            if(s == null)
+            {
+                Files.createDirectories(mailrelay);
+                s = new Suppressions(f);
+                lists.put(f, s);
+            }
+        }
+        return s;
+    }
+
+    /* opens the log file, to be read from the start into an empty table and the filter returned */
+    private BloomFilter open() throws IOException
+    {
+        if(ch != null) ch.close();
+        ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        hashes = new long[1024];
+        offsets = new long[1024];
+        used = live = 0;
+        loaded = records = 0;
+        return new BloomFilter(MIN_EXPECTED, FPP);
+    }
+
+    /**
+     * Locks the current log, having read what was appended to it since the last time, and reopened it
+     * if it was compacted meanwhile.
+     */
+    private FileLock lock(boolean shared) throws IOException
+    {
+        BloomFilter b = bloom;
+        while(true)
+        {
+            FileLock lock = ch.lock(0, Long.MAX_VALUE, shared);
+            boolean moved;
+            try
+            {
+                moved = readTail(b);
+            }
+            catch(IOException | RuntimeException e)
+            {
+                lock.release();
+                throw e;
+            }
+            if(!moved)
+            {
+                bloom = b;
+                if(live > b.expected()) rebuildBloom();
+                return lock;
+            }
+            lock.release();
+            log.fine(() -> file + " was compacted, reloading it");
+            b = open();
+        }
+    }
+
+    /* the caller holds a lock, returns true if the log was compacted and has to be reopened */
+    private boolean readTail(BloomFilter b) throws IOException
+    {
+        if(ch.size() <= loaded) return false;
+        BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(ch.position(loaded)),
+                                                                        StandardCharsets.UTF_8));
+        for(String line; (line = in.readLine()) != null;)
+        {
+            long at = loaded;
+            loaded += line.getBytes(StandardCharsets.UTF_8).length + 1;
+            if(line.equals(MOVED)) return true;
+            String[] f = line.split("\t", 3);
+            if(f.length < 2) continue;
+            records++;
+            long h = BloomFilter.hash(f[1]);
+            if(f[0].equals("-")) put(h, -1);
+            else
+            {
+                put(h, at);
+                b.add(h);
+            }
+        }
+        return false;
+    }
+
+    /* picks up the changes other processes made to the log */
+    private synchronized void refresh() throws IOException
+    {
+        checked = System.currentTimeMillis();
+        if(ch.size() > loaded) lock(true).release();
+    }
+
+    private static String normalize(String address)
+    {
+        return address.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return true if the address is suppressed and has not expired
+     */
+    boolean isSuppressed(String address) throws IOException
+    {
+        String a = normalize(address);
+        long h = BloomFilter.hash(a);
+        if(System.currentTimeMillis() - checked > REFRESH_MILLIS) refresh();
+        if(!bloom.mightContain(h)) return false;
+        Optional<Entry> e = lookup(a, h);
+        return e.isPresent() && !e.get().isExpired(System.currentTimeMillis());
+    }
+
+    Optional<Entry> get(String address) throws IOException
+    {
+        refresh();
+        String a = normalize(address);
+        return lookup(a, BloomFilter.hash(a));
+    }
+
+    private synchronized Optional<Entry> lookup(String address, long h) throws IOException
+    {
+        int i = find(h);
+        if(hashes[i] == 0 || offsets[i] < 0) return Optional.empty();
+        Entry e = read(offsets[i]);
+        return e != null && e.address.equals(address) ? Optional.of(e) : Optional.empty();
+    }
+
+    /**
+     * Returns the recipients that are not suppressed, and passes the others to {@code suppressed}.
+     */
+    Address[] filter(Address[] rcpts, Consumer<Address> suppressed) throws IOException
+    {
+        List<Address> ok = new ArrayList<>(rcpts.length);
+        for(Address a : rcpts)
+        {
+            if(a instanceof InternetAddress && isSuppressed(((InternetAddress)a).getAddress())) suppressed.accept(a);
+            else ok.add(a);
+        }
+        return ok.size() == rcpts.length ? rcpts : ok.toArray(new Address[ok.size()]);
+    }
+
+    /**
+     * @param expires when the suppression ends, 0 for never
+     */
+    @SuppressWarnings("try")
+    synchronized void add(String address, long expires, String reason) throws IOException
+    {
+        String a = normalize(address);
+        if(a.isEmpty() || a.contains("\t") || a.contains("\n")) throw new IllegalArgumentException("Invalid address: " + address);
+        String r = Optional.ofNullable(reason).orElse("").replaceAll("[\\t\\r\\n]+", " ");
+        if(r.length() > 200) r = r.substring(0, 200);
+        long h = BloomFilter.hash(a);
+        try(FileLock lock = lock(false))
+        {
+            put(h, append(expires + "\t" + a + "\t" + r + "\n"));
+        }
+        if(live > bloom.expected()) rebuildBloom();
+        else bloom.add(h);
+    }
+
+    @SuppressWarnings("try")
+    synchronized boolean remove(String address) throws IOException
+    {
+        String a = normalize(address);
+        long h = BloomFilter.hash(a);
+        try(FileLock lock = lock(false))
+        {
+            int i = find(h);
+            if(hashes[i] == 0 || offsets[i] < 0) return false;
+            append("-\t" + a + "\n");
+            put(h, -1);
+            return true;
+        }
+    }
+
+    synchronized int size() throws IOException
+    {
+        refresh();
+        return live;
+    }
+
+    /**
+     * Passes every entry that has not expired to the consumer.
+     */
+    synchronized void forEach(Consumer<Entry> consumer) throws IOException
+    {
+        refresh();
+        long now = System.currentTimeMillis();
+        for(int i = 0; i < hashes.length; i++)
+        {
+            if(hashes[i] == 0 || offsets[i] < 0) continue;
+            Entry e = read(offsets[i]);
+            if(e != null && !e.isExpired(now)) consumer.accept(e);
+        }
+    }
+
+    /**
+     * Writes a new log with only the entries that have not expired, and renames it over the old one.
+     */
+    @SuppressWarnings("try")
+    synchronized void compact() throws IOException
+    {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        int n = 0;
+        try(FileLock lock = lock(false))
+        {
+            long now = System.currentTimeMillis();
+            try(FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                for(int i = 0; i < hashes.length; i++)
+                {
+                    if(hashes[i] == 0 || offsets[i] < 0) continue;
+                    Entry e = read(offsets[i]);
+                    if(e == null || e.isExpired(now)) continue;
+                    ByteBuffer buf = ByteBuffer.wrap((e.expires + "\t" + e.address + "\t" + e.reason + "\n")
+                                                        .getBytes(StandardCharsets.UTF_8));
+                    while(buf.hasRemaining()) out.write(buf);
+                    n++;
+                }
+                out.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            append(MOVED + "\n");
+            ch.force(true);
+        }
+        finally
+        {
+            Files.deleteIfExists(tmp);
+        }
+        log.info("Compacted " + file + " to " + n + " entries");
+        lock(true).release();
+    }
+
+    /* the caller holds an exclusive lock and has read the log to its end */
+    private long append(String record) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8));
+        long at = ch.size();
+        while(buf.hasRemaining()) ch.write(buf, at + buf.position());
+        loaded = at + buf.limit();
+        return at;
+    }
+
+    private Entry read(long offset) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_RECORD);
+        ch.read(buf, offset);
+        byte[] b = Arrays.copyOf(buf.array(), buf.position());
+        int nl = 0;
+        while(nl < b.length && b[nl] != '\n') nl++;
+        String[] f = new String(b, 0, nl, StandardCharsets.UTF_8).split("\t", 3);
+        if(f.length < 2 || f[0].equals("-")) return null;
+        return new Entry(f[1], Long.parseLong(f[0]), f.length > 2 ? f[2] : "");
+    }
+
+    private int find(long h)
+    {
+        long key = h == 0 ? 1 : h;
+        int mask = hashes.length - 1;
+        int i = (int)(key ^ (key >>> 32)) & mask;
+        while(hashes[i] != 0 && hashes[i] != key) i = (i + 1) & mask;
+        return i;
+    }
+
+    private void put(long h, long offset)
+    {
+        int i = find(h);
+        if(hashes[i] == 0)
+        {
+            if(offset < 0) return;
+            hashes[i] = h == 0 ? 1 : h;
+            used++;
+            live++;
+        }
+        else if(offsets[i] < 0 && offset >= 0) live++;
+        else if(offsets[i] >= 0 && offset < 0) live--;
+        offsets[i] = offset;
+        if(used * 10 > hashes.length * 6) resize();
+    }
+
+    private void resize()
+    {
+        long[] oh = hashes, oo = offsets;
+        hashes = new long[oh.length * 2];
+        offsets = new long[oh.length * 2];
+        used = live = 0;
+        for(int i = 0; i < oh.length; i++) if(oh[i] != 0 && oo[i] >= 0) put(oh[i], oo[i]);
+    }
+
+    private void rebuildBloom()
+    {
+        BloomFilter b = new BloomFilter(live * 2L, FPP);
+        for(int i = 0; i < hashes.length; i++) if(hashes[i] != 0 && offsets[i] >= 0) b.add(hashes[i]);
+        bloom = b;
+    }
+
+    /**
+     * Reads addresses to suppress, one per line optionally followed by a comma and a reason, and another comma and
+     * the expiry as written by {@link #exportLine}, blank lines and lines starting with # are skipped.
+     *
+     * @param expires the expiry of the addresses without one
+     * @return the number of addresses added
+     */
+    int importFrom(InputStream in, long expires) throws IOException
+    {
+        int n = 0;
+        BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        for(String line; (line = r.readLine()) != null;)
+        {
+            line = line.trim();
+            if(line.isEmpty() || line.startsWith("#")) continue;
+            String[] f = line.split(",", 2);
+            if(f[0].trim().equalsIgnoreCase("address")) continue;
+            String reason = f.length > 1 ? f[1].trim() : "imported";
+            long exp = expires;
+            // the reason may hold commas, the last column is only the expiry if it reads as one
+            int comma = reason.lastIndexOf(',');
+            if(comma >= 0)
+            {
+                Optional<Long> e = expiry(reason.substring(comma + 1).trim());
+                if(e.isPresent())
+                {
+                    exp = e.get();
+                    reason = reason.substring(0, comma).trim();
+                }
+            }
+            add(f[0], exp, reason);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * @return the entry as a line {@code <address>,<reason>,<expiry>} for {@link #importFrom}, the expiry is an
+     * ISO-8601 instant or {@code never}
+     */
+    static String exportLine(Entry e)
+    {
+        return e.address + "," + e.reason + "," + (e.expires > 0 ? Instant.ofEpochMilli(e.expires).toString() : NEVER);
+    }
+
+    private static Optional<Long> expiry(String s)
+    {
+        if(s.equalsIgnoreCase(NEVER)) return Optional.of(0L);
+        try
+        {
+            return Optional.of(Instant.parse(s).toEpochMilli());
+        }
+        catch(DateTimeParseException e)
+        {
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.sb.mailrelay;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * A text with {@code {{field}}} placeholders, compiled once into literal and field segments.
+ * The literals are kept as UTF-8 bytes, so rendering only copies them and encodes the field values.
+ */
+final class Template
+{
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    /* the literal bytes, or the name of a field */
+    private final List<Object> segments;
+    private final boolean crlf;
+
+    private Template(List<Object> segments, boolean crlf)
+    {
+        this.segments = segments;
+        this.crlf = crlf;
+    }
+
+    /**
+     * @param crlf if line ends, of the text and of field values, are written as CRLF
+     */
+    static Template compile(String text, boolean crlf)
+    {
+        List<Object> segments = new ArrayList<>();
+        int pos = 0;
+        for(int open = text.indexOf("{{"); open >= 0; open = text.indexOf("{{", pos))
+        {
+            int close = text.indexOf("}}", open + 2);
+            if(close < 0) throw new IllegalStateException("Unclosed placeholder at " + open + " in the template");
+            if(open > pos) segments.add(literal(text.substring(pos, open), crlf));
+            String field = text.substring(open + 2, close).trim();
+            if(field.isEmpty()) throw new IllegalStateException("Empty placeholder at " + open + " in the template");
+            segments.add(field);
+            pos = close + 2;
+        }
+        if(pos < text.length()) segments.add(literal(text.substring(pos), crlf));
+        return new Template(segments, crlf);
+    }
+
+    private static byte[] literal(String text, boolean crlf)
+    {
+        return (crlf ? text.replace("\r\n", "\n").replace("\n", "\r\n") : text).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The names of the fields used, in the order they first appear.
+     */
+    Set<String> fields()
+    {
+        Set<String> fields = new LinkedHashSet<>();
+        for(Object s : segments) if(s instanceof String) fields.add((String)s);
+        return Collections.unmodifiableSet(fields);
+    }
+
+    /**
+     * Writes the text with each placeholder replaced by its value, a missing value is left empty.
+     */
+    void render(Function<String, String> values, Buffer out)
+    {
+        for(Object s : segments)
+        {
+            if(s instanceof byte[])
+            {
+                byte[] b = (byte[])s;
+                out.write(b, 0, b.length);
+                continue;
+            }
+            String v = values.apply((String)s);
+            if(v == null || v.isEmpty()) continue;
+            if(!crlf)
+            {
+                out.writeUtf8(v);
+                continue;
+            }
+            int from = 0;
+            for(int nl = v.indexOf('\n'); nl >= 0; nl = v.indexOf('\n', from))
+            {
+                out.writeUtf8(v.substring(from, nl > from && v.charAt(nl - 1) == '\r' ? nl - 1 : nl));
+                out.write(CRLF, 0, CRLF.length);
+                from = nl + 1;
+            }
+            out.writeUtf8(v.substring(from));
+        }
+    }
+
+    /**
+     * Renders into a single line, e.g. for a header, line breaks in the values become spaces.
+     */
+    String renderLine(Function<String, String> values)
+    {
+        Buffer b = new Buffer(128);
+        render(values, b);
+        return new String(b.array(), 0, b.size(), StandardCharsets.UTF_8).replaceAll("[\\r\\n]+", " ").trim();
+    }
+
+    /**
+     * A byte buffer that is reset and reused between messages, its array can be read without copying.
+     */
+    static final class Buffer extends ByteArrayOutputStream
+    {
+        Buffer(int size)
+        {
+            super(size);
+        }
+
+        byte[] array()
+        {
+            return buf;
+        }
+
+        void writeUtf8(String s)
+        {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            write(b, 0, b.length);
+        }
+
+        void writeAscii(String s)
+        {
+            int n = s.length();
+            ensure(n);
+            for(int i = 0; i < n; i++) buf[count++] = (byte)s.charAt(i);
+        }
+
+        private void ensure(int n)
+        {
+            if(count + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.sb.mailrelay;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel. Each level has 64 slots, a slot of level {@code n} spans {@code 64^n} ticks,
+ * so inserting a timer and expiring a slot are constant time regardless of how many timers are pending.
+ * Timers in a higher level slot are cascaded into the lower levels as the wheel turns.
+ *
+ * @param <T>
+ */
+class TimingWheel<T>
+{
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 8;
+
+    private static final class Timer<T>
+    {
+        final T item;
+        final long due;
+        final long tick;
+
+        Timer(T item, long due, long tick)
+        {
+            this.item = item;
+            this.due = due;
+            this.tick = tick;
+        }
+    }
+
+    private final long tickMillis;
+    private final ArrayDeque<Timer<T>>[][] wheel;
+    private final List<Timer<T>> overdue = new ArrayList<>();
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickMillis the resolution of the wheel
+     * @param now the time the wheel starts at
+     */
+    TimingWheel(long tickMillis, long now)
+    {
+        this.tickMillis = tickMillis;
+        this.currentTick = now / tickMillis;
+        // an array of a generic type can only be made raw, the slots only ever hold timers of T
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayDeque<Timer<T>>[][] slots = new ArrayDeque[LEVELS][SLOTS];
+        wheel = slots;
+        for(int l = 0; l < LEVELS; l++)
+            for(int s = 0; s < SLOTS; s++)
+                wheel[l][s] = new ArrayDeque<>();
+    }
+
+    /**
+     * Schedules the item at the due time, an item already due is returned by the next {@link #advance}.
+     */
+    synchronized void add(T item, long due)
+    {
+        add(new Timer<>(item, due, (due + tickMillis - 1) / tickMillis));
+        size++;
+    }
+
+    private void add(Timer<T> t)
+    {
+        long delta = t.tick - currentTick;
+        if(delta <= 0)
+        {
+            overdue.add(t);
+            return;
+        }
+        int level = 0;
+        while(level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) level++;
+        wheel[level][(int)(t.tick >>> (BITS * level)) & MASK].add(t);
+    }
+
+    /**
+     * Turns the wheel up to the given time.
+     *
+     * @return the items that became due, ordered by due time
+     */
+    synchronized List<T> advance(long now)
+    {
+        List<Timer<T>> due = new ArrayList<>(overdue);
+        overdue.clear();
+        long target = now / tickMillis;
+        while(currentTick < target)
+        {
+            currentTick++;
+            int top = 0;
+            while(top < LEVELS - 1 && (currentTick & ((1L << (BITS * (top + 1))) - 1)) == 0) top++;
+            for(int l = top; l > 0; l--)
+                cascade(wheel[l][(int)(currentTick >>> (BITS * l)) & MASK]);
+            ArrayDeque<Timer<T>> slot = wheel[0][(int)currentTick & MASK];
+            due.addAll(slot);
+            slot.clear();
+        }
+        due.addAll(overdue);
+        overdue.clear();
+        due.sort(Comparator.comparingLong(t -> t.due));
+        size -= due.size();
+        List<T> items = new ArrayList<>(due.size());
+        due.forEach(t -> items.add(t.item));
+        return items;
+    }
+
+    private void cascade(ArrayDeque<Timer<T>> slot)
+    {
+        List<Timer<T>> timers = new ArrayList<>(slot);
+        slot.clear();
+        timers.forEach(this::add);
+    }
+
+    synchronized int size()
+    {
+        return size;
+    }
+
+    long tickMillis()
+    {
+        return tickMillis;
+    }
+}
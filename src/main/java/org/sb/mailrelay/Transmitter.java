@@ -0,0 +1,65 @@
+package org.sb.mailrelay;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * A connected and authenticated smtp session that messages are sent over, made by {@link Send#getTransport}.
+ */
+interface Transmitter
+{
+    void sendMessage(Message msg, Address[] rcpts) throws MessagingException;
+
+    boolean isConnected();
+
+    void close() throws MessagingException;
+
+    /**
+     * The code of the reply to the last message sent, 0 if there is none.
+     */
+    int lastReturnCode();
+
+    /**
+     * The reply to the last message sent, its code followed by its text.
+     */
+    String lastServerResponse();
+
+    static Transmitter of(SMTPTransport t)
+    {
+        return new Transmitter()
+        {
+            @Override
+            public void sendMessage(Message msg, Address[] rcpts) throws MessagingException
+            {
+                t.sendMessage(msg, rcpts);
+            }
+
+            @Override
+            public boolean isConnected()
+            {
+                return t.isConnected();
+            }
+
+            @Override
+            public void close() throws MessagingException
+            {
+                t.close();
+            }
+
+            @Override
+            public int lastReturnCode()
+            {
+                return t.getLastReturnCode();
+            }
+
+            @Override
+            public String lastServerResponse()
+            {
+                return t.getLastServerResponse();
+            }
+        };
+    }
+}
@@ -0,0 +1,240 @@
+package org.sb.mailrelay;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+
+/**
+ * Relays the message files dropped in the {@code new} folder of a Maildir-style directory.
+ * A file is claimed by an atomic rename into {@code cur}, and once delivered it is deleted or moved to the
+ * {@code --done} folder. Files that cannot be delivered are moved to {@code failed}. Files left in {@code cur}
+ * by a run that stopped before relaying them are moved back to {@code new} on start.
+ */
+public class Watch implements Cmd
+{
+    private static final Logger log = Logger.getLogger(Watch.class.getPackage().getName());
+
+    private Send send;
+    private Path home;
+    private Map<String, String> nvp;
+    private Set<String> flags;
+    private Path newDir, curDir, failedDir;
+    private Optional<Path> doneDir;
+
+    @Override
+    @SuppressWarnings("try")
+    public void exec(Path home, List<String> opts) throws IOException, IllegalStateException
+    {
+        this.home = home;
+        nvp = Cmd.nvpFlags(opts.stream());
+        flags = Stream.concat(Cmd.booleanFlags(opts.stream()).stream(), Stream.of("cache")).collect(Collectors.toSet());
+        Path dir = Optional.ofNullable(nvp.get("dir")).map(Paths::get)
+                            .orElseThrow(() -> new IllegalStateException("No 'dir' option specified"));
+        newDir = Files.createDirectories(dir.resolve("new"));
+        curDir = Files.createDirectories(dir.resolve("cur"));
+        Files.createDirectories(dir.resolve("tmp"));
+        failedDir = Files.createDirectories(dir.resolve("failed"));
+        doneDir = Optional.ofNullable(nvp.get("done")).map(Paths::get);
+        if(doneDir.isPresent()) Files.createDirectories(doneDir.get());
+        send = Send.fromOptions(nvp);
+        MemoryBudget.configure(nvp, Optional.empty());
+        LaneScheduler.priority(nvp);
+        Ledger.configure(nvp);
+
+        int workers = Integer.parseInt(nvp.getOrDefault("workers", String.valueOf(Send.DEFAULT_WORKERS)));
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 1, TimeUnit.MINUTES,
+                                                        new ArrayBlockingQueue<>(workers * 4),
+                                                        new ThreadPoolExecutor.CallerRunsPolicy());
+        Optional<Long> drain = flags.contains("drain") ? Optional.of(Relay.DEFAULT_DRAIN_MILLIS)
+                                : Optional.ofNullable(nvp.get("drain")).map(Cmd::durationMillis);
+        if(drain.isPresent()) 
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(pool, drain.get()), "mailrelay-drain"));
+        try(WatchService ws = newDir.getFileSystem().newWatchService();
+            LiveConfig config = LiveConfig.start(home.resolve(".mailrelay"), nvp, send))
+        {
+            newDir.register(ws, StandardWatchEventKinds.ENTRY_CREATE);
+            log.info("Watching " + newDir);
+            recover();
+            scan(pool);
+            for(;;)
+            {
+                WatchKey key = ws.take();
+                for(WatchEvent<?> ev : key.pollEvents())
+                {
+                    if(ev.kind() == StandardWatchEventKinds.OVERFLOW) scan(pool);
+                    else submit(pool, newDir.resolve((Path)ev.context()));
+                }
+                key.reset();
+            }
+        }
+        catch(InterruptedException | ClosedWatchServiceException e)
+        {
+            log.info("Watch stopped");
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /* on shutdown, lets the files being relayed finish, those not yet claimed stay in the new folder */
+    private void drain(ThreadPoolExecutor pool, long millis)
+    {
+        pool.getQueue().clear();
+        pool.shutdown();
+        log.info("Draining " + pool.getActiveCount() + " files being relayed, for up to " + millis / 1000 + "s");
+        try
+        {
+            if(!pool.awaitTermination(millis, TimeUnit.MILLISECONDS))
+                log.warning("Stopping with " + pool.getActiveCount() + " files being relayed");
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        send.close();
+    }
+
+    /* files left claimed by a run that stopped before relaying them go back to the new folder, to be claimed again */
+    private void recover() throws IOException
+    {
+        try(DirectoryStream<Path> ds = Files.newDirectoryStream(curDir))
+        {
+            for(Path f : ds)
+            {
+                if(f.getFileName().toString().startsWith(".")) continue;
+                try
+                {
+                    Files.move(f, newDir.resolve(f.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+                    log.info("Recovered " + f + " from an earlier run");
+                }
+                catch(IOException e)
+                {
+                    log.log(Level.WARNING, "Could not recover " + f, e);
+                }
+            }
+        }
+    }
+
+    private void scan(ThreadPoolExecutor pool) throws IOException
+    {
+        try(DirectoryStream<Path> ds = Files.newDirectoryStream(newDir))
+        {
+            ds.forEach(f -> submit(pool, f));
+        }
+    }
+
+    private void submit(ThreadPoolExecutor pool, Path file)
+    {
+        if(file.getFileName().toString().startsWith(".")) return;
+        pool.execute(() -> relay(file));
+    }
+
+    private void relay(Path file)
+    {
+        try
+        {
+            MemoryBudget.shared().awaitRoom();
+        }
+        catch(InterruptedIOException e)
+        {
+            return;
+        }
+        Path claimed = curDir.resolve(file.getFileName());
+        try
+        {
+            Files.move(file, claimed, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(NoSuchFileException e)
+        {
+            return;
+        }
+        catch(IOException e)
+        {
+            log.log(Level.WARNING, "Could not claim " + file, e);
+            return;
+        }
+
+        try
+        {
+            // the file is closed before it is moved, which some file systems require
+            try(SharedFileInputStream in = new SharedFileInputStream(claimed.toFile()))
+            {
+                MimeMessage msg = new MimeMessage((Session)null, in);
+                String from = Optional.ofNullable(nvp.get("from")).orElseGet(Try.uncheck(() ->
+                {
+                    Address[] f = msg.getFrom();
+                    if(f == null || f.length == 0) throw new IllegalStateException("No sender in " + file);
+                    return ((InternetAddress)f[0]).getAddress();
+                }));
+                Address[] rcpts = nvp.containsKey("to") ? InternetAddress.parse(nvp.get("to")) : msg.getAllRecipients();
+                if(rcpts == null || rcpts.length == 0) throw new IllegalStateException("No recipients in " + file);
+                log.fine(() -> "Relaying " + claimed);
+                send.deliver(home, nvp, flags, from, msg, rcpts);
+            }
+            if(doneDir.isPresent())
+                Files.move(claimed, doneDir.get().resolve(claimed.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            else
+                Files.delete(claimed);
+        }
+        catch(IOException | MessagingException | RuntimeException e)
+        {
+            log.log(Level.SEVERE, "Could not relay " + claimed + ", moving it to " + failedDir, e);
+            try
+            {
+                Files.move(claimed, failedDir.resolve(claimed.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch(IOException io)
+            {
+                log.log(Level.SEVERE, "Could not move " + claimed, io);
+            }
+        }
+    }
+
+    @Override
+    public List<String> help(String name)
+    {
+        return Stream.concat(
+                    Stream.of("watch \t relays the message files dropped into the 'new' folder of a Maildir:"),
+                    Stream.of(
+                    "--dir : the Maildir, its new, cur, tmp and failed folders are created if missing",
+                    "--done : folder for delivered files, they are deleted if not specified (opt)",
+                    "--from : the sender, defaults to the From header of each message (opt)",
+                    "--to : comma separated recipients, default to the recipients of each message (opt)",
+                    "--workers : the number of files relayed concurrently (opt)",
+                    "--memory-budget, --memory-wait : as for relay, messages spill to the temp folder (opt)",
+                    "--ledger-retention : as for relay (opt)",
+                    "--drain : as for relay, finish the files being relayed when stopped (opt)",
+                    "Example: watch --dir=/var/spool/alerts --from=abc@gmail.com")
+                         .map(s -> " \t " + s))
+                .collect(Collectors.toList());
+    }
+}
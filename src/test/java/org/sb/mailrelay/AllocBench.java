@@ -0,0 +1,84 @@
+package org.sb.mailrelay;
+
+import java.lang.management.ManagementFactory;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.security.auth.callback.NameCallback;
+
+/**
+ * The bytes allocated per message by the nio engine's wire encoding, with and without encoding a fresh message
+ * first, and per XOAUTH2 response. They are read from the thread's allocation counter, the same figure as JMH's
+ * gc.alloc.rate.norm. Run with {@code mvn -Pbench test}, optionally with the message sizes in KB as arguments.
+ */
+public class AllocBench
+{
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    private static long allocated()
+    {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        for(String kb : args.length > 0 ? args : new String[]{"4", "64", "1024"}) run(Integer.parseInt(kb));
+        long start = allocated();
+        for(int i = 0; i < 1000; i++)
+            new OauthSaslClient("ya29.token-abcdefghijklmnopqrstuvwxyz",
+                                cb -> ((NameCallback)cb[0]).setName("a@x.com")).evaluateChallenge(new byte[0]);
+        System.out.printf("XOAUTH2 response: %d B%n", (allocated() - start) / 1000);
+    }
+
+    private static void run(int kb) throws Exception
+    {
+        MimeMessage msg = message(kb);
+        int n = kb >= 1024 ? 200 : 2000;
+        // the first rounds warm up
+        for(int round = 0; round < 3; round++)
+        {
+            long start = allocated(), t = System.nanoTime();
+            for(int i = 0; i < n; i++)
+            {
+                EncodedMessage e = EncodedMessage.encode(msg);
+                NioSmtpEngine.encode(e).release();
+                e.close();
+            }
+            report(kb + "KB full encode", start, t, n);
+        }
+        EncodedMessage encoded = EncodedMessage.encode(msg);
+        for(int round = 0; round < 3; round++)
+        {
+            long start = allocated(), t = System.nanoTime();
+            for(int i = 0; i < n; i++) NioSmtpEngine.encode(encoded).release();
+            report(kb + "KB wire encode", start, t, n);
+        }
+        encoded.close();
+    }
+
+    private static MimeMessage message(int kb) throws Exception
+    {
+        StringBuilder text = new StringBuilder();
+        while(text.length() < kb * 1024) text.append("The quick brown fox jumps over the lazy dog 0123456789\n");
+        MimeBodyPart part = new MimeBodyPart();
+        part.setText(text.toString());
+        MimeMultipart mp = new MimeMultipart();
+        mp.addBodyPart(part);
+        MimeMessage msg = new MimeMessage((Session)null);
+        msg.setContent(mp);
+        msg.setSubject("bench");
+        msg.setFrom(new InternetAddress("a@x.com"));
+        msg.saveChanges();
+        return msg;
+    }
+
+    private static void report(String what, long start, long t, int n)
+    {
+        System.out.printf("%s: %d B/msg, %.1f us/msg%n", what, (allocated() - start) / n,
+                            (System.nanoTime() - t) / 1e3 / n);
+    }
+}
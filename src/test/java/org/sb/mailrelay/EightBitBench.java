@@ -0,0 +1,62 @@
+package org.sb.mailrelay;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.activation.DataHandler;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.ByteArrayDataSource;
+
+/**
+ * The bytes written and the time to make and write a message with a large UTF-8 text body, sent as 8bit to a
+ * server with 8BITMIME and quoted-printable otherwise. Run with {@code mvn -Pbench test}.
+ */
+public class EightBitBench
+{
+    private static final class Counter extends OutputStream
+    {
+        long count;
+
+        @Override
+        public void write(int b)
+        {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            count += len;
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        StringBuilder sb = new StringBuilder();
+        while(sb.length() < 1 << 20)
+            sb.append("Gr\u00fc\u00dfe aus K\u00f6ln, ein na\u00efver Caf\u00e9-Besuch. ")
+              .append("\u041f\u0440\u0438\u0432\u0435\u0442, \u043c\u0438\u0440! ")
+              .append("\u65e5\u672c\u8a9e\u306e\u30c6\u30ad\u30b9\u30c8\u3067\u3059\u3002\n")
+              .append("Plain ASCII lines are in the mix too, as they are in most mail.\n");
+        byte[] text = sb.toString().getBytes(StandardCharsets.UTF_8);
+        System.out.printf("text body: %d bytes%n", text.length);
+        // the first two rounds warm up
+        for(String mode : new String[]{"7bit", "8bit", "7bit", "8bit"})
+        {
+            int n = 20;
+            long bytes = 0, t = System.nanoTime();
+            for(int i = 0; i < n; i++)
+            {
+                MimeMessage msg = new MimeMessage((Session)null);
+                msg.setDataHandler(new DataHandler(new ByteArrayDataSource(text, "text/plain; charset=UTF-8")));
+                if(mode.equals("8bit")) EightBitMime.mark(msg);
+                msg.saveChanges();
+                Counter c = new Counter();
+                msg.writeTo(c);
+                bytes = c.count;
+            }
+            System.out.printf("%s: %d bytes written, %.1f ms/msg%n", mode, bytes, (System.nanoTime() - t) / 1e6 / n);
+        }
+    }
+}